@@ -1,36 +1,217 @@
 package com.robomwm.ai.matrixrobobot;
 
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Process-wide FIFO gate for outbound AI provider requests.
+ * Process-wide gate for outbound AI provider requests.
+ * Each backend has its own lane with a configurable concurrency limit, so a long ArliAI stream does not hold up
+ * a quick call to another provider. Within a lane, interactive requests are admitted ahead of background ones
+ * and requests of the same priority stay FIFO. Requests without a backend share the single-permit default lane.
  */
 public final class AIRequestQueue {
-    private static final Semaphore PERMIT = new Semaphore(1, true);
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private static final String DEFAULT_LANE = "DEFAULT";
+    private static final int DEFAULT_LIMIT = 1;
+    private static final Map<String, Lane> LANES = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> LIMITS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Priority> CURRENT_PRIORITY = ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
 
     private AIRequestQueue() {
     }
 
-    public static <T> T run(String label, Callable<T> call) throws Exception {
-        boolean queued = PERMIT.availablePermits() == 0;
-        if (queued) {
-            System.out.println("AI request queued: " + label + " (" + PERMIT.getQueueLength() + " already waiting)");
+    /**
+     * Sets per-backend concurrency limits, keyed by {@link AIService.Backend} name (or "DEFAULT").
+     */
+    public static void configure(Map<String, Integer> limits) {
+        if (limits == null) return;
+        for (Map.Entry<String, Integer> entry : limits.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() < 1) continue;
+            String name = entry.getKey().toUpperCase();
+            LIMITS.put(name, entry.getValue());
+            Lane lane = LANES.get(name);
+            if (lane != null) {
+                lane.setLimit(entry.getValue());
+            }
+            System.out.println("AI request limit for " + name + ": " + entry.getValue());
         }
+    }
+
+    public static <T> T run(String label, Callable<T> call) throws Exception {
+        return lane(DEFAULT_LANE).run(CURRENT_PRIORITY.get(), label, call);
+    }
+
+    public static <T> T run(AIService.Backend backend, String label, Callable<T> call) throws Exception {
+        String name = backend != null && backend != AIService.Backend.AUTO ? backend.name() : DEFAULT_LANE;
+        return lane(name).run(CURRENT_PRIORITY.get(), label, call);
+    }
 
+    /**
+     * Runs the task with background priority for any AI requests it makes on this thread.
+     */
+    public static void runInBackground(Runnable task) {
+        Priority previous = CURRENT_PRIORITY.get();
+        CURRENT_PRIORITY.set(Priority.BACKGROUND);
         try {
-            PERMIT.acquire();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new Exception("Interrupted while waiting for AI request queue: " + label, e);
+            task.run();
+        } finally {
+            CURRENT_PRIORITY.set(previous);
         }
+    }
+
+    /**
+     * Priority that AI requests made on this thread are admitted with.
+     */
+    public static Priority currentPriority() {
+        return CURRENT_PRIORITY.get();
+    }
 
+    /**
+     * Runs the call with the given priority for any AI requests it makes on this thread, e.g. to carry
+     * the caller's priority over to a worker thread.
+     */
+    public static <T> T callWithPriority(Priority priority, Callable<T> call) throws Exception {
+        Priority previous = CURRENT_PRIORITY.get();
+        CURRENT_PRIORITY.set(priority);
         try {
-            System.out.println("AI request started: " + label);
             return call.call();
         } finally {
-            System.out.println("AI request finished: " + label);
-            PERMIT.release();
+            CURRENT_PRIORITY.set(previous);
+        }
+    }
+
+    /**
+     * One line per lane that has seen traffic: active/limit, queue depth, and wait times.
+     */
+    public static String formatStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Lane lane : new TreeMap<>(LANES).values()) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append(lane.formatStats());
+        }
+        return sb.length() > 0 ? sb.toString() : "No AI requests yet.";
+    }
+
+    private static Lane lane(String name) {
+        return LANES.computeIfAbsent(name, n -> new Lane(n, LIMITS.getOrDefault(n, DEFAULT_LIMIT)));
+    }
+
+    private static final class Lane {
+        private final String name;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final EnumMap<Priority, ArrayDeque<Object>> waiting = new EnumMap<>(Priority.class);
+        private int limit;
+        private int active;
+        private long completed;
+        private long totalWaitMs;
+        private long maxWaitMs;
+
+        Lane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            for (Priority priority : Priority.values()) {
+                waiting.put(priority, new ArrayDeque<>());
+            }
+        }
+
+        void setLimit(int limit) {
+            lock.lock();
+            try {
+                this.limit = limit;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        <T> T run(Priority priority, String label, Callable<T> call) throws Exception {
+            Object ticket = new Object();
+            long queuedAt = System.currentTimeMillis();
+            long waitedMs;
+
+            lock.lock();
+            try {
+                int ahead = waitingCount();
+                if (active >= limit || ahead > 0) {
+                    System.out.println("AI request queued: " + label + " (" + ahead + " already waiting)");
+                }
+                waiting.get(priority).addLast(ticket);
+                try {
+                    while (active >= limit || nextTicket() != ticket) {
+                        changed.await();
+                    }
+                } catch (InterruptedException e) {
+                    waiting.get(priority).remove(ticket);
+                    changed.signalAll();
+                    Thread.currentThread().interrupt();
+                    throw new Exception("Interrupted while waiting for AI request queue: " + label, e);
+                }
+                waiting.get(priority).removeFirst();
+                active++;
+                waitedMs = System.currentTimeMillis() - queuedAt;
+                totalWaitMs += waitedMs;
+                maxWaitMs = Math.max(maxWaitMs, waitedMs);
+            } finally {
+                lock.unlock();
+            }
+
+            long startedAt = System.currentTimeMillis();
+            try {
+                System.out.println("AI request started: " + label
+                        + (waitedMs >= 1000 ? " (waited " + (waitedMs / 1000) + "s)" : ""));
+                return call.call();
+            } finally {
+                System.out.println("AI request finished: " + label + " (" + ((System.currentTimeMillis() - startedAt) / 1000) + "s)");
+                lock.lock();
+                try {
+                    active--;
+                    completed++;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        String formatStats() {
+            lock.lock();
+            try {
+                long started = completed + active;
+                String avgWait = started > 0 ? String.format("%.1fs", totalWaitMs / 1000.0 / started) : "0.0s";
+                return name + ": " + active + "/" + limit + " active, "
+                        + waiting.get(Priority.INTERACTIVE).size() + " interactive + "
+                        + waiting.get(Priority.BACKGROUND).size() + " background waiting, "
+                        + completed + " done, avg wait " + avgWait + ", max wait " + (maxWaitMs / 1000) + "s";
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Object nextTicket() {
+            for (Priority priority : Priority.values()) {
+                Object head = waiting.get(priority).peekFirst();
+                if (head != null) return head;
+            }
+            return null;
+        }
+
+        private int waitingCount() {
+            int count = 0;
+            for (ArrayDeque<Object> queue : waiting.values()) {
+                count += queue.size();
+            }
+            return count;
         }
     }
 }
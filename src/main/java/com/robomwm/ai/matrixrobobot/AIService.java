@@ -2,10 +2,12 @@ package com.robomwm.ai.matrixrobobot;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.ZoneId;
 import java.time.Instant;
@@ -15,6 +17,14 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class AIService {
@@ -40,8 +50,20 @@ public class AIService {
     protected final List<String> openrouterModels;
     protected final List<String> freeLlmModels;
     protected final List<String> ollamaProxyModels;
-
-    public AIService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken, String arliApiKey,
+    private volatile long hedgeDelayMs = 0; // 0 = try providers strictly one after another
+    private volatile boolean logsFirstPrompts = false;
+    private static ExecutorService queryPool; // Hedged attempts and map-reduce chunks
+    // Larger prompts are summarised in chunks first when ArliAI is among the providers tried;
+    // fits its 16k context with room for the response
+    static final int MAP_REDUCE_PROMPT_TOKENS = 12000;
+    private static final int CHAT_FORMAT_OVERHEAD_TOKENS = 20;
+    private static final String SUMMARY_STORE_FILE = "summary_cache.log";
+    // Each entry is one hour or day of one room; older summaries are dropped beyond this
+    private static final int SUMMARY_STORE_MAX_ENTRIES = 20000;
+    private static DescriptionStore summaryStore;
+
+    public AIService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken,
+            RoomHistoryManager historyManager, String arliApiKey,
             String cerebrasApiKey, String groqApiKey, String openrouterApiKey, String freeLlmApiKey,
             String ollamaProxyApiKey, String ollamaProxyUrl,
             List<String> arliModels, List<String> cerebrasModels, List<String> groqModels, List<String> openrouterModels, 
@@ -63,10 +85,27 @@ public class AIService {
         this.openrouterModels = openrouterModels != null && !openrouterModels.isEmpty() ? openrouterModels : Arrays.asList("openrouter/free");
         this.freeLlmModels = freeLlmModels != null && !freeLlmModels.isEmpty() ? freeLlmModels : Arrays.asList("auto");
         this.ollamaProxyModels = ollamaProxyModels != null && !ollamaProxyModels.isEmpty() ? ollamaProxyModels : Arrays.asList("llama3.2:3b");
-        this.historyManager = new RoomHistoryManager(client, mapper, homeserver, accessToken);
+        this.historyManager = historyManager;
         this.random = new Random();
     }
 
+    /**
+     * Enables hedged queries: when no provider has produced a token after this many seconds, the next provider
+     * is started alongside the ones still running. 0 disables hedging.
+     */
+    public void setHedgeDelaySeconds(int seconds) {
+        this.hedgeDelayMs = Math.max(0, seconds) * 1000L;
+    }
+
+    /**
+     * Lays prompts out as one shared system prompt, then the chat logs, then the command's instruction or
+     * question, so queries over the same logs share a prefix that providers with prompt caching can reuse.
+     * Streaming requests then also ask for token usage, which is shown under the answer.
+     */
+    public void setLogsFirstPrompts(boolean logsFirstPrompts) {
+        this.logsFirstPrompts = logsFirstPrompts;
+    }
+
     // Cache for OpenRouter ZDR endpoint names (simple in-memory cache)
     private volatile java.util.Set<String> openrouterZdrSet = null;
     private volatile long openrouterZdrFetchedAt = 0L; // epoch ms
@@ -158,11 +197,20 @@ public class AIService {
         public static final String SYSTEM_ASK = "You answer the user's question using the provided chat logs as your primary source of information. Do not use tables; table markdown is not supported.";
         public static final String QUESTION_PREFIX = "'";
         public static final String QUESTION_SUFFIX = "' Answer this prompt using these chat logs:\n\n";
+        // Logs-first layout: the system prompt and logs stay the same whatever is asked about them
+        public static final String SYSTEM_CHAT_LOGS = "You answer requests about the provided chat logs, using them as your primary source of information. Do not use tables; table markdown is not supported.";
+        public static final String LOGS_HEADER = "Chat logs:\n\n";
+        public static final String LOGS_FOOTER = "\n\n(End of chat logs. The request about them follows.)\n\n";
+        public static final String QUESTION_AFTER_LOGS_SUFFIX = "' Answer this prompt using the chat logs above.";
         public static final String ASK_PREFIX = "";
         public static final String OVERVIEW_PREFIX = "Give a concise, high level overview of the following chat logs. No complete sentences. Use only a title and timestamp for each topic; include as bullet points one chat message verbatim (or more, only if necessary) with username for each topic. No table format. Then summarize with bullet points all of the topics at end in caveman style. This is caveman style: Terse like caveman. Only fluff die. Drop: articles, filler (just/really/basically), pleasantries, hedging. Fragments OK. Short synonyms.\n\n";
         public static final String SUMMARY_PREFIX = "Give a concise, high level overview (no analysis) of the following chat logs. No complete sentences. Make use of bullet points of key topics with timestamp; include zero or more chat messages verbatim (with username) as sub-bullets. Bias including discovered technical facts or solutions or resources, philosophical discussions, and projects. Do not exceed 30 seconds of reading time.\n\n";
         public static final String TLDR_PREFIX = "Provide a very concise summary of the following chat logs that can be read in 15 seconds or less. Make use of bullet points of key topics with timestamp; be extremely brief, no complete sentences. Always include philosophical or technical topics or projects that are informative towards a discovered fact or solution or resources. Then directly include the best chat message verbatim; have bias towards one that is informative towards a discovered solution or informative resource:\n\n";
         public static final String DEBUGAI_PREFIX = "\n\n";
+        public static final String CHUNK_SUMMARY_PREFIX = "Summarize this part of a longer chat log as terse bullet points of topics with timestamp. Keep usernames, the most notable chat messages verbatim, and any technical facts, solutions, resources, philosophical discussions or projects. No introduction.\n\n";
+        public static final String CHUNK_QUESTION_SUFFIX = "' From this part of a longer chat log, list as terse bullet points only the facts and chat messages (verbatim, with username and timestamp) that help answer this prompt. Reply with only 'Nothing relevant.' if there are none:\n\n";
+        public static final String DAY_SUMMARY_PREFIX = "Combine these notes on consecutive hours of one day of a chat log into terse bullet points of topics with timestamp. Keep usernames, notable chat messages verbatim, and any technical facts, solutions, resources or projects. No introduction.\n\n";
+        public static final String PARTIAL_SUMMARIES_HEADER = "(The chat log was too long to include; these are notes on each consecutive part of it, in order.)";
     }
 
     public void queryAI(String responseRoomId, String exportRoomId, int hours, String fromToken, String question,
@@ -314,8 +362,20 @@ public class AIService {
 
         boolean skipSystem = Prompts.DEBUGAI_PREFIX.equals(promptPrefix);
         boolean isAsk = Prompts.ASK_PREFIX.equals(promptPrefix);
-        String prompt = buildPrompt(question, history.logs, promptPrefix);
         List<ProviderAttempt> attempts = buildProviderAttempts(preferredBackend, forcedModel);
+        if (!skipSystem && !attempts.isEmpty()
+                && performMapReduceQuery(matrixClient, attempts, responseRoomId, exportRoomId, history, question,
+                        promptPrefix, abortFlag, preferredBackend, forcedModel, timeoutSeconds, statusEventId, footer)) {
+            return;
+        }
+        String prompt = buildPrompt(question, history.logs, promptPrefix);
+
+        if (hedgeDelayMs > 0 && preferredBackend == Backend.AUTO && attempts.size() > 1) {
+            performHedgedQuery(matrixClient, attempts, prompt, skipSystem, isAsk, responseRoomId, exportRoomId, history,
+                    question, promptPrefix, abortFlag, preferredBackend, forcedModel, timeoutSeconds, footer,
+                    skipUserFilterRetry);
+            return;
+        }
 
         // Track batched status updates to reduce Matrix message spam
         String batchEventId = null;
@@ -391,17 +451,7 @@ public class AIService {
                 // Otherwise only fallback in AUTO mode and if not the last attempt
                 if ((preferredBackend != Backend.AUTO && provider.backend != Backend.OLLAMA_PROXY) || i == attempts.size() - 1) {
                     if (i == attempts.size() - 1 && !history.antispamApplied && !skipUserFilterRetry) {
-                        // All providers failed, try removing messages from specific spammy user first
-                        System.out.println("All providers failed, retrying with specific user filtering...");
-                        matrixClient.updateNoticeMessage(responseRoomId, batchEventId, 
-                                "All providers failed. Removing spammer messages from specific spammy user and retrying...");
-                        
-                        // Create filtered history removing messages from the specific user
-                        RoomHistoryManager.ChatLogsResult filteredHistory = new RoomHistoryManager.ChatLogsResult(
-                                filterUserMessages(history.logs, "@buynbadrah:mikuplushfarm.ovh"), history.firstEventId, history.errorMessage, false);
-                        
-                        // Retry with specific user filtering
-                        performAIQueryWithUserFilter(responseRoomId, exportRoomId, filteredHistory, question, promptPrefix, 
+                        retryWithUserFilter(matrixClient, responseRoomId, exportRoomId, history, question, promptPrefix,
                                 abortFlag, preferredBackend, forcedModel, timeoutSeconds, batchEventId, footer);
                         return;
                     }
@@ -421,6 +471,473 @@ public class AIService {
 
     }
 
+    private void retryWithUserFilter(MatrixClient matrixClient, String responseRoomId, String exportRoomId,
+            RoomHistoryManager.ChatLogsResult history, String question, String promptPrefix,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag, Backend preferredBackend, String forcedModel,
+            int timeoutSeconds, String statusEventId, String footer) {
+        // All providers failed, try removing messages from specific spammy user first
+        System.out.println("All providers failed, retrying with specific user filtering...");
+        matrixClient.updateNoticeMessage(responseRoomId, statusEventId, 
+                "All providers failed. Removing spammer messages from specific spammy user and retrying...");
+        
+        // Create filtered history removing messages from the specific user
+        RoomHistoryManager.ChatLogsResult filteredHistory = new RoomHistoryManager.ChatLogsResult(
+                filterUserMessages(history.logs, "@buynbadrah:mikuplushfarm.ovh"), history.firstEventId, history.errorMessage, false);
+        
+        // Retry with specific user filtering
+        performAIQueryWithUserFilter(responseRoomId, exportRoomId, filteredHistory, question, promptPrefix, 
+                abortFlag, preferredBackend, forcedModel, timeoutSeconds, statusEventId, footer);
+    }
+
+    /**
+     * Races provider attempts instead of waiting for each to fail. The next attempt starts whenever none of the
+     * running ones has produced a token within the hedge delay, or when all of them have failed. The first
+     * complete answer wins and the other requests are cancelled.
+     */
+    private void performHedgedQuery(MatrixClient matrixClient, List<ProviderAttempt> attempts, String prompt,
+            boolean skipSystem, boolean isAsk, String responseRoomId, String exportRoomId,
+            RoomHistoryManager.ChatLogsResult history, String question, String promptPrefix,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag, Backend preferredBackend, String forcedModel,
+            int timeoutSeconds, String footer, boolean skipUserFilterRetry) {
+        HedgedRace race = new HedgedRace();
+        CompletionService<String> completion = new ExecutorCompletionService<>(queryPool());
+        Map<Future<String>, ProviderAttempt> running = new HashMap<>();
+        AIRequestQueue.Priority priority = AIRequestQueue.currentPriority();
+        String errorPrefix = (footer != null ? footer + ": " : "");
+
+        ProviderAttempt first = attempts.get(0);
+        String status = "Querying " + first.provider.noticeName + " (" + first.model + ")...";
+        String statusEventId = matrixClient.sendNoticeWithEventId(responseRoomId, status);
+        String lastError = null;
+        int next = 0;
+        long lastLaunch = 0;
+
+        try {
+            while (true) {
+                if (abortFlag != null && abortFlag.get()) {
+                    // Every racer stops and the first to notice posts its partial answer, as in sequential mode
+                    race.cancelLosers();
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                boolean hedgeDue = !race.hasFirstToken() && now - lastLaunch >= hedgeDelayMs;
+                if (!race.hasWinner() && next < attempts.size() && (running.isEmpty() || hedgeDue)) {
+                    ProviderAttempt attempt = attempts.get(next++);
+                    if (next > 1) {
+                        String line = running.isEmpty()
+                                ? "Querying " + attempt.provider.noticeName + " (" + attempt.model + ")..."
+                                : "No response after " + (hedgeDelayMs / 1000) + "s, also querying "
+                                        + attempt.provider.noticeName + " (" + attempt.model + ")...";
+                        status = appendStatusLine(status, line);
+                        matrixClient.updateNoticeMessage(responseRoomId, statusEventId, status);
+                    }
+                    java.util.concurrent.atomic.AtomicBoolean racer = new java.util.concurrent.atomic.AtomicBoolean(false);
+                    race.register(racer);
+                    running.put(completion.submit(() -> AIRequestQueue.callWithPriority(priority,
+                            () -> race.runAs(racer, () -> runHedgedAttempt(matrixClient, race, racer, attempt, prompt,
+                                    skipSystem, isAsk, responseRoomId, exportRoomId, history.firstEventId, footer,
+                                    timeoutSeconds)))), attempt);
+                    lastLaunch = now;
+                    continue;
+                }
+                if (running.isEmpty()) break;
+
+                long waitMs = 1000; // Poll so an abort is noticed
+                if (!race.hasFirstToken() && next < attempts.size()) {
+                    waitMs = Math.max(1, Math.min(waitMs, lastLaunch + hedgeDelayMs - now));
+                }
+                Future<String> done = completion.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (done == null) continue;
+                ProviderAttempt attempt = running.remove(done);
+                try {
+                    done.get();
+                    race.cancelLosers();
+                    return;
+                } catch (ExecutionException e) {
+                    if (race.hasWinner()) continue; // A loser bowing out; wait for the winner to finish posting
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    String errorMsg = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+                    System.out.println(errorPrefix + attempt.provider.displayName + " (" + attempt.model + ") failed: " + errorMsg);
+                    lastError = errorPrefix + attempt.provider.displayName + " (" + attempt.model + ") failed: " + errorMsg;
+                    status = appendStatusLine(status,
+                            errorPrefix + attempt.provider.noticeName + " (" + attempt.model + ") failed: " + errorMsg);
+                    matrixClient.updateNoticeMessage(responseRoomId, statusEventId, status);
+                }
+            }
+        } catch (InterruptedException e) {
+            race.cancelLosers();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (!history.antispamApplied && !skipUserFilterRetry) {
+            retryWithUserFilter(matrixClient, responseRoomId, exportRoomId, history, question, promptPrefix,
+                    abortFlag, preferredBackend, forcedModel, timeoutSeconds, statusEventId, footer);
+            return;
+        }
+        handleFinalError(responseRoomId, exportRoomId, history, question, promptPrefix, abortFlag,
+                preferredBackend, forcedModel, timeoutSeconds, statusEventId, lastError);
+    }
+
+    /**
+     * Map-reduce for histories whose prompt exceeds {@link #MAP_REDUCE_PROMPT_TOKENS}: the logs are split into
+     * day or hour buckets that fit, the buckets are summarised concurrently with each starting on a different
+     * provider, and the original query then runs over the partial summaries (hours rolled up into days, then
+     * merged again if they are still too long). Plain summaries of buckets are kept in the summary store, so
+     * overlapping windows only summarise the buckets that are new or changed.
+     *
+     * Only done when ArliAI is among the attempts: the other providers take far larger prompts, so a query
+     * forced onto one of them is sent whole.
+     *
+     * @return false if the prompt fits as-is and the caller should query normally
+     */
+    private boolean performMapReduceQuery(MatrixClient matrixClient, List<ProviderAttempt> attempts,
+            String responseRoomId, String exportRoomId, RoomHistoryManager.ChatLogsResult history, String question,
+            String promptPrefix, java.util.concurrent.atomic.AtomicBoolean abortFlag, Backend preferredBackend,
+            String forcedModel, int timeoutSeconds, String statusEventId, String footer) {
+        // Too few lines to split, or already the reduce step
+        if (history.logs.size() < 2 || Prompts.PARTIAL_SUMMARIES_HEADER.equals(history.logs.get(0))) return false;
+        if (!hasSmallContextProvider(attempts)) return false;
+        boolean hasQuestion = question != null && !question.isEmpty();
+        String chunkPrefix = hasQuestion ? Prompts.QUESTION_PREFIX + question + Prompts.CHUNK_QUESTION_SUFFIX
+                : Prompts.CHUNK_SUMMARY_PREFIX;
+        int[] lineTokens;
+        int promptTokens;
+        int chunkBudget;
+        try {
+            lineTokens = estimateLineTokens(history.logs);
+            promptTokens = estimatePromptTokens(buildPrompt(question, new ArrayList<>(), promptPrefix), lineTokens);
+            chunkBudget = MAP_REDUCE_PROMPT_TOKENS - estimatePromptTokens(chunkPrefix, new int[0]);
+        } catch (Exception | LinkageError e) {
+            System.err.println("Token estimate failed, skipping map-reduce: " + e.getMessage());
+            return false;
+        }
+        if (promptTokens <= MAP_REDUCE_PROMPT_TOKENS) return false;
+
+        List<SummaryBuckets.Bucket> buckets = SummaryBuckets.split(history.logs, lineTokens, chunkBudget);
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        // Notes for a question are rarely asked for twice, so only plain summaries are cached
+        List<String> keys = hasQuestion ? null : new ArrayList<>();
+        for (SummaryBuckets.Bucket bucket : buckets) {
+            chunks.add(bucket.lines);
+            labels.add(bucket.label);
+            if (keys != null) keys.add(SummaryBuckets.cacheKey(exportRoomId, bucket.label, chunkPrefix, bucket.lines));
+        }
+        int cached = countCached(keys);
+        String statusId = statusEventId;
+        String status = "\uD83E\uDDE9 ~" + String.format("%.1fk", promptTokens / 1000.0)
+                + " tokens is too long for one prompt, summarizing " + chunks.size() + " parts"
+                + (cached > 0 ? " (" + cached + " cached)" : "") + "...";
+        if (statusId != null) {
+            matrixClient.updateNoticeMessage(responseRoomId, statusId, status);
+        } else {
+            statusId = matrixClient.sendNoticeWithEventId(responseRoomId, status);
+        }
+
+        List<String> summaries = summarizeChunks(matrixClient, attempts, chunks, keys, chunkPrefix, !hasQuestion,
+                responseRoomId, statusId, timeoutSeconds, abortFlag);
+        if (summaries == null) return true;
+        List<String> partials = labelParts(labels, summaries);
+        try {
+            if (!fitsReducePrompt(question, promptPrefix, partials)) {
+                // Roll the hours of each busy day up into one note, cached for windows that include the whole day
+                List<int[]> days = new ArrayList<>();
+                List<List<String>> dayChunks = new ArrayList<>();
+                List<String> dayKeys = keys == null ? null : new ArrayList<>();
+                for (int start = 0; start < buckets.size();) {
+                    int end = start + 1;
+                    SummaryBuckets.Bucket first = buckets.get(start);
+                    while (!first.wholeDay && end < buckets.size() && !buckets.get(end).wholeDay
+                            && java.util.Objects.equals(buckets.get(end).day, first.day)) end++;
+                    if (end - start > 1 && !summaries.subList(start, end).contains(null)) {
+                        List<String> hourNotes = new ArrayList<>();
+                        for (int i = start; i < end; i++) {
+                            hourNotes.add(buckets.get(i).label + ":\n" + summaries.get(i).trim());
+                        }
+                        days.add(new int[] {start, end});
+                        dayChunks.add(hourNotes);
+                        if (dayKeys != null) dayKeys.add(SummaryBuckets.cacheKey(exportRoomId,
+                                first.label.split(" ")[0], Prompts.DAY_SUMMARY_PREFIX, keys.subList(start, end)));
+                    }
+                    start = end;
+                }
+                if (!dayChunks.isEmpty()) {
+                    matrixClient.updateNoticeMessage(responseRoomId, statusId,
+                            "\uD83E\uDDE9 Combining hourly summaries of " + dayChunks.size() + " days...");
+                    List<String> daySummaries = summarizeChunks(matrixClient, attempts, dayChunks, dayKeys,
+                            Prompts.DAY_SUMMARY_PREFIX, false, responseRoomId, statusId, timeoutSeconds, abortFlag);
+                    if (daySummaries == null) return true;
+                    List<String> rolledLabels = new ArrayList<>();
+                    List<String> rolledSummaries = new ArrayList<>();
+                    int next = 0;
+                    for (int d = 0; d < days.size(); d++) {
+                        int[] range = days.get(d);
+                        for (; next < range[0]; next++) {
+                            rolledLabels.add(labels.get(next));
+                            rolledSummaries.add(summaries.get(next));
+                        }
+                        if (daySummaries.get(d) == null) continue; // Keep the hourly notes
+                        rolledLabels.add(buckets.get(range[0]).label.split(" ")[0]);
+                        rolledSummaries.add(daySummaries.get(d));
+                        next = range[1];
+                    }
+                    for (; next < buckets.size(); next++) {
+                        rolledLabels.add(labels.get(next));
+                        rolledSummaries.add(summaries.get(next));
+                    }
+                    partials = labelParts(rolledLabels, rolledSummaries);
+                }
+            }
+
+            // Merge the notes again while they still don't fit in one prompt
+            while (partials.size() > 1 && !fitsReducePrompt(question, promptPrefix, partials)) {
+                List<List<String>> groups = chunkByTokens(partials, estimateLineTokens(partials), chunkBudget);
+                if (groups.size() == partials.size()) break; // Can't group any further; send as-is
+                matrixClient.updateNoticeMessage(responseRoomId, statusId,
+                        "\uD83E\uDDE9 Merging " + partials.size() + " partial summaries into " + groups.size() + "...");
+                summaries = summarizeChunks(matrixClient, attempts, groups, null, Prompts.CHUNK_SUMMARY_PREFIX, false,
+                        responseRoomId, statusId, timeoutSeconds, abortFlag);
+                if (summaries == null) return true;
+                partials = labelParts(null, summaries);
+            }
+        } catch (Exception | LinkageError e) {
+            System.err.println("Token estimate failed while merging partial summaries: " + e.getMessage());
+        }
+
+        List<String> reducedLogs = new ArrayList<>();
+        reducedLogs.add(Prompts.PARTIAL_SUMMARIES_HEADER);
+        reducedLogs.addAll(partials);
+        RoomHistoryManager.ChatLogsResult reduced = new RoomHistoryManager.ChatLogsResult(reducedLogs,
+                history.firstEventId, null, true);
+        // Spam filtering can't shrink the summaries, so don't retry with it
+        performAIQuery(responseRoomId, exportRoomId, reduced, question, promptPrefix, abortFlag, preferredBackend,
+                forcedModel, timeoutSeconds, statusId, footer, true);
+        return true;
+    }
+
+    private static boolean hasSmallContextProvider(List<ProviderAttempt> attempts) {
+        for (ProviderAttempt attempt : attempts) {
+            if (attempt.provider.backend == Backend.ARLIAI) return true;
+        }
+        return false;
+    }
+
+    private boolean fitsReducePrompt(String question, String promptPrefix, List<String> partials) {
+        String reducePrompt = buildPrompt(question, List.of(Prompts.PARTIAL_SUMMARIES_HEADER), promptPrefix);
+        return estimatePromptTokens(reducePrompt, estimateLineTokens(partials)) <= MAP_REDUCE_PROMPT_TOKENS;
+    }
+
+    private static List<String> labelParts(List<String> labels, List<String> summaries) {
+        List<String> partials = new ArrayList<>();
+        for (int i = 0; i < summaries.size(); i++) {
+            String summary = summaries.get(i) != null ? summaries.get(i).trim() : "(This part could not be summarized.)";
+            partials.add("Part " + (i + 1) + " of " + summaries.size()
+                    + (labels != null ? " (" + labels.get(i) + ")" : "") + ":\n" + summary);
+        }
+        return partials;
+    }
+
+    private int countCached(List<String> keys) {
+        DescriptionStore store = keys != null ? summaryStore() : null;
+        if (store == null) return 0;
+        int cached = 0;
+        for (String key : keys) {
+            if (store.get(key) != null) cached++;
+        }
+        return cached;
+    }
+
+    /**
+     * Summarises each chunk on the query pool, chunk i starting at attempt i so providers share the load.
+     * Chunks with a summary under their cache key (if any) are not sent again; new summaries are stored.
+     * Returns the summaries in chunk order with null for chunks that failed, or null if aborted or every chunk failed.
+     */
+    private List<String> summarizeChunks(MatrixClient matrixClient, List<ProviderAttempt> attempts,
+            List<List<String>> chunks, List<String> cacheKeys, String chunkPrefix, boolean filterLogs,
+            String responseRoomId, String statusEventId, int timeoutSeconds,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag) {
+        AIRequestQueue.Priority priority = AIRequestQueue.currentPriority();
+        DescriptionStore store = cacheKeys != null ? summaryStore() : null;
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            String key = store != null ? cacheKeys.get(i) : null;
+            String cached = key != null ? store.get(key) : null;
+            if (cached != null) {
+                futures.add(java.util.concurrent.CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            int first = i;
+            // Same log filtering as the full prompt would have had
+            String prompt = filterLogs ? buildPrompt(null, chunks.get(i), chunkPrefix)
+                    : chunkPrefix + String.join("\n", chunks.get(i));
+            futures.add(queryPool().submit(() -> AIRequestQueue.callWithPriority(priority, () -> {
+                Exception lastError = null;
+                for (int k = 0; k < attempts.size(); k++) {
+                    if (abortFlag != null && abortFlag.get()) throw new Exception("Aborted");
+                    ProviderAttempt attempt = attempts.get((first + k) % attempts.size());
+                    try {
+                        String summary = callNonStreaming(attempt.provider, prompt, attempt.model, false, false,
+                                timeoutSeconds);
+                        if (key != null && !summary.isBlank()) {
+                            try {
+                                store.put(key, summary);
+                            } catch (IOException e) {
+                                System.err.println("Failed to cache chat summary: " + e.getMessage());
+                            }
+                        }
+                        return summary;
+                    } catch (Exception e) {
+                        System.out.println("Part " + (first + 1) + " with " + attempt.provider.displayName + " ("
+                                + attempt.model + ") failed: " + e.getMessage());
+                        lastError = e;
+                    }
+                }
+                throw lastError;
+            })));
+        }
+
+        List<String> summaries = new ArrayList<>();
+        int failed = 0;
+        long lastUpdate = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                String summary;
+                try {
+                    summary = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    futures.forEach(f -> f.cancel(true));
+                    return null;
+                } catch (ExecutionException e) {
+                    summary = null;
+                    failed++;
+                }
+                if (abortFlag != null && abortFlag.get()) {
+                    futures.forEach(f -> f.cancel(true));
+                    return null;
+                }
+                summaries.add(summary);
+                long now = System.currentTimeMillis();
+                if (now - lastUpdate >= STATUS_UPDATE_INTERVAL_MS) {
+                    lastUpdate = now;
+                    matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
+                            "\uD83E\uDDE9 Summarized " + (i + 1) + "/" + chunks.size() + " parts...");
+                }
+            }
+        } finally {
+            if (store != null) {
+                try {
+                    store.flush();
+                } catch (IOException e) {
+                    System.err.println("Failed to save chat summary cache: " + e.getMessage());
+                }
+            }
+        }
+        if (failed == chunks.size()) {
+            matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
+                    "All providers failed to summarize the chat log parts.");
+            return null;
+        }
+        return summaries;
+    }
+
+    /**
+     * The process-wide store of cached chat summaries, opened on first use. Returns null if it cannot be
+     * opened, in which case every part is summarised again.
+     */
+    private DescriptionStore summaryStore() {
+        synchronized (AIService.class) {
+            if (summaryStore == null) {
+                try {
+                    summaryStore = DescriptionStore.open("chat summary store", Paths.get(SUMMARY_STORE_FILE), null,
+                            SUMMARY_STORE_MAX_ENTRIES, mapper);
+                } catch (IOException e) {
+                    System.err.println("Failed to open chat summary store: " + e.getMessage());
+                }
+            }
+            return summaryStore;
+        }
+    }
+
+    private static int[] estimateLineTokens(List<String> lines) {
+        List<String> texts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            texts.add(line + "\n");
+        }
+        return TokenEstimator.estimateAll(texts);
+    }
+
+    private static int estimatePromptTokens(String promptWithoutLogs, int[] lineTokens) {
+        int total = TokenEstimator.estimateCached("prompt|system-overview", Prompts.SYSTEM_OVERVIEW)
+                + TokenEstimator.estimate(promptWithoutLogs) + CHAT_FORMAT_OVERHEAD_TOKENS;
+        for (int tokens : lineTokens) {
+            total += tokens;
+        }
+        return total;
+    }
+
+    /**
+     * Splits lines, in order, into chunks of at most {@code budget} tokens. A line over budget gets a chunk of its own.
+     */
+    static List<List<String>> chunkByTokens(List<String> lines, int[] lineTokens, int budget) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        int currentTokens = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            if (!current.isEmpty() && currentTokens + lineTokens[i] > budget) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(lines.get(i));
+            currentTokens += lineTokens[i];
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private String runHedgedAttempt(MatrixClient matrixClient, HedgedRace race,
+            java.util.concurrent.atomic.AtomicBoolean racer, ProviderAttempt attempt, String prompt, boolean skipSystem,
+            boolean isAsk, String responseRoomId, String exportRoomId, String firstEventId, String footer,
+            int timeoutSeconds) throws Exception {
+        ProviderConfig provider = attempt.provider;
+        if (provider.stream) {
+            return callStreamingToEvent(provider, prompt, attempt.model, skipSystem, isAsk, responseRoomId,
+                    race.eventIdHolder, footer, timeoutSeconds, racer, false, exportRoomId, firstEventId);
+        }
+        String answer = callNonStreaming(provider, prompt, attempt.model, skipSystem, isAsk, timeoutSeconds);
+        if (!race.claimWin(racer)) {
+            throw new Exception(provider.displayName + " finished after another provider answered");
+        }
+        String output = appendMessageLink(answer, exportRoomId, firstEventId, provider.displayName, attempt.model);
+        synchronized (race) {
+            // Replace a losing racer's partial stream if one was already shown
+            if (race.eventIdHolder[0] == null) {
+                matrixClient.sendMarkdownWithEventId(responseRoomId, output);
+            } else if (race.sentAsNotice) {
+                matrixClient.updateMarkdownNoticeMessage(responseRoomId, race.eventIdHolder[0], output);
+            } else {
+                matrixClient.updateMarkdownMessage(responseRoomId, race.eventIdHolder[0], output);
+            }
+        }
+        return answer;
+    }
+
+    private static synchronized ExecutorService queryPool() {
+        if (queryPool == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            queryPool = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "AIQuery-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return queryPool;
+    }
+
     private void performAIQueryWithUserFilter(String responseRoomId, String exportRoomId, RoomHistoryManager.ChatLogsResult history,
             String question, String promptPrefix, java.util.concurrent.atomic.AtomicBoolean abortFlag,
             Backend preferredBackend, String forcedModel, int timeoutSeconds, String statusEventId, 
@@ -826,7 +1343,7 @@ public class AIService {
             boolean isAsk, String responseRoomId, String exportRoomId, String firstEventId, int timeoutSeconds,
             java.util.concurrent.atomic.AtomicBoolean abortFlag, String footer) throws Exception {
         HttpRequest request = buildChatCompletionRequest(provider, prompt, model, skipSystem, isAsk, true, timeoutSeconds);
-        return AIRequestQueue.run(provider.displayName + " (" + model + ") streaming",
+        return AIRequestQueue.run(provider.backend, provider.displayName + " (" + model + ") streaming",
                 () -> streamArliAIResponse(request, responseRoomId, exportRoomId, firstEventId, provider.displayName,
                         abortFlag, footer));
     }
@@ -836,7 +1353,7 @@ public class AIService {
             java.util.concurrent.atomic.AtomicBoolean abortFlag, boolean useNotice, String exportRoomId,
             String firstEventId) throws Exception {
         HttpRequest request = buildChatCompletionRequest(provider, prompt, model, skipSystem, isAsk, true, timeoutSeconds);
-        return AIRequestQueue.run(provider.displayName + " (" + model + ") streaming",
+        return AIRequestQueue.run(provider.backend, provider.displayName + " (" + model + ") streaming",
                 () -> streamArliAIResponseToEvent(request, responseRoomId, eventIdHolder, provider.displayName,
                         abortFlag, footer, useNotice, exportRoomId, firstEventId));
     }
@@ -856,6 +1373,7 @@ public class AIService {
         StringBuilder reasoning = new StringBuilder();
         StringBuilder responseContent = new StringBuilder();
         String actualModel = null;
+        String usage = null;
         long lastUpdate = System.currentTimeMillis();
         final long startTime = System.currentTimeMillis();
 
@@ -865,103 +1383,108 @@ public class AIService {
         int lineCount = 0;
         boolean gotDone = false;
         boolean sentAsNotice = false;
+        // When racing other providers, edits and the final answer are serialised on the race
+        HedgedRace race = HedgedRace.current();
+        Object publishLock = race != null ? race : new Object();
 
         try {
             System.out.println("Starting " + aiName + " streaming request...");
-            HttpResponse<java.util.stream.Stream<String>> response = client.send(request, HttpResponse.BodyHandlers.ofLines());
+            HttpResponse<java.io.InputStream> response;
+            if (race != null) {
+                response = sendAsRacer(race, abortFlag, request, HttpResponse.BodyHandlers.ofInputStream(), aiName);
+            } else {
+                response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            }
 
             if (response.statusCode() != 200) {
-                String errorBody = response.body().collect(java.util.stream.Collectors.joining("\n"));
+                String errorBody;
+                try (java.io.InputStream body = response.body()) {
+                    errorBody = new String(body.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+                }
                 throw new Exception("HTTP " + response.statusCode() + ": " + errorBody);
             }
 
-            try (java.util.stream.Stream<String> lines = response.body()) {
-                java.util.Iterator<String> it = lines.iterator();
-                while (it.hasNext()) {
-                    if (abortFlag != null && abortFlag.get()) {
-                        System.out.println(aiName + " streaming aborted by flag.");
-                        break;
-                    }
-                    String line = it.next();
-                    lineCount = lineCount + 1;
-                    String data = line.trim();
-                    if (data.isEmpty()) continue;
-
-                    String json = null;
-                    if (data.startsWith("data:") && !data.contains("[DONE]")) {
-                        json = data.substring(5).trim();
-                    } else if (data.startsWith("{")) {
-                        json = data;
-                    }
-
-                    if (json != null && !json.isEmpty()) {
-                        JsonNode node = mapper.readTree(json);
-                        if (node.has("error")) {
-                            JsonNode errorNode = node.get("error");
+            java.io.InputStream body = response.body();
+            try (SseDecoder decoder = new SseDecoder(body, mapper)) {
+                if (race != null) {
+                    // Closing the body unblocks the read the decoder is waiting in
+                    race.onCancel(abortFlag, () -> {
+                        try {
+                            body.close();
+                        } catch (IOException ignored) {
+                        }
+                    });
+                }
+                try {
+                    SseDecoder.Delta delta;
+                    while ((delta = decoder.next()) != null) {
+                        if (abortFlag != null && abortFlag.get()) {
+                            System.out.println(aiName + " streaming aborted by flag.");
+                            break;
+                        }
+                        if (delta.error != null) {
+                            JsonNode errorNode = delta.error;
                             String code = "200";
                             if (errorNode.has("status_code")) code = errorNode.get("status_code").asText();
                             else if (errorNode.has("statusCode")) code = errorNode.get("statusCode").asText();
                             throw new Exception("Status: " + code + " Body: " + errorNode.toString());
                         }
-                        
-                        if (node.has("model") && (actualModel == null || actualModel.isEmpty())) {
-                            actualModel = node.get("model").asText();
-                        }
 
-                        // Handle Ollama native format
-                        if (node.has("message")) {
-                            JsonNode message = node.get("message");
-                            if (message.has("content")) {
-                                responseContent.append(message.get("content").asText());
-                            }
-                        } 
-                        // Handle OpenAI/ArliAI format
-                        else if (node.has("choices")) {
-                            JsonNode choices = node.path("choices");
-                            if (choices.isArray() && choices.size() > 0) {
-                                JsonNode delta = choices.get(0).path("delta");
-                                if (delta.has("content")) {
-                                    responseContent.append(delta.get("content").asText());
-                                } else if (delta.has("reasoning")) {
-                                    reasoning.append(delta.get("reasoning").asText());
-                                } else if (delta.has("reasoning_content")) {
-                                    reasoning.append(delta.get("reasoning_content").asText());
-                                }
-                            }
+                        if (delta.model != null && (actualModel == null || actualModel.isEmpty())) {
+                            actualModel = delta.model;
+                        }
+                        String chunkUsage = delta.usage != null ? formatUsage(delta.usage) : null;
+                        if (chunkUsage != null) {
+                            usage = chunkUsage;
+                        }
+                        if (delta.content != null) {
+                            responseContent.append(delta.content);
+                        } else if (delta.reasoning != null) {
+                            reasoning.append(delta.reasoning);
                         }
 
-                        // Check if Ollama is done
-                        if (node.has("done") && node.get("done").asBoolean()) {
-                            gotDone = true;
+                        if (race != null && (responseContent.length() > 0 || reasoning.length() > 0)) {
+                            race.tokenReceived();
                         }
 
                         long now = System.currentTimeMillis();
                         if ((responseContent.length() > 0 || reasoning.length() > 0) && now - lastUpdate > 10000) {
                             lastUpdate = now;
-                            String rendered = buildStreamingOutput(reasoning, responseContent, footer, clockFaces, updateCount++, startTime);
-                            boolean isThinkingOnly = reasoning.length() > 0 && responseContent.length() == 0;
-                            if (eventIdHolder[0] == null) {
-                                sentAsNotice = !isThinkingOnly && useNotice;
-                                eventIdHolder[0] = isThinkingOnly
-                                        ? matrixClient.sendMarkdownWithEventId(responseRoomId, rendered)
-                                        : (useNotice
-                                        ? matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, rendered)
-                                        : matrixClient.sendMarkdownWithEventId(responseRoomId, rendered));
-                            } else {
-                                if (sentAsNotice) {
-                                    matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdHolder[0], rendered);
-                                } else {
-                                    matrixClient.updateMarkdownMessage(responseRoomId, eventIdHolder[0], rendered);
+                            synchronized (publishLock) {
+                                // Only one racer streams into the response message
+                                if (race == null || race.mayPublish(abortFlag)) {
+                                    String rendered = buildStreamingOutput(reasoning, responseContent, footer, clockFaces, updateCount++, startTime);
+                                    boolean isThinkingOnly = reasoning.length() > 0 && responseContent.length() == 0;
+                                    if (eventIdHolder[0] == null) {
+                                        sentAsNotice = !isThinkingOnly && useNotice;
+                                        eventIdHolder[0] = isThinkingOnly
+                                                ? matrixClient.sendMarkdownWithEventId(responseRoomId, rendered)
+                                                : (useNotice
+                                                ? matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, rendered)
+                                                : matrixClient.sendMarkdownWithEventId(responseRoomId, rendered));
+                                        if (race != null) {
+                                            race.sentAsNotice = sentAsNotice;
+                                        }
+                                    } else {
+                                        if (sentAsNotice) {
+                                            matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdHolder[0], rendered);
+                                        } else {
+                                            matrixClient.updateMarkdownMessage(responseRoomId, eventIdHolder[0], rendered);
+                                        }
+                                    }
                                 }
                             }
                         }
-                    } else if (data.contains("[DONE]")) {
-                        System.out.println(aiName + " streaming finished normally ([DONE] received).");
-                        gotDone = true;
-                        break;
+
+                        // [DONE], or Ollama's last chunk
+                        if (delta.done) {
+                            System.out.println(aiName + " streaming finished normally.");
+                            gotDone = true;
+                            break;
+                        }
                     }
-                    
-                    if (gotDone) break;
+                } finally {
+                    lineCount = decoder.linesRead();
                 }
             }
         } catch (Exception e) {
@@ -996,21 +1519,36 @@ public class AIService {
             finalOutput = finalOutput + "\n\n" + footer;
         }
 
+        if (usage != null) {
+            System.out.println(aiName + " (" + actualModel + ") usage: " + usage);
+            if (logsFirstPrompts && actualModel != null) {
+                actualModel = actualModel + " · " + usage;
+            }
+        }
         finalOutput = appendMessageLink(finalOutput, exportRoomId, firstEventId, aiName, actualModel);
 
-        if (eventIdHolder[0] == null) {
-            boolean isThinkingOnly = responseContent.toString().trim().isEmpty() && reasoning.length() > 0;
-            sentAsNotice = !isThinkingOnly && useNotice;
-            eventIdHolder[0] = isThinkingOnly
-                    ? matrixClient.sendMarkdownWithEventId(responseRoomId, finalOutput)
-                    : (useNotice
-                    ? matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, finalOutput)
-                    : matrixClient.sendMarkdownWithEventId(responseRoomId, finalOutput));
-        } else {
-            if (sentAsNotice) {
-                matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdHolder[0], finalOutput);
+        if (race != null && !race.claimWin(abortFlag)) {
+            throw new Exception(aiName + " finished after another provider answered");
+        }
+        synchronized (publishLock) {
+            if (race != null && eventIdHolder[0] != null) {
+                // The message may have been started by another racer
+                sentAsNotice = race.sentAsNotice;
+            }
+            if (eventIdHolder[0] == null) {
+                boolean isThinkingOnly = responseContent.toString().trim().isEmpty() && reasoning.length() > 0;
+                sentAsNotice = !isThinkingOnly && useNotice;
+                eventIdHolder[0] = isThinkingOnly
+                        ? matrixClient.sendMarkdownWithEventId(responseRoomId, finalOutput)
+                        : (useNotice
+                        ? matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, finalOutput)
+                        : matrixClient.sendMarkdownWithEventId(responseRoomId, finalOutput));
             } else {
-                matrixClient.updateMarkdownMessage(responseRoomId, eventIdHolder[0], finalOutput);
+                if (sentAsNotice) {
+                    matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdHolder[0], finalOutput);
+                } else {
+                    matrixClient.updateMarkdownMessage(responseRoomId, eventIdHolder[0], finalOutput);
+                }
             }
         }
         return finalOutput;
@@ -1133,8 +1671,8 @@ public class AIService {
             // Calculate base tokens consumed by prompts and the user's question
             String emptyPrompt = buildPrompt(question, new ArrayList<>(), promptPrefix);
             int chatFormatOverhead = 20; // Special tokens: BOS/EOS, role markers (im_start/im_end), separators
-            int baseTokens = RoomHistoryManager.estimateTokens(Prompts.SYSTEM_OVERVIEW) +
-                             RoomHistoryManager.estimateTokens(emptyPrompt) +
+            int baseTokens = TokenEstimator.estimateCached("prompt|system-overview", Prompts.SYSTEM_OVERVIEW) +
+                             TokenEstimator.estimate(emptyPrompt) +
                              chatFormatOverhead;
 
             int tokenLimit = Math.max(1000, targetPromptTokens - baseTokens);
@@ -1184,8 +1722,8 @@ public class AIService {
             int targetPromptTokens = 12000;
             String emptyPrompt = buildPrompt(question, new ArrayList<>(), promptPrefix);
             int chatFormatOverhead = 20;
-            int baseTokens = RoomHistoryManager.estimateTokens(Prompts.SYSTEM_OVERVIEW) +
-                             RoomHistoryManager.estimateTokens(emptyPrompt) +
+            int baseTokens = TokenEstimator.estimateCached("prompt|system-overview", Prompts.SYSTEM_OVERVIEW) +
+                             TokenEstimator.estimate(emptyPrompt) +
                              chatFormatOverhead;
 
             int tokenLimit = Math.max(1000, targetPromptTokens - baseTokens);
@@ -1232,7 +1770,7 @@ public class AIService {
 
     private String callNonStreaming(ProviderConfig provider, String prompt, String model, boolean skipSystem,
             boolean isAsk, int timeoutSeconds) throws Exception {
-        return AIRequestQueue.run(provider.displayName + " (" + model + ")",
+        return AIRequestQueue.run(provider.backend, provider.displayName + " (" + model + ")",
                 () -> callNonStreamingUnqueued(provider, prompt, model, skipSystem, isAsk, timeoutSeconds));
     }
 
@@ -1241,12 +1779,20 @@ public class AIService {
         HttpRequest request = buildChatCompletionRequest(provider, prompt, model, skipSystem, isAsk, false, timeoutSeconds);
 
         System.out.println("Starting " + provider.displayName + " (" + model + ") request...");
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HedgedRace race = HedgedRace.current();
+        HttpResponse<String> response = race != null
+                ? sendAsRacer(race, HedgedRace.currentRacer(), request, HttpResponse.BodyHandlers.ofString(),
+                        provider.displayName)
+                : client.send(request, HttpResponse.BodyHandlers.ofString());
 
         if (response.statusCode() == 200) {
             try {
                 JsonNode root = mapper.readTree(response.body());
                 JsonNode choice = root.path("choices").get(0);
+                if (choice == null && root.has("message")) {
+                    // Ollama native format: {"message": {"content": "..."}}
+                    choice = root;
+                }
                 if (choice == null) {
                     throw new Exception("Missing 'choices' array");
                 }
@@ -1254,6 +1800,10 @@ public class AIService {
                 if (text == null || text.trim().isEmpty()) {
                     throw new Exception("No response from " + provider.displayName + " (" + model + ").");
                 }
+                String usage = describeUsage(root);
+                if (usage != null) {
+                    System.out.println(provider.displayName + " (" + model + ") usage: " + usage);
+                }
                 return text;
             } catch (Exception e) {
                 throw new Exception("Unexpected 200 response from " + provider.displayName + " (" + model
@@ -1265,6 +1815,26 @@ public class AIService {
         }
     }
 
+    /**
+     * Sends a hedged racer's request. A racer cancelled while it waited for its request queue lane never
+     * sends, and one cancelled later has its request aborted.
+     */
+    private <T> HttpResponse<T> sendAsRacer(HedgedRace race, java.util.concurrent.atomic.AtomicBoolean racer,
+            HttpRequest request, HttpResponse.BodyHandler<T> handler, String aiName) throws Exception {
+        if (racer.get()) {
+            throw new Exception(aiName + " request cancelled, another provider answered");
+        }
+        java.util.concurrent.CompletableFuture<HttpResponse<T>> pending = client.sendAsync(request, handler);
+        race.onCancel(racer, () -> pending.cancel(true));
+        try {
+            return pending.get();
+        } catch (java.util.concurrent.CancellationException e) {
+            throw new Exception(aiName + " request cancelled, another provider answered");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
     private HttpRequest buildChatCompletionRequest(ProviderConfig provider, String prompt, String model,
             boolean skipSystem, boolean isAsk, boolean stream, int timeoutSeconds) throws Exception {
         if (provider == null || provider.apiKey == null || provider.apiKey.isEmpty()) {
@@ -1304,6 +1874,9 @@ public class AIService {
         if (provider.backend == Backend.ARLIAI) {
             applyArliAiNonThinkingDefaults(payload);
         }
+        if (stream && logsFirstPrompts) {
+            payload.put("stream_options", Map.of("include_usage", true));
+        }
         String jsonPayload = mapper.writeValueAsString(payload);
 
         HttpRequest.Builder builder = HttpRequest.newBuilder()
@@ -1367,6 +1940,9 @@ public class AIService {
         }
 
         String logsStr = String.join("\n", effectiveLogs);
+        if (logsFirstPrompts) {
+            return buildLogsFirstPrompt(question, logsStr, promptPrefix);
+        }
         if (question != null && !question.isEmpty()) {
             if (Prompts.DEBUGAI_PREFIX.equals(promptPrefix)) {
                 return question + "\n\n" + logsStr;
@@ -1377,10 +1953,26 @@ public class AIService {
         }
     }
 
+    private static String buildLogsFirstPrompt(String question, String logsStr, String promptPrefix) {
+        if (Prompts.DEBUGAI_PREFIX.equals(promptPrefix)) {
+            return question != null && !question.isEmpty() ? logsStr + "\n\n" + question : logsStr;
+        }
+        String request;
+        if (question != null && !question.isEmpty()) {
+            request = Prompts.QUESTION_PREFIX + question + Prompts.QUESTION_AFTER_LOGS_SUFFIX;
+        } else {
+            // Prefixes end by introducing the logs, which now come before them
+            request = promptPrefix.strip();
+            if (request.endsWith(":")) request = request.substring(0, request.length() - 1) + ".";
+        }
+        return Prompts.LOGS_HEADER + logsStr + Prompts.LOGS_FOOTER + request;
+    }
+
     private List<Map<String, String>> buildMessages(String prompt, boolean skipSystem, boolean isAsk) {
         List<Map<String, String>> messages = new ArrayList<>();
         if (!skipSystem) {
-            String systemPrompt = isAsk ? Prompts.SYSTEM_ASK : Prompts.SYSTEM_OVERVIEW;
+            String systemPrompt = logsFirstPrompts ? Prompts.SYSTEM_CHAT_LOGS
+                    : isAsk ? Prompts.SYSTEM_ASK : Prompts.SYSTEM_OVERVIEW;
             messages.add(Map.of("role", "system", "content", systemPrompt));
         }
         messages.add(Map.of("role", "user", "content", prompt));
@@ -1455,6 +2047,36 @@ public class AIService {
         return rendered.toString();
     }
 
+    /**
+     * Token usage reported in a response or stream chunk, e.g. "5213 prompt tokens (4992 cached), 312 completion
+     * tokens", or null if it has none. Cached prompt tokens are read where the provider reports them.
+     */
+    static String describeUsage(JsonNode node) {
+        JsonNode usage = node.path("usage");
+        if (!usage.isObject()) {
+            usage = node.path("x_groq").path("usage"); // Groq sends stream usage here
+        }
+        return formatUsage(usage);
+    }
+
+    static String formatUsage(JsonNode usage) {
+        int promptTokens = usage.path("prompt_tokens").asInt(-1);
+        if (promptTokens < 0) return null;
+        int cachedTokens = usage.path("prompt_tokens_details").path("cached_tokens").asInt(-1);
+        if (cachedTokens < 0) {
+            cachedTokens = usage.path("prompt_cache_hit_tokens").asInt(-1);
+        }
+        StringBuilder sb = new StringBuilder().append(promptTokens).append(" prompt tokens");
+        if (cachedTokens >= 0) {
+            sb.append(" (").append(cachedTokens).append(" cached)");
+        }
+        int completionTokens = usage.path("completion_tokens").asInt(-1);
+        if (completionTokens >= 0) {
+            sb.append(", ").append(completionTokens).append(" completion tokens");
+        }
+        return sb.toString();
+    }
+
     protected String appendMessageLink(String aiAnswer, String exportRoomId, String firstEventId, String provider, String model) {
         String footer = "";
         if (provider != null && !provider.isEmpty() && model != null && !model.isEmpty()) {
@@ -1500,8 +2122,8 @@ public class AIService {
             int targetPromptTokens = 12000;
             String emptyPrompt = buildPrompt(question, new ArrayList<>(), Prompts.ASK_PREFIX);
             int chatFormatOverhead = 20;
-            int baseTokens = RoomHistoryManager.estimateTokens(Prompts.SYSTEM_OVERVIEW) +
-                             RoomHistoryManager.estimateTokens(emptyPrompt) +
+            int baseTokens = TokenEstimator.estimateCached("prompt|system-overview", Prompts.SYSTEM_OVERVIEW) +
+                             TokenEstimator.estimate(emptyPrompt) +
                              chatFormatOverhead;
             int tokenLimit = Math.max(1000, targetPromptTokens - baseTokens);
 
@@ -14,7 +14,6 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -89,13 +88,13 @@ public class AiSearchService {
         "NO_MATCH";
 
     public AiSearchService(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, 
-                           String accessToken, String arliApiKey) {
+                           String accessToken, RoomHistoryManager historyManager, String arliApiKey) {
         this.httpClient = httpClient;
         this.mapper = mapper;
         this.homeserverUrl = homeserverUrl;
         this.accessToken = accessToken;
         this.arliApiKey = arliApiKey;
-        this.historyManager = new RoomHistoryManager(httpClient, mapper, homeserverUrl, accessToken);
+        this.historyManager = historyManager;
         this.matrixClient = new MatrixClient(httpClient, mapper, homeserverUrl, accessToken);
     }
 
@@ -396,12 +395,18 @@ public class AiSearchService {
         sb.append("Search query: \"").append(query).append("\"\n\n");
         sb.append("Candidate messages:\n\n");
 
-        int currentTokens = RoomHistoryManager.estimateTokens(SYSTEM_PROMPT) + 
-                           RoomHistoryManager.estimateTokens(query) + 200; // Buffer
+        int currentTokens = TokenEstimator.estimate(SYSTEM_PROMPT) + 
+                           TokenEstimator.estimate(query) + 200; // Buffer
 
+        List<String> candidateLines = new ArrayList<>(candidates.size());
         for (SearchCandidate candidate : candidates) {
-            String candidateLine = formatCandidate(candidate, exportRoomId);
-            int lineTokens = RoomHistoryManager.estimateTokens(candidateLine);
+            candidateLines.add(formatCandidate(candidate, exportRoomId));
+        }
+        int[] candidateTokens = TokenEstimator.estimateAll(candidateLines);
+
+        for (int i = 0; i < candidateLines.size(); i++) {
+            String candidateLine = candidateLines.get(i);
+            int lineTokens = candidateTokens[i];
             
             if (currentTokens + lineTokens > AVAILABLE_LOG_TOKENS) {
                 sb.append("... [truncated - ").append(candidates.size()).append(" total candidates]");
@@ -430,7 +435,7 @@ public class AiSearchService {
      */
     private String queryArliAI(String userPrompt, AtomicBoolean abortFlag) {
         try {
-            return AIRequestQueue.run("ArliAI search", () -> queryArliAIUnqueued(userPrompt, abortFlag));
+            return AIRequestQueue.run(AIService.Backend.ARLIAI, "ArliAI search", () -> queryArliAIUnqueued(userPrompt, abortFlag));
         } catch (Exception e) {
             System.err.println("ArliAI search error: " + e.getMessage());
             return null;
@@ -37,6 +37,7 @@ public class AutoLastService {
     private final String homeserver;
     private final String accessToken;
     private final String commandRoomId;
+    private final CommandExecutor commandExecutor;
     private final Path persistenceFile;
     private final Path summaryPersistenceFile;
     private final Path lastPublicPreferenceFile;
@@ -45,7 +46,8 @@ public class AutoLastService {
 
     public AutoLastService(MatrixClient matrixClient, LastMessageService lastMessageService,
             AIService aiService, TimezoneService timezoneService, RoomHistoryManager historyManager,
-            HttpClient httpClient, ObjectMapper mapper, String homeserver, String accessToken, String commandRoomId) {
+            HttpClient httpClient, ObjectMapper mapper, String homeserver, String accessToken, String commandRoomId,
+            CommandExecutor commandExecutor) {
         this.matrixClient = matrixClient;
         this.lastMessageService = lastMessageService;
         this.aiService = aiService;
@@ -56,6 +58,7 @@ public class AutoLastService {
         this.homeserver = homeserver;
         this.accessToken = accessToken;
         this.commandRoomId = commandRoomId;
+        this.commandExecutor = commandExecutor;
         this.persistenceFile = Paths.get("autolast_enabled_users.json");
         this.summaryPersistenceFile = Paths.get("autotldr_enabled_users.json");
         this.lastPublicPreferenceFile = Paths.get("autolast_public_preferences.json");
@@ -183,16 +186,30 @@ public class AutoLastService {
                 if (ts - previousReadInfo.timestamp >= 3600000) {
                     int unreadCount = historyManager.countUnreadMessages(roomId, previousReadInfo.eventId);
                     if (unreadCount >= 75) {
+                        boolean rejected = false;
                         // 2. Handle Auto-Last
                         if (lastEnabled) {
-                            triggerLastMessage(exportRoomId, userId, previousReadInfo, roomId);
-                            lastTriggerTime.put(userId, now);
+                            if (triggerLastMessage(exportRoomId, userId, previousReadInfo, roomId)) {
+                                lastTriggerTime.put(userId, now);
+                            } else {
+                                rejected = true;
+                            }
                         }
 
                         // 3. Handle Auto-TLDR
                         if (tldrEnabled) {
-                            triggerTldr(exportRoomId, userId, previousReadInfo, roomId);
-                            lastTldrTriggerTime.put(userId, now);
+                            if (triggerTldr(exportRoomId, userId, previousReadInfo, roomId)) {
+                                lastTldrTriggerTime.put(userId, now);
+                            } else {
+                                rejected = true;
+                            }
+                        }
+
+                        if (rejected) {
+                            // Keep the old read position so the next receipt tries again
+                            System.out.println("Auto trigger for " + userId + " rejected; keeping read position "
+                                    + previousReadInfo.eventId);
+                            continue;
                         }
                     }
                 }
@@ -204,21 +221,36 @@ public class AutoLastService {
         }
     }
 
-    private void triggerLastMessage(String exportRoomId, String userId, RoomHistoryManager.EventInfo previousReadInfo, String roomId) {
+    /**
+     * Background triggers are capped under their own key, so they never use up the user's command slots.
+     */
+    private static String backgroundSender(String userId) {
+        return "auto:" + userId;
+    }
+
+    /**
+     * Returns false only if the command executor rejected the task.
+     */
+    private boolean triggerLastMessage(String exportRoomId, String userId, RoomHistoryManager.EventInfo previousReadInfo, String roomId) {
         boolean isPublic = userLastPublicPref.getOrDefault(userId, false);
         String targetRoomId = isPublic ? commandRoomId : findDirectMessageRoom(userId);
         
         if (targetRoomId != null) {
             System.out.println("Triggering Auto-Last for " + userId + " (public: " + isPublic + ")");
             // We run this in a separate thread to not block the sync loop
-            new Thread(() -> lastMessageService.sendLastMessageAndReadReceipt(exportRoomId, userId, targetRoomId,
-                    previousReadInfo)).start();
+            return commandExecutor.submit("autolast", backgroundSender(userId), null,
+                    () -> lastMessageService.sendLastMessageAndReadReceipt(exportRoomId, userId, targetRoomId,
+                            previousReadInfo));
         } else {
             System.out.println("Could not find " + (isPublic ? "room" : "DM room") + " for auto-last user: " + userId);
+            return true;
         }
     }
 
-private void triggerTldr(String exportRoomId, String userId, RoomHistoryManager.EventInfo previousReadInfo, String roomId) {
+    /**
+     * Returns false only if the command executor rejected the task.
+     */
+    private boolean triggerTldr(String exportRoomId, String userId, RoomHistoryManager.EventInfo previousReadInfo, String roomId) {
         boolean isPublic = userTldrPublicPref.getOrDefault(userId, false);
         String targetRoomId = isPublic ? commandRoomId : findDirectMessageRoom(userId);
          
@@ -234,17 +266,20 @@ private void triggerTldr(String exportRoomId, String userId, RoomHistoryManager.
              }
              final java.time.ZoneId finalZoneId = zoneId;
              
-             new Thread(() -> {
+             return commandExecutor.submit("autotldr", backgroundSender(userId), null, () -> {
                  try {
-                     aiService.queryAIUnreadFiltered(targetRoomId, exportRoomId, userId, finalZoneId, null,
-                            AIService.Prompts.TLDR_PREFIX, new java.util.concurrent.atomic.AtomicBoolean(false),
-                            previousReadInfo != null ? previousReadInfo.eventId : null);
+                     // Auto-TLDR is unattended, so let interactive AI requests go first
+                     AIRequestQueue.runInBackground(() -> aiService.queryAIUnreadFiltered(targetRoomId, exportRoomId,
+                            userId, finalZoneId, null, AIService.Prompts.TLDR_PREFIX,
+                            new java.util.concurrent.atomic.AtomicBoolean(false),
+                            previousReadInfo != null ? previousReadInfo.eventId : null));
                 } catch (Exception e) {
                     System.err.println("Error running auto-tldr: " + e.getMessage());
                 }
-            }).start();
+            });
         } else {
             System.out.println("Could not find " + (isPublic ? "room" : "DM room") + " for auto-tldr user: " + userId);
+            return true;
         }
     }
     /**
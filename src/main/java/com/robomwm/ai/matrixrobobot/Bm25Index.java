@@ -0,0 +1,237 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Incrementally built BM25 index over one room's messages for !semantic.
+ * Each message is tokenized once when it is added: its term-ID sequence is kept for proximity
+ * scoring, and every distinct term gets a posting with its frequency. Document frequencies and the
+ * total document length are updated as documents arrive, so a query only walks the postings of its
+ * own terms and keeps the best results in a bounded heap.
+ */
+final class Bm25Index {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final Pattern NON_WORD = Pattern.compile("[^a-z0-9\\s]");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Set<String> STOP_WORDS = Set.of(
+            "the", "is", "at", "which", "on", "and", "a", "an", "of", "to", "in", "it", "for", "with", "as");
+
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final List<Postings> postings = new ArrayList<>();
+    private int[][] docTerms = new int[256][];
+    private int docCount;
+    private int removedCount;
+    private long totalLength;
+
+    static final class Hit {
+        /** Index of the document in the window passed to {@link #search}. */
+        final int position;
+        final double score;
+
+        Hit(int position, double score) {
+            this.position = position;
+            this.score = score;
+        }
+    }
+
+    synchronized int size() {
+        return docCount;
+    }
+
+    /**
+     * Document ID for an event that was already indexed, or -1.
+     */
+    synchronized int docId(String eventId) {
+        Integer id = docIds.get(eventId);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Tokenizes and indexes a message, returning its document ID. Re-adding a known event is a lookup.
+     */
+    synchronized int add(String eventId, String text) {
+        Integer existing = docIds.get(eventId);
+        if (existing != null) return existing;
+
+        String[] tokens = tokenize(text);
+        int[] terms = new int[tokens.length];
+        Map<Integer, Integer> frequencies = new HashMap<>();
+        for (int i = 0; i < tokens.length; i++) {
+            Integer termId = termIds.get(tokens[i]);
+            if (termId == null) {
+                termId = postings.size();
+                termIds.put(tokens[i], termId);
+                postings.add(new Postings());
+            }
+            terms[i] = termId;
+            frequencies.merge(termId, 1, Integer::sum);
+        }
+
+        int docId = docCount++;
+        if (docId == docTerms.length) {
+            docTerms = Arrays.copyOf(docTerms, docId * 2);
+        }
+        docTerms[docId] = terms;
+        totalLength += terms.length;
+        for (Map.Entry<Integer, Integer> entry : frequencies.entrySet()) {
+            postings.get(entry.getKey()).add(docId, entry.getValue());
+        }
+        docIds.put(eventId, docId);
+        return docId;
+    }
+
+    /**
+     * Removes a message, such as a redacted one, from the postings and the collection statistics.
+     * Its document ID is not reused.
+     */
+    synchronized void remove(String eventId) {
+        Integer docId = docIds.remove(eventId);
+        if (docId == null) return;
+        int[] terms = docTerms[docId];
+        Set<Integer> seen = new HashSet<>();
+        for (int termId : terms) {
+            if (seen.add(termId)) {
+                postings.get(termId).remove(docId);
+            }
+        }
+        totalLength -= terms.length;
+        docTerms[docId] = new int[0];
+        removedCount++;
+    }
+
+    /**
+     * Ranks the documents of one window against the query, best first.
+     *
+     * @param window document IDs of the candidate messages, in chronological order; -1 entries are skipped
+     */
+    synchronized List<Hit> search(String query, int[] window, int topK) {
+        String[] queryTokens = tokenize(query);
+        int liveDocs = docCount - removedCount;
+        if (queryTokens.length == 0 || liveDocs == 0) return new ArrayList<>();
+
+        Map<Integer, Integer> positions = new HashMap<>(window.length * 2);
+        for (int i = 0; i < window.length; i++) {
+            if (window[i] >= 0) positions.put(window[i], i);
+        }
+
+        int[] queryTerms = new int[queryTokens.length];
+        double avgLength = (double) totalLength / liveDocs;
+        Map<Integer, Double> scores = new HashMap<>();
+        for (int q = 0; q < queryTokens.length; q++) {
+            Integer termId = termIds.get(queryTokens[q]);
+            queryTerms[q] = termId != null ? termId : -1;
+            if (termId == null) continue;
+
+            Postings list = postings.get(termId);
+            double idf = Math.log(1.0 + (liveDocs - list.count + 0.5) / (list.count + 0.5));
+            for (int p = 0; p < list.count; p++) {
+                int doc = list.docs[p];
+                if (!positions.containsKey(doc)) continue;
+                double tf = list.frequencies[p];
+                double norm = K1 * (1.0 - B + B * docTerms[doc].length / avgLength);
+                scores.merge(doc, idf * tf * (K1 + 1.0) / (tf + norm), Double::sum);
+            }
+        }
+
+        // Min-heap on score; on ties the later message is dropped first
+        PriorityQueue<Hit> heap = new PriorityQueue<>(topK + 1, (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score)
+                : Integer.compare(b.position, a.position));
+        for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            int doc = entry.getKey();
+            double proximity = proximityScore(queryTerms, docTerms[doc]);
+            double score = entry.getValue() * (1.0 + proximity) / queryTokens.length;
+            heap.add(new Hit(positions.get(doc), score));
+            if (heap.size() > topK) heap.poll();
+        }
+
+        List<Hit> ranked = new ArrayList<>(heap);
+        ranked.sort((a, b) -> a.score != b.score
+                ? Double.compare(b.score, a.score)
+                : Integer.compare(a.position, b.position));
+        return ranked;
+    }
+
+    /**
+     * Boost in [0, 1] for adjacent query terms that appear close together in the document.
+     */
+    private static double proximityScore(int[] queryTerms, int[] docTerms) {
+        if (queryTerms.length < 2) return 0.0;
+
+        Map<Integer, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < docTerms.length; i++) {
+            for (int qt : queryTerms) {
+                if (qt >= 0 && docTerms[i] == qt) {
+                    positions.computeIfAbsent(qt, k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        if (positions.size() < 2) return 0.0;
+
+        double proximity = 0;
+        for (int i = 0; i < queryTerms.length - 1; i++) {
+            List<Integer> pos1 = positions.get(queryTerms[i]);
+            List<Integer> pos2 = positions.get(queryTerms[i + 1]);
+            if (pos1 == null || pos2 == null) continue;
+
+            for (int p1 : pos1) {
+                for (int p2 : pos2) {
+                    int dist = Math.abs(p1 - p2);
+                    if (dist > 0) {
+                        proximity += 1.0 / (double) dist;
+                    }
+                }
+            }
+        }
+        return Math.min(1.0, proximity);
+    }
+
+    static String[] tokenize(String text) {
+        if (text == null) return new String[0];
+        String normalized = NON_WORD.matcher(text.toLowerCase()).replaceAll(" ");
+        List<String> filtered = new ArrayList<>();
+        for (String w : WHITESPACE.split(normalized)) {
+            if (w.length() > 2 && !STOP_WORDS.contains(w)) {
+                filtered.add(w);
+            }
+        }
+        return filtered.toArray(new String[0]);
+    }
+
+    /**
+     * Ascending document IDs containing a term, with the term's frequency in each.
+     */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] frequencies = new int[4];
+        int count;
+
+        void add(int docId, int frequency) {
+            if (count == docs.length) {
+                docs = Arrays.copyOf(docs, count * 2);
+                frequencies = Arrays.copyOf(frequencies, count * 2);
+            }
+            docs[count] = docId;
+            frequencies[count] = frequency;
+            count++;
+        }
+
+        void remove(int docId) {
+            int p = Arrays.binarySearch(docs, 0, count, docId);
+            if (p < 0) return;
+            System.arraycopy(docs, p + 1, docs, p, count - p - 1);
+            System.arraycopy(frequencies, p + 1, frequencies, p, count - p - 1);
+            count--;
+        }
+    }
+}
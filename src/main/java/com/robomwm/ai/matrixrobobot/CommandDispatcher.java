@@ -29,6 +29,7 @@ public class CommandDispatcher {
     private final TimezoneService timezoneService;
     private final AiSearchService aiSearchService;
     private final MatrixSearchService matrixSearchService;
+    private final CommandExecutor commandExecutor;
 
     /**
      * Parsed command arguments for history-based commands.
@@ -164,7 +165,7 @@ public class CommandDispatcher {
             Map<String, AtomicBoolean> runningOperations, TextSearchService textSearchService,
             AIService aiService, VisionAIService visionAIService,
             SemanticSearchService semanticSearchService,
-            TimezoneService timezoneService, String arliApiKey) {
+            TimezoneService timezoneService, String arliApiKey, CommandExecutor commandExecutor) {
         this.matrixClient = new MatrixClient(client, mapper, homeserver, accessToken);
         this.historyManager = historyManager;
         this.runningOperations = runningOperations;
@@ -176,8 +177,9 @@ public class CommandDispatcher {
         this.debugAIService = new DebugAIService(client, mapper, homeserver, accessToken, arliApiKey);
         this.semanticSearchService = semanticSearchService;
         this.timezoneService = timezoneService;
-        this.aiSearchService = new AiSearchService(client, mapper, homeserver, accessToken, arliApiKey);
+        this.aiSearchService = new AiSearchService(client, mapper, homeserver, accessToken, historyManager, arliApiKey);
         this.matrixSearchService = new MatrixSearchService(matrixClient, client, mapper, homeserver, accessToken, runningOperations);
+        this.commandExecutor = commandExecutor;
     }
 
     /**
@@ -324,7 +326,7 @@ public class CommandDispatcher {
         AtomicBoolean abortFlag = new AtomicBoolean(false);
         runningOperations.put(sender, abortFlag);
 
-        new Thread(() -> {
+        commandExecutor.submit("!export", sender, responseRoomId, abortFlag, () -> {
             try {
                 long now = System.currentTimeMillis();
                 String safeRoom = fExportRoomId.replaceAll("[^A-Za-z0-9._-]", "_");
@@ -411,7 +413,7 @@ public class CommandDispatcher {
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleLastSummary(String trimmed, String roomId, String sender, String responseRoomId,
@@ -426,14 +428,14 @@ public class CommandDispatcher {
             runningOperations.put(sender, abortFlag);
 
             System.out.println("Received lastsummary command in " + roomId + " from " + sender);
-            new Thread(() -> {
+            commandExecutor.submit("!lastsummary", sender, responseRoomId, abortFlag, () -> {
                 try {
                     aiService.queryAIUnread(responseRoomId, exportRoomId, sender, zoneId, question,
                             AIService.Prompts.OVERVIEW_PREFIX, abortFlag, null);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
         }
     }
 
@@ -453,13 +455,13 @@ public class CommandDispatcher {
             AtomicBoolean abortFlag = new AtomicBoolean(false);
             runningOperations.put(sender, abortFlag);
 
-            new Thread(() -> {
+            commandExecutor.submit(commandName, sender, responseRoomId, abortFlag, () -> {
                 try {
                     service.queryAsk(responseRoomId, exportRoomId, null, questionArg, promptPrefix, abortFlag, null, AIService.AI_TIMEOUT_SECONDS, backend, zoneId);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
             return;
         }
 
@@ -481,14 +483,14 @@ public class CommandDispatcher {
         final boolean fForward = parsed.forward;
         final String fQuestion = parsed.remaining.isEmpty() ? null : parsed.remaining;
 
-        new Thread(() -> {
+        commandExecutor.submit(commandName, sender, responseRoomId, abortFlag, () -> {
             try {
                 service.queryAI(responseRoomId, exportRoomId, fHours, null, fQuestion, fEventId, fForward,
                         zoneId, fMax, promptPrefix, abortFlag, backend);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleHistoryAICommandFiltered(AIService service, String trimmed, String roomId, String sender,
@@ -505,13 +507,13 @@ public class CommandDispatcher {
             AtomicBoolean abortFlag = new AtomicBoolean(false);
             runningOperations.put(sender, abortFlag);
 
-            new Thread(() -> {
+            commandExecutor.submit(commandName, sender, responseRoomId, abortFlag, () -> {
                 try {
                     service.queryAskFiltered(responseRoomId, exportRoomId, null, questionArg, promptPrefix, abortFlag, null, AIService.AI_TIMEOUT_SECONDS, backend, zoneId);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
             return;
         }
 
@@ -532,14 +534,14 @@ public class CommandDispatcher {
         final boolean fForward = parsed.forward;
         final String fQuestion = parsed.remaining.isEmpty() ? null : parsed.remaining;
 
-        new Thread(() -> {
+        commandExecutor.submit(commandName, sender, responseRoomId, abortFlag, () -> {
             try {
                 service.queryAIFiltered(responseRoomId, exportRoomId, fHours, null, fQuestion, fEventId, fForward,
                         zoneId, fMax, promptPrefix, abortFlag, backend);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleAsk(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId,
@@ -555,13 +557,13 @@ public class CommandDispatcher {
         final String fQuestion = question;
         ZoneId zoneId = resolveZoneId(sender, responseRoomId);
 
-        new Thread(() -> {
+        commandExecutor.submit("!ask", sender, responseRoomId, abortFlag, () -> {
             try {
                 aiService.queryAsk(responseRoomId, exportRoomId, null, fQuestion, AIService.Prompts.ASK_PREFIX, abortFlag, forcedModel, timeoutSeconds, preferredBackend, zoneId);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleAskFiltered(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId,
@@ -577,13 +579,13 @@ public class CommandDispatcher {
         final String fQuestion = question;
         ZoneId zoneId = resolveZoneId(sender, responseRoomId);
 
-        new Thread(() -> {
+        commandExecutor.submit("!qask", sender, responseRoomId, abortFlag, () -> {
             try {
                 aiService.queryAskFiltered(responseRoomId, exportRoomId, null, fQuestion, AIService.Prompts.ASK_PREFIX, abortFlag, null, AIService.AI_TIMEOUT_SECONDS, AIService.Backend.AUTO, zoneId);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleUserAsk(String trimmed, String roomId, String sender, String responseRoomId, String exportRoomId) {
@@ -642,13 +644,13 @@ public class CommandDispatcher {
         final String fQuestion = question;
         ZoneId zoneId = resolveZoneId(sender, responseRoomId);
 
-        new Thread(() -> {
+        commandExecutor.submit("!userask", sender, responseRoomId, abortFlag, () -> {
             try {
                 aiService.queryUserAsk(responseRoomId, exportRoomId, fTargetUser, fQuestion, abortFlag, zoneId);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     /**
@@ -727,13 +729,13 @@ public class CommandDispatcher {
         final String fModel = matchedModel;
         ZoneId zoneId = resolveZoneId(sender, responseRoomId);
 
-        new Thread(() -> {
+        commandExecutor.submit("!arliai", sender, responseRoomId, abortFlag, () -> {
             try {
                 aiService.queryAsk(responseRoomId, exportRoomId, null, fQuestion, AIService.Prompts.ASK_PREFIX, abortFlag, fModel, AIService.AI_TIMEOUT_SECONDS, AIService.Backend.ARLIAI, zoneId);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleDebugArliai(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId,
@@ -761,13 +763,13 @@ public class CommandDispatcher {
         final DebugAIService.DebugConfig fConfig = result.config;
         final String fPrompt = result.prompt;
 
-        new Thread(() -> {
+        commandExecutor.submit("!debugarliai", sender, responseRoomId, abortFlag, () -> {
             try {
                 debugAIService.queryDebugAI(responseRoomId, exportRoomId, null, fConfig, fPrompt, abortFlag, historyManager);
             } finally {
                 runningOperations.remove(sender);
             }
-        }).start();
+        });
     }
 
     private void handleSemanticSearch(String trimmed, String roomId, String sender, String prevBatch,
@@ -783,14 +785,14 @@ public class CommandDispatcher {
             runningOperations.put(sender, abortFlag);
 
             System.out.println("Received semantic search command in " + roomId + " from " + sender);
-            new Thread(() -> {
+            commandExecutor.submit("!semantic", sender, responseRoomId, abortFlag, () -> {
                 try {
                     semanticSearchService.performSemanticSearch(responseRoomId, exportRoomId, hours, null,
                         query, zoneId, abortFlag);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
         }
     }
 
@@ -810,14 +812,14 @@ public class CommandDispatcher {
             runningOperations.put(sender, abortFlag);
 
             System.out.println("Received aisearch command in " + roomId + " from " + sender);
-            new Thread(() -> {
+            commandExecutor.submit("!aisearch", sender, responseRoomId, abortFlag, () -> {
                 try {
                     aiSearchService.performAiSearch(responseRoomId, exportRoomId, hours, null,
                         query, zoneId, abortFlag);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
         }
     }
 
@@ -866,14 +868,14 @@ public class CommandDispatcher {
                     + (filterSenders != null ? " (filtering by user(s): " + String.join(", ", filterSenders) + ")" : ""));
             final int searchHours = hours;
             final java.util.List<String> searchFilterSenders = filterSenders;
-            new Thread(() -> {
+            commandExecutor.submit("!search", sender, responseRoomId, abortFlag, () -> {
                 try {
                     matrixSearchService.performMatrixSearch(roomId, sender, responseRoomId, searchRoomId, query,
                             searchFilterSenders, searchHours, zoneId, abortFlag);
                 } finally {
                     runningOperations.remove(sender);
                 }
-            }).start();
+            });
         }
     }
 
@@ -931,7 +933,8 @@ public class CommandDispatcher {
             int hours = unit.equals("d") ? duration * 24 : duration;
 
             System.out.println("Received " + commandName + " command in " + roomId + " from " + sender);
-            new Thread(() -> action.execute(roomId, sender, responseRoomId, exportRoomId, hours, null, input, zoneId)).start();
+            commandExecutor.submit(commandName, sender, responseRoomId,
+                    () -> action.execute(roomId, sender, responseRoomId, exportRoomId, hours, null, input, zoneId));
             return true;
         }
         return false;
@@ -1011,7 +1014,7 @@ public class CommandDispatcher {
                 AtomicBoolean abortFlag = new AtomicBoolean(false);
                 runningOperations.put(sender, abortFlag);
 
-                new Thread(() -> {
+                commandExecutor.submit("!ttsexport", sender, responseRoomId, abortFlag, () -> {
                     try {
                         // Fetch messages with TTS-friendly formatting
                         // Use default timezone (UTC) when no timezone is specified for TTS export
@@ -1065,7 +1068,7 @@ public class CommandDispatcher {
                     } finally {
                         runningOperations.remove(sender);
                     }
-                }).start();
+                });
             } else {
                 // Handle count (existing functionality)
                 int messageCount = Integer.parseInt(value);
@@ -1075,7 +1078,7 @@ public class CommandDispatcher {
                 AtomicBoolean abortFlag = new AtomicBoolean(false);
                 runningOperations.put(sender, abortFlag);
 
-                new Thread(() -> {
+                commandExecutor.submit("!ttsexport", sender, responseRoomId, abortFlag, () -> {
                     try {
                         // Fetch messages with TTS-friendly formatting
                         // Use default timezone (UTC) when no timezone is specified for TTS export
@@ -1129,7 +1132,7 @@ public class CommandDispatcher {
                     } finally {
                         runningOperations.remove(sender);
                     }
-                }).start();
+                });
             }
         }
     }
@@ -0,0 +1,118 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs command work off the sync thread with a per-user and a global cap on in-flight tasks.
+ * Tasks run on virtual threads when the runtime supports them (Java 21+) and on daemon platform
+ * threads otherwise. Each thread is named after its command and sender. A task that is still
+ * waiting for a global slot is dropped as soon as its abort flag is set.
+ */
+public class CommandExecutor {
+    private static final int GLOBAL_LIMIT = 16;
+    private static final int PER_USER_LIMIT = 3;
+    private static final long ABORT_POLL_MS = 500;
+
+    private final MatrixClient matrixClient;
+    private final Map<String, AtomicBoolean> runningOperations;
+    private final Semaphore globalSlots = new Semaphore(GLOBAL_LIMIT, true);
+    private final Map<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final ThreadFactory threadFactory = createThreadFactory();
+
+    public CommandExecutor(MatrixClient matrixClient, Map<String, AtomicBoolean> runningOperations) {
+        this.matrixClient = matrixClient;
+        this.runningOperations = runningOperations;
+    }
+
+    /**
+     * Submits a task without an abort flag.
+     */
+    public boolean submit(String command, String sender, String responseRoomId, Runnable task) {
+        return submit(command, sender, responseRoomId, null, task);
+    }
+
+    /**
+     * Submits a task for {@code sender}. Returns false (and tells the user) if they already have
+     * the maximum number of tasks in flight.
+     */
+    public boolean submit(String command, String sender, String responseRoomId, AtomicBoolean abortFlag, Runnable task) {
+        boolean[] admitted = {false};
+        perUser.compute(sender, (k, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= PER_USER_LIMIT) return count;
+            admitted[0] = true;
+            return current + 1;
+        });
+        if (!admitted[0]) {
+            System.out.println("Rejected " + command + " from " + sender + ": " + PER_USER_LIMIT + " commands already running");
+            releaseAbortFlag(sender, abortFlag);
+            if (responseRoomId != null) {
+                matrixClient.sendText(responseRoomId, "You already have " + PER_USER_LIMIT
+                        + " commands running. Wait for one to finish or use !abort.");
+            }
+            return false;
+        }
+
+        String name = "cmd-" + command + "-" + sender;
+        Thread thread = threadFactory.newThread(() -> {
+            Thread.currentThread().setName(name);
+            boolean acquired = false;
+            try {
+                if (globalSlots.availablePermits() == 0) {
+                    System.out.println("Command queued: " + name + " (" + globalSlots.getQueueLength() + " already waiting)");
+                }
+                while (!(acquired = globalSlots.tryAcquire(ABORT_POLL_MS, TimeUnit.MILLISECONDS))) {
+                    if (abortFlag != null && abortFlag.get()) {
+                        System.out.println("Command aborted before start: " + name);
+                        releaseAbortFlag(sender, abortFlag);
+                        return;
+                    }
+                }
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Command " + name + " failed: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                if (acquired) {
+                    globalSlots.release();
+                }
+                perUser.computeIfPresent(sender, (k, count) -> count <= 1 ? null : count - 1);
+            }
+        });
+        thread.start();
+        return true;
+    }
+
+    /**
+     * The task registered its abort flag but will never run, so nothing else would remove it.
+     */
+    private void releaseAbortFlag(String sender, AtomicBoolean abortFlag) {
+        if (abortFlag != null) {
+            runningOperations.remove(sender, abortFlag);
+        }
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory(), looked up reflectively so the build keeps targeting Java 17
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            System.out.println("Command executor using virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException e) {
+            return r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.robomwm.ai.matrixrobobot;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.net.URI;
 import java.net.http.HttpClient;
@@ -377,7 +376,7 @@ public class DebugAIService {
                                   List<Map<String, String>> messages, DebugConfig config,
                                   AtomicBoolean abortFlag, String statusEventId,
                                   String prevBatch, RoomHistoryManager historyManager) throws Exception {
-        AIRequestQueue.run("ArliAI debug query", () -> {
+        AIRequestQueue.run(AIService.Backend.ARLIAI, "ArliAI debug query", () -> {
             callArliAIDebugUnqueued(responseRoomId, exportRoomId, model, messages, config, abortFlag,
                     statusEventId, prevBatch, historyManager);
             return null;
@@ -418,77 +417,74 @@ public class DebugAIService {
 
         try {
             System.out.println("Starting ArliAI debug streaming request...");
-            HttpResponse<java.util.stream.Stream<String>> response = client.send(request, HttpResponse.BodyHandlers.ofLines());
+            HttpResponse<java.io.InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
             
             if (response.statusCode() != 200) {
-                String errorBody = response.body().collect(java.util.stream.Collectors.joining("\n"));
+                String errorBody;
+                try (java.io.InputStream body = response.body()) {
+                    errorBody = new String(body.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+                }
                 throw new Exception("Status: " + response.statusCode() + " Body: " + errorBody);
             }
             
-            try (java.util.stream.Stream<String> lines = response.body()) {
-                java.util.Iterator<String> it = lines.iterator();
-                while (it.hasNext()) {
+            try (SseDecoder decoder = new SseDecoder(response.body(), mapper)) {
+                while (true) {
                     if (abortFlag != null && abortFlag.get()) {
                         System.out.println("ArliAI debug streaming aborted by flag.");
                         break;
                     }
-                    String line = it.next();
-                    String data = line.trim();
-                    if (data.isEmpty()) continue;
-                    
-                    if (data.startsWith("data:") && !data.contains("[DONE]")) {
-                        try {
-                            String json = data.substring(5).trim();
-                            if (json.isEmpty()) continue;
-                            
-                            JsonNode node = mapper.readTree(json);
-                            JsonNode choices = node.path("choices");
-                            if (choices.isArray() && choices.size() > 0) {
-                                JsonNode delta = choices.get(0).path("delta");
-                                if (delta.has("content")) {
-                                    content.append(delta.get("content").asText());
-                                } else if (delta.has("reasoning")) {
-                                    reasoning.append(delta.get("reasoning").asText());
-                                } else if (delta.has("reasoning_content")) {
-                                    reasoning.append(delta.get("reasoning_content").asText());
-                                }
-                                
-                                long now = System.currentTimeMillis();
-                                if ((content.length() > 0 || reasoning.length() > 0) && now - lastUpdate.get() > 5000) {
-                                    lastUpdate.set(now);
-                                    StringBuilder streamingOutput = new StringBuilder();
-                                    if (reasoning.length() > 0) {
-                                        String r = trimReasoning(reasoning.toString());
-                                        streamingOutput.append("> ").append(r.replace("\n", "\n> ")).append("\n\n");
-                                    }
-                                    if (content.length() > 0) {
-                                        streamingOutput.append(content.toString());
-                                    }
-                                    
-                                    String output = streamingOutput.toString();
-                                    if (output.length() > 16000) {
-                                        output = output.substring(0, 15900) + "... [TRUNCATED]";
-                                    }
-                                    
-                                    // Append elapsed thinking time to clock emoji (e.g. 🕒 1m12s)
-                                    long elapsedMs = now - startTime;
-                                    long elapsedSec = elapsedMs / 1000;
-                                    String elapsedStr = elapsedSec < 60 ? (elapsedSec + "s") : ((elapsedSec / 60) + "m" + (elapsedSec % 60) + "s");
-                                    String indicator = clockFaces[updateCount.getAndIncrement() % clockFaces.length] + " " + elapsedStr;
-                                    if (eventIdObj.get() == null) {
-                                        eventIdObj.set(matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, output + " " + indicator));
-                                    } else {
-                                        matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdObj.get(), output + " " + indicator);
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            System.err.println("ArliAI debug Stream Parse Error: " + e.getMessage() + " | Line: " + line);
+                    SseDecoder.Delta delta;
+                    try {
+                        delta = decoder.next();
+                    } catch (java.io.IOException e) {
+                        if (e instanceof com.fasterxml.jackson.core.JsonProcessingException) {
+                            // The bad event has been skipped; carry on with the next one
+                            System.err.println("ArliAI debug Stream Parse Error: " + e.getMessage());
+                            continue;
                         }
-                    } else if (data.contains("[DONE]")) {
+                        throw e;
+                    }
+                    if (delta == null) break;
+                    if (delta.done) {
                         System.out.println("ArliAI debug streaming finished normally ([DONE] received).");
                         break;
                     }
+                    if (delta.content == null && delta.reasoning == null) continue;
+
+                    if (delta.content != null) {
+                        content.append(delta.content);
+                    } else {
+                        reasoning.append(delta.reasoning);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if ((content.length() > 0 || reasoning.length() > 0) && now - lastUpdate.get() > 5000) {
+                        lastUpdate.set(now);
+                        StringBuilder streamingOutput = new StringBuilder();
+                        if (reasoning.length() > 0) {
+                            String r = trimReasoning(reasoning.toString());
+                            streamingOutput.append("> ").append(r.replace("\n", "\n> ")).append("\n\n");
+                        }
+                        if (content.length() > 0) {
+                            streamingOutput.append(content.toString());
+                        }
+                        
+                        String output = streamingOutput.toString();
+                        if (output.length() > 16000) {
+                            output = output.substring(0, 15900) + "... [TRUNCATED]";
+                        }
+                        
+                        // Append elapsed thinking time to clock emoji (e.g. 🕒 1m12s)
+                        long elapsedMs = now - startTime;
+                        long elapsedSec = elapsedMs / 1000;
+                        String elapsedStr = elapsedSec < 60 ? (elapsedSec + "s") : ((elapsedSec / 60) + "m" + (elapsedSec % 60) + "s");
+                        String indicator = clockFaces[updateCount.getAndIncrement() % clockFaces.length] + " " + elapsedStr;
+                        if (eventIdObj.get() == null) {
+                            eventIdObj.set(matrixClient.sendMarkdownNoticeWithEventId(responseRoomId, output + " " + indicator));
+                        } else {
+                            matrixClient.updateMarkdownNoticeMessage(responseRoomId, eventIdObj.get(), output + " " + indicator);
+                        }
+                    }
                 }
             }
         } catch (Exception e) {
@@ -0,0 +1,260 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only key-value log, used for image descriptions and cached chat summaries.
+ * Each put appends one {"key":..,"value":..} JSON line; an in-memory index maps every key to the
+ * offset of its newest line, so a lookup is one positional read, and recently used values are
+ * served from an LRU map without touching the file. A torn last line left by a crash is cut off
+ * on open. A store may be capped at a number of entries, in which case the least recently written
+ * ones are dropped. Once superseded or dropped lines outnumber live ones the log is rewritten with only
+ * live entries.
+ */
+final class DescriptionStore {
+    private static final int LRU_CAPACITY = 4096;
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    private final String name;
+    private final Path file;
+    private final int maxEntries; // 0 = unbounded
+    private final ObjectMapper mapper;
+    private FileChannel channel;
+    // key -> {offset, length}, least recently written first
+    private final LinkedHashMap<String, long[]> index = new LinkedHashMap<>();
+    private final Map<String, String> recent = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > LRU_CAPACITY;
+        }
+    };
+    private long records;
+
+    private DescriptionStore(String name, Path file, int maxEntries, ObjectMapper mapper) {
+        this.name = name;
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Opens the log at {@code file}, keeping at most {@code maxEntries} entries (0 for no limit).
+     * When it does not exist yet, entries of the old single-object JSON cache at {@code legacyFile}
+     * (if any) are imported first. {@code name} is what log messages call the store.
+     */
+    static DescriptionStore open(String name, Path file, Path legacyFile, int maxEntries, ObjectMapper mapper)
+            throws IOException {
+        DescriptionStore store = new DescriptionStore(name, file, maxEntries, mapper);
+        boolean importLegacy = !Files.exists(file) && legacyFile != null && Files.exists(legacyFile);
+        store.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        store.loadIndex();
+        if (importLegacy) {
+            store.importLegacy(legacyFile);
+        }
+        if (store.shouldCompact()) {
+            store.compact();
+        }
+        return store;
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Every stored key that starts with {@code prefix}.
+     */
+    synchronized List<String> keysWithPrefix(String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (String key : index.keySet()) {
+            if (key.startsWith(prefix)) keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * The stored value for {@code key}, or null.
+     */
+    synchronized String get(String key) {
+        String value = recent.get(key);
+        if (value != null) return value;
+        long[] location = index.get(key);
+        if (location == null) return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) location[1]);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location[0] + buffer.position()) < 0) break;
+            }
+            value = mapper.readTree(buffer.array()).path("value").asText(null);
+        } catch (IOException e) {
+            System.err.println("Failed to read entry for " + key + ": " + e.getMessage());
+            return null;
+        }
+        if (value != null) {
+            recent.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Appends a value. It is readable immediately; call {@link #flush} to make it durable.
+     */
+    synchronized void put(String key, String value) throws IOException {
+        ObjectNode record = mapper.createObjectNode();
+        record.put("key", key);
+        record.put("value", value);
+        byte[] line = (mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        index.remove(key);
+        index.put(key, new long[] {offset, line.length - 1});
+        recent.put(key, value);
+        records++;
+        evictOverCap();
+        if (shouldCompact()) {
+            compact();
+        }
+    }
+
+    synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    private void loadIndex() throws IOException {
+        long validEnd = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long lineStart = 0;
+            long position = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (!indexLine(line.toByteArray(), lineStart)) {
+                    System.err.println("Skipping unreadable record at byte " + lineStart + " of " + file);
+                }
+                records++;
+                validEnd = position;
+                line.reset();
+                lineStart = position;
+            }
+        }
+        if (channel.size() > validEnd) {
+            // An append that was cut off by a crash
+            System.err.println("Discarding " + (channel.size() - validEnd) + " trailing bytes of " + file);
+            channel.truncate(validEnd);
+        }
+        evictOverCap();
+        System.out.println("Loaded " + name + ": " + index.size() + " entries");
+    }
+
+    /**
+     * Forgets the least recently written entries beyond the cap; compaction drops their lines.
+     */
+    private void evictOverCap() {
+        if (maxEntries <= 0) return;
+        Iterator<String> keys = index.keySet().iterator();
+        while (index.size() > maxEntries && keys.hasNext()) {
+            recent.remove(keys.next());
+            keys.remove();
+        }
+    }
+
+    private boolean indexLine(byte[] line, long offset) {
+        try {
+            JsonNode record = mapper.readTree(line);
+            String key = record.path("key").asText(null);
+            if (key == null || !record.has("value")) return false;
+            index.remove(key);
+            index.put(key, new long[] {offset, line.length});
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void importLegacy(Path legacyFile) {
+        try {
+            JsonNode legacy = mapper.readTree(legacyFile.toFile());
+            if (!legacy.isObject()) return;
+            Iterator<Map.Entry<String, JsonNode>> fields = legacy.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> entry = fields.next();
+                String value = entry.getValue().asText(null);
+                if (value != null && !value.isEmpty()) {
+                    put(entry.getKey(), value);
+                }
+            }
+            flush();
+            System.out.println("Imported " + index.size() + " entries into " + name + " from " + legacyFile);
+        } catch (IOException e) {
+            System.err.println("Failed to import " + legacyFile + ": " + e.getMessage());
+        }
+    }
+
+    private boolean shouldCompact() {
+        return records >= COMPACT_MIN_RECORDS && records > 2L * index.size();
+    }
+
+    /**
+     * Rewrites the log with only the newest line per key and swaps it in atomically.
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<String, long[]> compacted = new LinkedHashMap<>();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                long[] location = entry.getValue();
+                // Every indexed record is followed by its newline
+                ByteBuffer buffer = ByteBuffer.allocate((int) location[1] + 1);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, location[0] + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                compacted.put(entry.getKey(), new long[] {offset, location[1]});
+                offset += location[1] + 1;
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        System.out.println("Compacted " + name + ": " + records + " -> " + compacted.size() + " records");
+        index.clear();
+        index.putAll(compacted);
+        records = compacted.size();
+    }
+}
@@ -0,0 +1,132 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared state of provider attempts racing to answer one query.
+ * Each racer is identified by its own abort flag. The first racer to publish a streaming edit owns
+ * the response message; the first to finish wins and posts its answer into that same message; the
+ * rest are cancelled by setting their abort flags and running their cancel hooks.
+ */
+final class HedgedRace {
+    private static final ThreadLocal<HedgedRace> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<AtomicBoolean> CURRENT_RACER = new ThreadLocal<>();
+
+    final String[] eventIdHolder = new String[]{null};
+    boolean sentAsNotice; // Guarded by this
+    private final CountDownLatch firstToken = new CountDownLatch(1);
+    private final Map<AtomicBoolean, List<Runnable>> racers = new LinkedHashMap<>();
+    private Object owner;
+    private Object winner;
+
+    /**
+     * The race the current thread is running in, or null outside a race.
+     */
+    static HedgedRace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * The abort flag of the racer running on the current thread, or null outside a race.
+     */
+    static AtomicBoolean currentRacer() {
+        return CURRENT_RACER.get();
+    }
+
+    /**
+     * Enters a racer before its call is scheduled, so cancelling the losers also covers racers
+     * that have not started running yet.
+     */
+    synchronized void register(AtomicBoolean racer) {
+        racers.putIfAbsent(racer, new ArrayList<>());
+    }
+
+    /**
+     * Runs a racer's call on this thread with this race as {@link #current()}.
+     */
+    <T> T runAs(AtomicBoolean racer, Callable<T> call) throws Exception {
+        register(racer);
+        HedgedRace previous = CURRENT.get();
+        AtomicBoolean previousRacer = CURRENT_RACER.get();
+        CURRENT.set(this);
+        CURRENT_RACER.set(racer);
+        try {
+            return call.call();
+        } finally {
+            CURRENT.set(previous);
+            CURRENT_RACER.set(previousRacer);
+        }
+    }
+
+    void tokenReceived() {
+        firstToken.countDown();
+    }
+
+    boolean hasFirstToken() {
+        return firstToken.getCount() == 0;
+    }
+
+    /**
+     * Whether the racer may edit the response message; the first racer to ask becomes its owner.
+     * Callers hold the race's lock while publishing so an edit can't land after the winner's answer.
+     */
+    synchronized boolean mayPublish(Object racer) {
+        if (winner != null) return winner == racer;
+        if (owner == null) owner = racer;
+        return owner == racer;
+    }
+
+    /**
+     * Claims the win for a racer that has a complete answer. Only the first claim succeeds.
+     */
+    synchronized boolean claimWin(Object racer) {
+        if (winner != null) return winner == racer;
+        winner = racer;
+        return true;
+    }
+
+    synchronized boolean hasWinner() {
+        return winner != null;
+    }
+
+    /**
+     * Registers a hook that aborts the racer's in-flight request, run immediately if it is already cancelled.
+     */
+    void onCancel(AtomicBoolean racer, Runnable hook) {
+        synchronized (this) {
+            if (!racer.get()) {
+                racers.computeIfAbsent(racer, k -> new ArrayList<>()).add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    /**
+     * Cancels every racer other than the winner.
+     */
+    void cancelLosers() {
+        List<Runnable> hooks = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<AtomicBoolean, List<Runnable>> entry : racers.entrySet()) {
+                if (entry.getKey() == winner) continue;
+                entry.getKey().set(true);
+                hooks.addAll(entry.getValue());
+                entry.getValue().clear();
+            }
+        }
+        for (Runnable hook : hooks) {
+            try {
+                hook.run();
+            } catch (Exception e) {
+                System.err.println("Failed to cancel losing AI request: " + e.getMessage());
+            }
+        }
+    }
+}
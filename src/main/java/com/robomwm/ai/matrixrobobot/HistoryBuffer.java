@@ -0,0 +1,194 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.IntFunction;
+
+/**
+ * Columnar buffer for fetched history lines.
+ * Timestamps live in a long[], senders are interned into a symbol table and referenced by index, and
+ * bodies and event IDs are packed as UTF-8 into one shared byte arena. Lines can be appended newest
+ * first (backwards pagination) and are still read back in chronological order without reversing
+ * anything; formatted log lines are produced on read through {@link #lazyList}.
+ */
+final class HistoryBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final boolean newestFirst;
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] senders = new int[INITIAL_CAPACITY];
+    // Per row: arena offset of the body, followed directly by the event ID
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] bodyLengths = new int[INITIAL_CAPACITY];
+    // -1 when the row has no event ID
+    private int[] eventIdLengths = new int[INITIAL_CAPACITY];
+    private byte[] arena = new byte[INITIAL_CAPACITY * 64];
+    private int arenaSize;
+    private int size;
+
+    // Image rows are rare, so they are kept sparse
+    private int[] imageRows = new int[8];
+    private final List<String> imageUrls = new ArrayList<>();
+
+    /**
+     * @param newestFirst true when rows will be appended newest first, e.g. while paging backwards
+     */
+    HistoryBuffer(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+    }
+
+    void append(long timestamp, String sender, String body, String eventId) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            bodyLengths = Arrays.copyOf(bodyLengths, capacity);
+            eventIdLengths = Arrays.copyOf(eventIdLengths, capacity);
+        }
+        timestamps[size] = timestamp;
+        senders[size] = symbolIds.computeIfAbsent(sender, s -> {
+            symbols.add(s);
+            return symbols.size() - 1;
+        });
+        offsets[size] = arenaSize;
+        bodyLengths[size] = write(body);
+        eventIdLengths[size] = eventId != null ? write(eventId) : -1;
+        size++;
+    }
+
+    /**
+     * Marks the most recently appended row as an image with the given media URL.
+     */
+    void markImage(String url) {
+        int count = imageUrls.size();
+        if (count == imageRows.length) {
+            imageRows = Arrays.copyOf(imageRows, count * 2);
+        }
+        imageRows[count] = size - 1;
+        imageUrls.add(url);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long timestamp(int index) {
+        return timestamps[row(index)];
+    }
+
+    String sender(int index) {
+        return symbols.get(senders[row(index)]);
+    }
+
+    String body(int index) {
+        int row = row(index);
+        return new String(arena, offsets[row], bodyLengths[row], StandardCharsets.UTF_8);
+    }
+
+    String eventId(int index) {
+        return eventIdAtRow(row(index));
+    }
+
+    RawLogLine line(int index) {
+        int row = row(index);
+        return new RawLogLine(timestamps[row], symbols.get(senders[row]),
+                new String(arena, offsets[row], bodyLengths[row], StandardCharsets.UTF_8), eventIdAtRow(row));
+    }
+
+    /**
+     * Media URL of the row if it was marked as an image, otherwise null.
+     */
+    String imageUrl(int index) {
+        int pos = Arrays.binarySearch(imageRows, 0, imageUrls.size(), row(index));
+        return pos >= 0 ? imageUrls.get(pos) : null;
+    }
+
+    /**
+     * Read-only chronological view whose elements are computed on access.
+     */
+    List<String> lazyList(IntFunction<String> element) {
+        return new LazyList(size, element);
+    }
+
+    List<String> eventIds() {
+        return lazyList(this::eventId);
+    }
+
+    List<String> imageUrls() {
+        return new LazyList(imageUrls.size(), i -> imageUrls.get(imageIndex(i)));
+    }
+
+    List<String> imageCaptions() {
+        return new LazyList(imageUrls.size(), i -> {
+            int row = imageRows[imageIndex(i)];
+            return new String(arena, offsets[row], bodyLengths[row], StandardCharsets.UTF_8);
+        });
+    }
+
+    List<String> imageEventIds() {
+        return new LazyList(imageUrls.size(), i -> eventIdAtRow(imageRows[imageIndex(i)]));
+    }
+
+    private int row(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return newestFirst ? size - 1 - index : index;
+    }
+
+    private int imageIndex(int index) {
+        return newestFirst ? imageUrls.size() - 1 - index : index;
+    }
+
+    private String eventIdAtRow(int row) {
+        int length = eventIdLengths[row];
+        if (length < 0) return null;
+        return new String(arena, offsets[row] + bodyLengths[row], length, StandardCharsets.UTF_8);
+    }
+
+    private int write(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (arenaSize + bytes.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + bytes.length));
+        }
+        System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+        arenaSize += bytes.length;
+        return bytes.length;
+    }
+
+    private static final class LazyList extends AbstractList<String> implements RandomAccess {
+        private final int size;
+        private final IntFunction<String> element;
+
+        LazyList(int size, IntFunction<String> element) {
+            this.size = size;
+            this.element = element;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return element.apply(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
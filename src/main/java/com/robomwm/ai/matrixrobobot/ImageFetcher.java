@@ -3,13 +3,22 @@ package com.robomwm.ai.matrixrobobot;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.Base64;
-import java.util.List;
-import java.util.ArrayList;
 
 /**
  * Handles fetching and encoding images from Matrix media URLs.
@@ -22,10 +31,12 @@ public class ImageFetcher {
 
     // Maximum image size to fetch (5MB)
     private static final long MAX_IMAGE_SIZE = 5 * 1024 * 1024;
+    private static final int DEFAULT_MAX_EDGE = 768;
+    private static final float DEFAULT_JPEG_QUALITY = 0.8f;
 
-    // TODO: Add image downscaling before base64 encoding to reduce token cost for vision API calls.
-    // Could use javax.imageio to resize to e.g. 512x512 or 1024x1024 max dimension.
-    // The vision model only needs enough detail to describe the image, not full resolution.
+    // The vision model only needs enough detail to describe the image, not full resolution
+    private volatile int maxEdge = DEFAULT_MAX_EDGE;
+    private volatile float jpegQuality = DEFAULT_JPEG_QUALITY;
 
     public ImageFetcher(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
         this.httpClient = httpClient;
@@ -35,40 +46,136 @@ public class ImageFetcher {
     }
 
     /**
-     * Fetch and base64-encode images from Matrix media URLs.
-     * Returns list of base64 data URLs (data:image/jpeg;base64,...).
-     * Skips images that fail to download or exceed size limits.
+     * Longest edge, in pixels, that images are downscaled to before they are sent to a vision model.
      */
-    public List<String> fetchAndEncodeImages(List<String> imageUrls) {
-        List<String> encodedImages = new ArrayList<>();
-
-        for (String matrixUrl : imageUrls) {
-            try {
-                String base64Data = fetchImageAsBase64(matrixUrl);
-                if (base64Data != null) {
-                    // Determine MIME type (assume JPEG for now, could be enhanced)
-                    String mimeType = "image/jpeg";
-                    if (matrixUrl.toLowerCase().contains(".png")) {
-                        mimeType = "image/png";
-                    } else if (matrixUrl.toLowerCase().contains(".gif")) {
-                        mimeType = "image/gif";
-                    }
-                    encodedImages.add("data:" + mimeType + ";base64," + base64Data);
-                    System.out.println("Successfully fetched and encoded image " + matrixUrl);
-                } else {
-                    System.out.println("Skipped image " + matrixUrl + " (size limit or other issue)");
+    public void setMaxEdge(int maxEdge) {
+        this.maxEdge = Math.max(64, maxEdge);
+    }
+
+    /**
+     * JPEG quality (0.0 to 1.0) used when re-encoding images.
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = Math.max(0.1f, Math.min(1.0f, jpegQuality));
+    }
+
+    /**
+     * Fetches one image, ready to send, together with its perceptual hash.
+     * Images ImageIO can decode are downscaled to the configured maximum edge and re-encoded as JPEG
+     * (the original bytes are kept if they are already small enough and smaller); others are sent
+     * as-is with the MIME type detected from their magic bytes.
+     * Returns null if the image could not be fetched or exceeds the size limit.
+     */
+    public FetchedImage fetchImage(String matrixUrl) {
+        try {
+            byte[] imageData = fetchImageBytes(matrixUrl);
+            if (imageData == null) {
+                System.out.println("Skipped image " + matrixUrl + " (size limit or other issue)");
+                return null;
+            }
+            String mimeType = detectMimeType(imageData);
+            BufferedImage decoded = decode(matrixUrl, imageData);
+            Long hash = decoded != null ? PerceptualHashIndex.dHash(decoded) : null;
+
+            byte[] payload = imageData;
+            if (decoded != null) {
+                boolean needsScaling = Math.max(decoded.getWidth(), decoded.getHeight()) > maxEdge;
+                byte[] reencoded = downscaleToJpeg(decoded, maxEdge, jpegQuality);
+                if (needsScaling || mimeType == null || reencoded.length < imageData.length) {
+                    payload = reencoded;
+                    mimeType = "image/jpeg";
                 }
-            } catch (Exception e) {
-                System.err.println("Failed to fetch image " + matrixUrl + ": " + e.getMessage());
-                // Continue with other images
             }
+            if (mimeType == null) {
+                mimeType = "image/jpeg";
+            }
+
+            System.out.println("Successfully fetched and encoded image " + matrixUrl + " ("
+                    + (imageData.length / 1024) + "KB -> " + (payload.length / 1024) + "KB " + mimeType + ")");
+            return new FetchedImage(payload, mimeType, hash);
+        } catch (Exception e) {
+            System.err.println("Failed to fetch image " + matrixUrl + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static BufferedImage decode(String matrixUrl, byte[] imageData) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(imageData));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not decode image " + matrixUrl + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * MIME type from the file signature, or null if it is not a recognised image format.
+     */
+    static String detectMimeType(byte[] data) {
+        if (startsWith(data, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(data, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return "image/png";
+        if (startsWith(data, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(data, 0, 'R', 'I', 'F', 'F') && startsWith(data, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+        if (startsWith(data, 0, 'B', 'M')) return "image/bmp";
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int... signature) {
+        if (data.length < offset + signature.length) return false;
+        for (int i = 0; i < signature.length; i++) {
+            if ((data[offset + i] & 0xFF) != signature[i]) return false;
         }
+        return true;
+    }
 
-        System.out.println("Fetched " + encodedImages.size() + " of " + imageUrls.size() + " images");
-        return encodedImages;
+    /**
+     * Scales the image so its longest edge is at most {@code maxEdge} (never up), flattens any
+     * transparency onto white, and encodes it as JPEG at the given quality.
+     */
+    static byte[] downscaleToJpeg(BufferedImage image, int maxEdge, float quality) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, (double) maxEdge / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        // Halve in steps so bilinear filtering does not skip pixels on large reductions
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        current = draw(current, targetWidth, targetHeight);
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(current, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
     }
 
-    private String fetchImageAsBase64(String matrixUrl) throws Exception {
+    private byte[] fetchImageBytes(String matrixUrl) throws Exception {
         // Convert Matrix media URL to thumbnail HTTP URL
         String fullUrl;
         if (matrixUrl.startsWith("mxc://")) {
@@ -113,6 +220,20 @@ public class ImageFetcher {
             return null;
         }
 
-        return Base64.getEncoder().encodeToString(imageData);
+        return imageData;
+    }
+
+    public static class FetchedImage {
+        /** Encoded image bytes as they should be sent. */
+        public final byte[] data;
+        public final String mimeType;
+        /** dHash of the decoded image, or null if it could not be decoded. */
+        public final Long perceptualHash;
+
+        public FetchedImage(byte[] data, String mimeType, Long perceptualHash) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.perceptualHash = perceptualHash;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming reader for /messages and /sync responses.
+ * Pages are read straight off the response stream with Jackson's {@link JsonParser}, keeping only the
+ * handful of fields history code uses, so a 1000-event page never exists as a String or a full tree.
+ */
+public class MatrixEventReader {
+    private final ObjectMapper mapper;
+
+    /**
+     * The fields of a room event that history, search and the event store look at.
+     */
+    public static class Event {
+        public String type;
+        public String eventId;
+        public String sender;
+        public long originServerTs;
+        public String body;
+        public String msgtype;
+        public String url;
+        public String filename;
+        // Target of an m.room.redaction, from the top level or (room version 11) the content
+        public String redacts;
+
+        public boolean isMessage() {
+            return "m.room.message".equals(type);
+        }
+
+        public boolean isRedaction() {
+            return "m.room.redaction".equals(type);
+        }
+    }
+
+    public static class MessagesPage {
+        public final List<Event> chunk = new ArrayList<>();
+        public String start;
+        public String end;
+    }
+
+    /**
+     * The parts of a /sync response the bot acts on. Room sections stay as trees because room
+     * handlers need their state, ephemeral and timeline blocks; everything else is skipped.
+     */
+    public static class SyncResponse {
+        public String nextBatch;
+        public final Map<String, JsonNode> invite = new LinkedHashMap<>();
+        public final Map<String, JsonNode> leave = new LinkedHashMap<>();
+        public final Map<String, JsonNode> join = new LinkedHashMap<>();
+    }
+
+    public MatrixEventReader(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Reads a /messages page and closes the stream.
+     */
+    public MessagesPage readMessages(InputStream in) throws IOException {
+        MessagesPage page = new MessagesPage();
+        try (JsonParser p = mapper.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) return page;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                switch (field) {
+                    case "chunk":
+                        if (value == JsonToken.START_ARRAY) {
+                            while (p.nextToken() == JsonToken.START_OBJECT) {
+                                page.chunk.add(readEvent(p));
+                            }
+                        } else {
+                            p.skipChildren();
+                        }
+                        break;
+                    case "start":
+                        page.start = scalar(p, value);
+                        break;
+                    case "end":
+                        page.end = scalar(p, value);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads a /sync response and closes the stream.
+     */
+    public SyncResponse readSync(InputStream in) throws IOException {
+        SyncResponse sync = new SyncResponse();
+        try (JsonParser p = mapper.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) return sync;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                if ("next_batch".equals(field)) {
+                    sync.nextBatch = scalar(p, value);
+                } else if ("rooms".equals(field) && value == JsonToken.START_OBJECT) {
+                    readRooms(p, sync);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        return sync;
+    }
+
+    /**
+     * Reads only next_batch from a /sync response, skipping the rest, and closes the stream.
+     */
+    public String readSyncToken(InputStream in) throws IOException {
+        String nextBatch = null;
+        try (JsonParser p = mapper.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) return null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                if ("next_batch".equals(field)) {
+                    nextBatch = scalar(p, value);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        return nextBatch;
+    }
+
+    /**
+     * Drains an error response body for logging.
+     */
+    public static String readError(HttpResponse<InputStream> response) {
+        try (InputStream in = response.body()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "(unreadable body: " + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Closes a response that will not be read so its connection can be reused.
+     */
+    public static void discard(HttpResponse<InputStream> response) {
+        try {
+            response.body().close();
+        } catch (IOException ignore) {
+            // ignore
+        }
+    }
+
+    private void readRooms(JsonParser p, SyncResponse sync) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String section = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            Map<String, JsonNode> target;
+            switch (section) {
+                case "invite":
+                    target = sync.invite;
+                    break;
+                case "leave":
+                    target = sync.leave;
+                    break;
+                case "join":
+                    target = sync.join;
+                    break;
+                default:
+                    target = null;
+            }
+            if (target == null || value != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String roomId = p.getCurrentName();
+                p.nextToken();
+                target.put(roomId, mapper.readTree(p));
+            }
+        }
+    }
+
+    private static Event readEvent(JsonParser p) throws IOException {
+        Event ev = new Event();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "type":
+                    ev.type = scalar(p, value);
+                    break;
+                case "event_id":
+                    ev.eventId = scalar(p, value);
+                    break;
+                case "sender":
+                    ev.sender = scalar(p, value);
+                    break;
+                case "origin_server_ts":
+                    ev.originServerTs = value.isScalarValue() ? p.getValueAsLong(0) : 0;
+                    p.skipChildren();
+                    break;
+                case "redacts":
+                    ev.redacts = scalar(p, value);
+                    break;
+                case "content":
+                    if (value == JsonToken.START_OBJECT) {
+                        readContent(p, ev);
+                    } else {
+                        p.skipChildren();
+                    }
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        return ev;
+    }
+
+    private static void readContent(JsonParser p, Event ev) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "body":
+                    ev.body = scalar(p, value);
+                    break;
+                case "msgtype":
+                    ev.msgtype = scalar(p, value);
+                    break;
+                case "url":
+                    ev.url = scalar(p, value);
+                    break;
+                case "filename":
+                    ev.filename = scalar(p, value);
+                    break;
+                case "redacts":
+                    if (ev.redacts == null) {
+                        ev.redacts = scalar(p, value);
+                    } else {
+                        p.skipChildren();
+                    }
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Text of a scalar value, matching {@code JsonNode.asText(null)}: null for JSON null, objects and arrays.
+     */
+    private static String scalar(JsonParser p, JsonToken value) throws IOException {
+        if (value.isStructStart()) {
+            p.skipChildren();
+            return null;
+        }
+        return p.getValueAsString(null);
+    }
+}
@@ -4,7 +4,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.commonmark.parser.Parser;
 import org.commonmark.renderer.html.HtmlRenderer;
 import java.net.http.HttpClient;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
@@ -15,30 +19,60 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.nio.file.Path;
 
 /**
  * Global message queue for all Matrix message operations.
  * This ensures that messages are not lost due to temporary Matrix failures or rate limiting.
  * Messages are queued and flushed at regular intervals to avoid rate limiting.
+ * Each room is flushed in order on its own lane, rooms in parallel, and a room whose send fails backs off
+ * exponentially (or for as long as the homeserver asks) before it is retried.
+ * Pending edits of the same event are coalesced so only the latest content is sent, and edits of one event are
+ * spaced at least {@link #EDIT_INTERVAL_MS} apart; other messages to the room are not held up by them.
+ * Queued messages are also written to a write-ahead log, so a restart resends them instead of dropping them.
  */
 public class MatrixMessageQueue {
     private static final long FLUSH_INTERVAL_MS = 5000; // 5 seconds between flushes
-    private static final long MAX_QUEUE_AGE_MS = 30000; // 30 seconds max age before forced flush
     private static final int MAX_RETRIES = Integer.MAX_VALUE; // Always retry
+    private static final String LOG_FILE = "message_queue.wal";
+    private static final long EDIT_INTERVAL_MS = 1000; // Minimum time between edits sent for one event
+    private static final int FLUSH_THREADS = 4; // Rooms flushed in parallel
+    private static final int MAX_IN_FLIGHT = 4; // Send requests in flight across all rooms
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 300000;
     
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final String accessToken;
     private final ScheduledExecutorService scheduler;
+    private final ExecutorService flushExecutor;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
     private final AtomicBoolean isRunning;
+    private final MessageQueueLog log; // null if the log could not be opened
     
     // Queue structure: roomId -> List of QueuedMessage
     private final ConcurrentMap<String, List<QueuedMessage>> messageQueues;
+    private final ConcurrentMap<String, Long> lastEditTimes = new ConcurrentHashMap<>(); // By edited event ID
+    private final ConcurrentMap<String, Boolean> scheduledFlushes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RoomLane> lanes = new ConcurrentHashMap<>();
+    
+    /**
+     * Flush and backoff state of one room
+     */
+    private static class RoomLane {
+        final AtomicBoolean flushing = new AtomicBoolean(false);
+        final AtomicBoolean flushAgain = new AtomicBoolean(false);
+        volatile int failures;
+        volatile long nextAttemptTime; // No sends to the room before this
+        volatile long retryAfterMs; // Wait requested by the homeserver on the last failure, or 0
+    }
     
     public static class QueuedMessage {
         final String roomId;
@@ -49,9 +83,15 @@ public class MatrixMessageQueue {
         final boolean isUpdate; // Whether this is an update to existing message
         int retryCount;
         final long createdTime;
+        long id; // Write-ahead log ID
         
         QueuedMessage(String roomId, String message, String msgType, boolean useMarkdown, 
                      String originalEventId, boolean isUpdate) {
+            this(roomId, message, msgType, useMarkdown, originalEventId, isUpdate, System.currentTimeMillis());
+        }
+        
+        QueuedMessage(String roomId, String message, String msgType, boolean useMarkdown, 
+                     String originalEventId, boolean isUpdate, long createdTime) {
             this.roomId = roomId;
             this.message = message;
             this.msgType = msgType;
@@ -59,11 +99,7 @@ public class MatrixMessageQueue {
             this.originalEventId = originalEventId;
             this.isUpdate = isUpdate;
             this.retryCount = 0;
-            this.createdTime = System.currentTimeMillis();
-        }
-        
-        boolean shouldForceFlush() {
-            return System.currentTimeMillis() - createdTime > MAX_QUEUE_AGE_MS;
+            this.createdTime = createdTime;
         }
     }
     
@@ -102,17 +138,38 @@ public class MatrixMessageQueue {
         this.accessToken = accessToken;
         this.messageQueues = new ConcurrentHashMap<>();
         this.isRunning = new AtomicBoolean(true);
+        this.log = openLog(mapper);
+        if (log != null) {
+            for (QueuedMessage message : log.pendingMessages()) {
+                messageQueues.computeIfAbsent(message.roomId, k -> new ArrayList<>()).add(message);
+            }
+        }
         this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
             Thread t = new Thread(r, "MatrixMessageQueue-Flusher");
             t.setDaemon(true);
             return t;
         });
         
+        this.flushExecutor = Executors.newFixedThreadPool(FLUSH_THREADS, r -> {
+            Thread t = new Thread(r, "MatrixMessageQueue-Lane");
+            t.setDaemon(true);
+            return t;
+        });
+        
         // Schedule periodic flushing
         this.scheduler.scheduleAtFixedRate(this::flushAll, FLUSH_INTERVAL_MS, 
                                               FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
     
+    private static MessageQueueLog openLog(ObjectMapper mapper) {
+        try {
+            return MessageQueueLog.open(Path.of(LOG_FILE), mapper);
+        } catch (Exception e) {
+            System.err.println("Failed to open message queue log, queued messages will not survive a restart: " + e.getMessage());
+            return null;
+        }
+    }
+    
     /**
      * Send a new notice message, queuing if necessary
      */
@@ -174,6 +231,19 @@ public class MatrixMessageQueue {
      */
     private String sendMessage(String roomId, String message, String msgType, 
                                boolean useMarkdown, String originalEventId, boolean isUpdate) {
+        // An edit must not overtake a queued edit of the same event, nor exceed that event's edit rate
+        if (isUpdate && (hasPendingEdit(roomId, originalEventId) || editDelay(originalEventId) > 0)) {
+            queueMessage(new QueuedMessage(roomId, message, msgType, useMarkdown, originalEventId, isUpdate));
+            scheduleFlush(roomId, editDelay(originalEventId));
+            return null;
+        }
+        
+        // Don't hit the homeserver while the room is backing off
+        if (System.currentTimeMillis() < lane(roomId).nextAttemptTime) {
+            queueMessage(new QueuedMessage(roomId, message, msgType, useMarkdown, originalEventId, isUpdate));
+            return null;
+        }
+        
         // Try to send immediately first
         String result = trySendImmediately(roomId, message, msgType, useMarkdown, originalEventId, isUpdate);
         
@@ -214,8 +284,15 @@ public class MatrixMessageQueue {
      */
     private String trySendImmediately(String roomId, String message, String msgType, 
                                      boolean useMarkdown, String originalEventId, boolean isUpdate) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
         try {
             if (isUpdate && originalEventId != null && !originalEventId.isEmpty()) {
+                lastEditTimes.put(originalEventId, System.currentTimeMillis());
                 return sendUpdateRequest(roomId, message, msgType, useMarkdown, originalEventId);
             } else {
                 return sendNewMessageRequest(roomId, message, msgType, useMarkdown);
@@ -223,6 +300,8 @@ public class MatrixMessageQueue {
         } catch (Exception e) {
             System.out.println("Matrix message send failed, queuing for retry: " + e.getMessage());
             return null;
+        } finally {
+            inFlight.release();
         }
     }
     
@@ -261,6 +340,7 @@ public class MatrixMessageQueue {
                 return root.path("event_id").asText(null);
             }
             System.out.println("Matrix send message -> " + response.statusCode());
+            noteRetryAfter(roomId, response);
             return null;
         } catch (Exception e) {
             System.out.println("Failed to send Matrix message: " + e.getMessage());
@@ -319,6 +399,7 @@ public class MatrixMessageQueue {
                 com.fasterxml.jackson.databind.JsonNode root = mapper.readTree(response.body());
                 return root.path("event_id").asText(null);
             }
+            noteRetryAfter(roomId, response);
             return null;
         } catch (Exception e) {
             System.out.println("Failed to update Matrix message " + originalEventId + ": " + e.getMessage());
@@ -326,63 +407,265 @@ public class MatrixMessageQueue {
         }
     }
     
+    /**
+     * Remember how long the homeserver asked us to wait, from the Retry-After header or retry_after_ms
+     */
+    private void noteRetryAfter(String roomId, java.net.http.HttpResponse<String> response) {
+        long waitMs = retryAfterMs(response.headers().firstValue("Retry-After").orElse(null), response.body(), mapper);
+        if (waitMs <= 0) return;
+        RoomLane lane = lane(roomId);
+        lane.retryAfterMs = waitMs;
+        lane.nextAttemptTime = Math.max(lane.nextAttemptTime, System.currentTimeMillis() + waitMs);
+    }
+    
+    /**
+     * Requested wait in milliseconds, or 0 if the response doesn't say.
+     * Retry-After may be delay-seconds or an HTTP date; the Matrix error body may carry retry_after_ms.
+     */
+    static long retryAfterMs(String retryAfterHeader, String body, ObjectMapper mapper) {
+        if (retryAfterHeader != null && !retryAfterHeader.isBlank()) {
+            String value = retryAfterHeader.trim();
+            try {
+                return Math.max(0, Long.parseLong(value) * 1000);
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime until = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, until.toInstant().toEpochMilli() - System.currentTimeMillis());
+                } catch (Exception ignored) {
+                    // Fall through to the body
+                }
+            }
+        }
+        if (body != null && !body.isEmpty()) {
+            try {
+                return Math.max(0, mapper.readTree(body).path("retry_after_ms").asLong(0));
+            } catch (Exception ignored) {
+                // Not JSON
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Exponential backoff with equal jitter: half the capped exponential delay is fixed, half is random
+     *
+     * @param jitter uniform random value in [0, 1)
+     */
+    static long backoffDelayMs(int failures, double jitter) {
+        long exponential = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(Math.max(failures - 1, 0), 20));
+        return exponential / 2 + (long) (exponential / 2 * jitter);
+    }
+    
+    private RoomLane lane(String roomId) {
+        return lanes.computeIfAbsent(roomId, k -> new RoomLane());
+    }
+    
     /**
      * Add a message to the queue
      */
     private void queueMessage(QueuedMessage message) {
-        messageQueues.computeIfAbsent(message.roomId, k -> new ArrayList<>()).add(message);
+        if (log != null) {
+            try {
+                log.append(message);
+            } catch (Exception e) {
+                System.err.println("Failed to write queued message to log: " + e.getMessage());
+            }
+        }
+        List<QueuedMessage> messages = messageQueues.computeIfAbsent(message.roomId, k -> new ArrayList<>());
+        QueuedMessage superseded;
+        synchronized (messages) {
+            superseded = enqueue(messages, message);
+        }
+        if (superseded != null) {
+            if (log != null) {
+                try {
+                    log.ack(superseded);
+                } catch (Exception e) {
+                    System.err.println("Failed to acknowledge superseded edit in log: " + e.getMessage());
+                }
+            }
+            System.out.println("Coalesced queued edit of " + message.originalEventId + " in " + message.roomId);
+            return;
+        }
         System.out.println("Queued message for " + message.roomId + ": " + 
                           message.message.substring(0, Math.min(100, message.message.length())));
     }
     
+    /**
+     * Adds the message to a room's queue, or replaces a queued edit of the same event with it.
+     * Returns the edit it replaced, or null.
+     */
+    static QueuedMessage enqueue(List<QueuedMessage> messages, QueuedMessage message) {
+        int index = message.isUpdate ? indexOfEdit(messages, message.originalEventId) : -1;
+        if (index >= 0) {
+            // Only the latest content of an edit matters; keep the older edit's place in line
+            return messages.set(index, message);
+        }
+        messages.add(message);
+        return null;
+    }
+    
+    static int indexOfEdit(List<QueuedMessage> messages, String originalEventId) {
+        for (int i = 0; i < messages.size(); i++) {
+            QueuedMessage queued = messages.get(i);
+            if (queued.isUpdate && queued.originalEventId != null && queued.originalEventId.equals(originalEventId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private boolean hasPendingEdit(String roomId, String originalEventId) {
+        List<QueuedMessage> messages = messageQueues.get(roomId);
+        if (messages == null) return false;
+        synchronized (messages) {
+            return indexOfEdit(messages, originalEventId) >= 0;
+        }
+    }
+    
+    /**
+     * Milliseconds until another edit of the event may be sent
+     */
+    private long editDelay(String originalEventId) {
+        if (originalEventId == null) return 0;
+        Long last = lastEditTimes.get(originalEventId);
+        long delay = editDelayMs(last, System.currentTimeMillis());
+        if (last != null && delay == 0) {
+            // Forget events that are no longer being edited
+            lastEditTimes.remove(originalEventId, last);
+        }
+        return delay;
+    }
+    
+    static long editDelayMs(Long lastEditTime, long now) {
+        if (lastEditTime == null) return 0;
+        return Math.max(0, lastEditTime + EDIT_INTERVAL_MS - now);
+    }
+    
+    /**
+     * Flush a room sooner than the next periodic flush, once per pending request
+     */
+    private void scheduleFlush(String roomId, long delayMs) {
+        if (!isRunning.get() || scheduledFlushes.putIfAbsent(roomId, Boolean.TRUE) != null) return;
+        try {
+            scheduler.schedule(() -> {
+                scheduledFlushes.remove(roomId);
+                submitFlush(roomId);
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduledFlushes.remove(roomId);
+        }
+    }
+    
     /**
      * Flush all queued messages
      */
     private void flushAll() {
         if (!isRunning.get()) return;
         
+        // An edit's entry is otherwise only dropped if that event is edited again after its interval
+        long now = System.currentTimeMillis();
+        lastEditTimes.entrySet().removeIf(entry -> editDelayMs(entry.getValue(), now) == 0);
+        
         for (String roomId : messageQueues.keySet()) {
-            flushRoom(roomId);
+            submitFlush(roomId);
         }
     }
     
     /**
-     * Flush messages for a specific room
+     * Hand a room to the flush lanes unless it is backing off. A room is only ever flushed by one
+     * thread at a time, so its messages go out in order.
      */
-    private void flushRoom(String roomId) {
-        List<QueuedMessage> messages = messageQueues.get(roomId);
-        if (messages == null || messages.isEmpty()) {
+    private void submitFlush(String roomId) {
+        if (!isRunning.get()) return;
+        RoomLane lane = lane(roomId);
+        if (System.currentTimeMillis() < lane.nextAttemptTime) return;
+        if (!lane.flushing.compareAndSet(false, true)) {
+            lane.flushAgain.set(true);
+            return;
+        }
+        try {
+            flushExecutor.execute(() -> {
+                try {
+                    flushRoom(roomId, lane);
+                } finally {
+                    lane.flushing.set(false);
+                    if (lane.flushAgain.getAndSet(false)) {
+                        submitFlush(roomId);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lane.flushing.set(false);
+        }
+    }
+    
+    /**
+     * Flush messages for a specific room, stopping at the first failure
+     */
+    private void flushRoom(String roomId, RoomLane lane) {
+        List<QueuedMessage> queue = messageQueues.get(roomId);
+        if (queue == null) {
             return;
         }
+        List<QueuedMessage> messages;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            messages = new ArrayList<>(queue);
+        }
         
         List<QueuedMessage> successfulMessages = new ArrayList<>();
-        List<QueuedMessage> failedMessages = new ArrayList<>();
         
         for (QueuedMessage message : messages) {
+            if (!isRunning.get()) break;
+            if (message.isUpdate) {
+                long delay = editDelay(message.originalEventId);
+                if (delay > 0) {
+                    // Only this event's edit waits; it is the only queued edit of the event
+                    scheduleFlush(roomId, delay);
+                    continue;
+                }
+            }
             if (trySendWithRetry(message)) {
                 successfulMessages.add(message);
+                lane.failures = 0;
             } else {
-                // Check if message is too old and should be forced
-                if (message.shouldForceFlush()) {
-                    System.out.println("Forcing send of old message after " + 
-                                      (System.currentTimeMillis() - message.createdTime) + "ms");
-                    if (trySendWithRetry(message)) {
-                        successfulMessages.add(message);
-                    } else {
-                        failedMessages.add(message);
-                    }
-                } else {
-                    failedMessages.add(message);
-                }
+                // Later messages wait behind this one so the room stays in order
+                backOff(roomId, lane);
+                break;
             }
         }
         
-        // Update the queue: remove successful, keep failed
-        if (!successfulMessages.isEmpty() || failedMessages.size() != messages.size()) {
-            messageQueues.put(roomId, failedMessages);
+        // Update the queue: remove successful, keep failed and any queued meanwhile
+        if (!successfulMessages.isEmpty()) {
+            synchronized (queue) {
+                queue.removeAll(successfulMessages);
+            }
+            if (log != null) {
+                for (QueuedMessage message : successfulMessages) {
+                    try {
+                        log.ack(message);
+                    } catch (Exception e) {
+                        System.err.println("Failed to acknowledge sent message in log: " + e.getMessage());
+                    }
+                }
+            }
         }
     }
     
+    private void backOff(String roomId, RoomLane lane) {
+        int failures = ++lane.failures;
+        long delay = lane.retryAfterMs > 0
+                ? lane.retryAfterMs
+                : backoffDelayMs(failures, ThreadLocalRandom.current().nextDouble());
+        lane.retryAfterMs = 0;
+        lane.nextAttemptTime = System.currentTimeMillis() + delay;
+        System.out.println("Backing off " + roomId + " for " + delay + "ms after " + failures + " failed attempts");
+        scheduleFlush(roomId, delay);
+    }
+    
     /**
      * Try to send a message with retry logic
      */
@@ -408,7 +691,9 @@ public class MatrixMessageQueue {
     public int getQueueSize() {
         int total = 0;
         for (List<QueuedMessage> messages : messageQueues.values()) {
-            total += messages.size();
+            synchronized (messages) {
+                total += messages.size();
+            }
         }
         return total;
     }
@@ -418,7 +703,10 @@ public class MatrixMessageQueue {
      */
     public boolean hasQueuedMessages(String roomId) {
         List<QueuedMessage> messages = messageQueues.get(roomId);
-        return messages != null && !messages.isEmpty();
+        if (messages == null) return false;
+        synchronized (messages) {
+            return !messages.isEmpty();
+        }
     }
     
     /**
@@ -439,19 +727,27 @@ public class MatrixMessageQueue {
     }
     
     /**
-     * Shutdown the queue
+     * Shutdown the queue. Unsent messages stay in the log and are resent by the next instance.
      */
     public void shutdown() {
         isRunning.set(false);
+        flushExecutor.shutdown();
         scheduler.shutdown();
         try {
             if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
                 scheduler.shutdownNow();
             }
+            if (!flushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                flushExecutor.shutdownNow();
+            }
         } catch (InterruptedException e) {
             scheduler.shutdownNow();
+            flushExecutor.shutdownNow();
             Thread.currentThread().interrupt();
         }
         messageQueues.clear();
+        if (log != null) {
+            log.close();
+        }
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.robomwm.ai.matrixrobobot;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -12,7 +13,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -20,11 +20,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * Architecture:
  * - MatrixRobobot: Sync loop, !last command, room management
+ * - SyncPipeline: Ordered per-room handling of /sync batches off the sync thread
  * - MatrixClient: Matrix protocol HTTP interactions
+ * - MatrixEventReader: Streaming parser for /messages and /sync responses
  * - RoomHistoryManager: Chat history fetching and pagination
+ * - RoomEventStore: Local on-disk message history fed by /sync
  * - LastMessageService: !last command implementation
  * - RoomManagementService: Join/leave/cleanup logic
  * - CommandDispatcher: Routing for other commands (export, search, etc.)
+ * - CommandExecutor: Bounded per-user/global execution of command work
  */
 
 public class MatrixRobobot {
@@ -49,6 +53,12 @@ public class MatrixRobobot {
         public java.util.List<String> ollamaProxyModels;
         public String imageCaptionBackend;
         public String imageCaptionModel;
+        public java.util.Map<String, Integer> aiConcurrencyLimits;
+        public Integer historyFetchParallelism;
+        public Integer imageMaxEdge;
+        public Double imageJpegQuality;
+        public Integer hedgeDelaySeconds;
+        public Boolean logsFirstPrompts;
     }
 
     private static final Map<String, AtomicBoolean> runningOperations = new ConcurrentHashMap<>();
@@ -71,45 +81,68 @@ public class MatrixRobobot {
                 .followRedirects(HttpClient.Redirect.NORMAL)
                 .build();
         ObjectMapper mapper = new ObjectMapper();
+        AIRequestQueue.configure(config.aiConcurrencyLimits);
 
         // Initialize services
         MatrixClient matrixClient = new MatrixClient(client, mapper, url, config.accessToken);
         RoomHistoryManager historyManager = new RoomHistoryManager(client, mapper, url, config.accessToken);
+        RoomEventStore eventStore = new RoomEventStore(client, mapper, url, config.accessToken);
+        historyManager.setEventStore(eventStore);
+        if (config.historyFetchParallelism != null) {
+            historyManager.setFetchParallelism(config.historyFetchParallelism);
+        }
         LastMessageService lastMessageService = new LastMessageService(matrixClient, historyManager);
         RoomManagementService roomMgmt = new RoomManagementService(matrixClient, client, mapper, url,
                 config.accessToken);
         TextSearchService textSearchService = new TextSearchService(matrixClient, historyManager, client, mapper, url,
                 config, runningOperations);
-        AIService aiService = new AIService(client, mapper, url, config.accessToken, config.arliApiKey,
+        AIService aiService = new AIService(client, mapper, url, config.accessToken, historyManager, config.arliApiKey,
                 config.cerebrasApiKey, config.groqApiKey, config.openrouterApiKey, config.freeLlmApiKey,
                 config.ollamaProxyApiKey, config.ollamaProxyUrl,
                 config.arliModels, config.cerebrasModels, config.groqModels, config.openrouterModels, 
                 config.freeLlmModels, config.ollamaProxyModels);
         ImageFetcher imageFetcher = new ImageFetcher(client, mapper, url, config.accessToken);
+        if (config.imageMaxEdge != null) {
+            imageFetcher.setMaxEdge(config.imageMaxEdge);
+        }
+        if (config.imageJpegQuality != null) {
+            imageFetcher.setJpegQuality(config.imageJpegQuality.floatValue());
+        }
         VisionAIService visionAIService;
         if ("OLLAMA".equalsIgnoreCase(config.imageCaptionBackend) || "OLLAMA_PROXY".equalsIgnoreCase(config.imageCaptionBackend)) {
-            visionAIService = new OllamaVisionAIService(client, mapper, url, config.accessToken,
+            visionAIService = new OllamaVisionAIService(client, mapper, url, config.accessToken, historyManager,
                     config.arliApiKey, config.groqApiKey, config.openrouterApiKey, config.freeLlmApiKey,
                     config.ollamaProxyApiKey, config.ollamaProxyUrl, imageFetcher, config.imageCaptionModel,
                     config.arliModels, config.cerebrasModels, config.groqModels, config.openrouterModels,
                     config.freeLlmModels, config.ollamaProxyModels);
         } else {
-            visionAIService = new VisionAIService(client, mapper, url, config.accessToken,
+            visionAIService = new VisionAIService(client, mapper, url, config.accessToken, historyManager,
                     config.arliApiKey, config.groqApiKey, config.openrouterApiKey, config.freeLlmApiKey,
                     config.ollamaProxyApiKey, config.ollamaProxyUrl, imageFetcher,
                     config.arliModels, config.cerebrasModels, config.groqModels, config.openrouterModels,
                     config.freeLlmModels, config.ollamaProxyModels);
         }
+        if (config.hedgeDelaySeconds != null) {
+            aiService.setHedgeDelaySeconds(config.hedgeDelaySeconds);
+            visionAIService.setHedgeDelaySeconds(config.hedgeDelaySeconds);
+        }
+        if (config.logsFirstPrompts != null) {
+            aiService.setLogsFirstPrompts(config.logsFirstPrompts);
+            visionAIService.setLogsFirstPrompts(config.logsFirstPrompts);
+        }
         SemanticSearchService semanticSearchService = new SemanticSearchService(client, mapper, url,
-                config.accessToken);
+                config.accessToken, historyManager);
+        eventStore.setRedactionListener(semanticSearchService::forgetMessage);
         TimezoneService timezoneService = new TimezoneService(mapper);
+        CommandExecutor commandExecutor = new CommandExecutor(matrixClient, runningOperations);
         CommandDispatcher dispatcher = new CommandDispatcher(client, mapper, url, config.accessToken,
                 config.commandRoomId, config.exportRoomId, historyManager, runningOperations, textSearchService,
-                aiService, visionAIService, semanticSearchService, timezoneService, config.arliApiKey);
+                aiService, visionAIService, semanticSearchService, timezoneService, config.arliApiKey, commandExecutor);
 
         // NEW: AutoLastService with explicit HttpClient passed
         AutoLastService autoLastService = new AutoLastService(matrixClient, lastMessageService, aiService,
-                timezoneService, historyManager, client, mapper, url, config.accessToken, config.commandRoomId);
+                timezoneService, historyManager, client, mapper, url, config.accessToken, config.commandRoomId,
+                commandExecutor);
         
         // NEW: PleadService for 🥺 reactions
         PleadService pleadService = new PleadService(matrixClient);
@@ -128,6 +161,100 @@ public class MatrixRobobot {
 
         roomMgmt.cleanupAbandonedDMs(config.commandRoomId, config.exportRoomId);
 
+        SyncPipeline syncPipeline = new SyncPipeline(256, 4, batch -> {
+            String roomId = batch.roomId;
+            JsonNode roomNode = batch.roomNode;
+            switch (batch.type) {
+                case INVITE:
+                    System.out.println("Invited to room: " + roomId);
+                    roomMgmt.handleInvitedRoom(roomId);
+                    return;
+                case LEAVE:
+                    System.out.println("User left room: " + roomId);
+                    roomMgmt.handleUserLeftRoom(roomId, config.commandRoomId, config.exportRoomId);
+                    return;
+                default:
+                    break;
+            }
+
+            // NEW: Process Ephemeral Events (Read Receipts)
+            JsonNode ephemeralEvents = roomNode.path("ephemeral").path("events");
+            autoLastService.processEphemeralEvents(roomId, ephemeralEvents, config.exportRoomId);
+
+            JsonNode timelineNode = roomNode.path("timeline");
+            String prevBatch = timelineNode.path("prev_batch").asText(null);
+            JsonNode timeline = timelineNode.path("events");
+
+            // Keep the local history store current before handling commands
+            eventStore.recordTimeline(roomId, timelineNode);
+
+            if (timeline.isArray()) {
+                for (JsonNode ev : timeline) {
+                    if (!"m.room.message".equals(ev.path("type").asText(null)))
+                        continue;
+
+                    String body = ev.path("content").path("body").asText(null);
+                    String sender = ev.path("sender").asText(null);
+                    if (body == null)
+                        continue;
+
+                    String eventId = ev.path("event_id").asText(null);
+                    String msgtype = ev.path("content").path("msgtype").asText(null);
+                    String trimmed = body.trim();
+                    String responseRoomId = roomId;
+
+                    if (userId != null && userId.equals(sender))
+                        continue;
+                    
+                    // Process emojis via PleadService
+                    pleadService.processMessage(roomId, eventId, body, sender);
+                    
+                    // Process consecutive "ok" messages
+                    okReactionService.processMessage(roomId, eventId, body, sender, msgtype);
+
+                    // PRIMARY: !last command
+                    if ("!last".equals(trimmed)) {
+                        System.out.println("Received !last command in " + roomId + " from " + sender);
+                        final String finalSender = sender;
+                        commandExecutor.submit("!last", finalSender, responseRoomId,
+                                () -> lastMessageService.sendLastMessageAndReadReceipt(config.exportRoomId,
+                                        finalSender, responseRoomId));
+                    }
+                    // NEW: !autolast command
+                    else if (trimmed.startsWith("!autolast")) {
+                        System.out.println("Received !autolast command from " + sender);
+                        boolean isPublic = trimmed.contains("public");
+                        autoLastService.toggleAutoLast(sender, responseRoomId, isPublic);
+                    }
+                    // NEW: !autotldr command
+                    else if (trimmed.startsWith("!autotldr")) {
+                        System.out.println("Received !autotldr command from " + sender);
+                        boolean isPublic = trimmed.contains("public");
+                        autoLastService.toggleAutoTldr(sender, responseRoomId, isPublic);
+                    }
+                    // NEW: !plead command
+                    else if ("!plead".equals(trimmed)) {
+                        System.out.println("Received !plead command from " + sender);
+                        pleadService.togglePlead(responseRoomId);
+                    }
+                    // !ping for diagnostics
+                    else if ("!ping".equals(trimmed)) {
+                        System.out.println("Received !ping command in " + roomId + " from " + sender);
+                        long messageTimestamp = ev.path("origin_server_ts").asLong(System.currentTimeMillis());
+                        long latencyMs = System.currentTimeMillis() - messageTimestamp;
+                        matrixClient.sendText(responseRoomId, "Pong! (ping took " + latencyMs + " ms)\n"
+                                + AIRequestQueue.formatStats());
+                    }
+                    // All other commands
+                    else {
+                        dispatcher.dispatchCommand(trimmed, roomId, sender, prevBatch, responseRoomId,
+                                config.exportRoomId);
+                    }
+                }
+            }
+        });
+
+        MatrixEventReader syncReader = new MatrixEventReader(mapper);
         long currentSleepMs = 2000;
         final long initialBackoffMs = 60000;
         final long maxBackoffMs = 300000;
@@ -149,111 +276,28 @@ public class MatrixRobobot {
                         .GET()
                         .build();
 
-                HttpResponse<String> syncResp = client.send(syncReq, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> syncResp = client.send(syncReq, HttpResponse.BodyHandlers.ofInputStream());
                 if (syncResp.statusCode() != 200) {
                     System.out.println("/sync returned: " + syncResp.statusCode());
+                    MatrixEventReader.discard(syncResp);
                     Thread.sleep(2000);
                     continue;
                 }
 
-                JsonNode root = mapper.readTree(syncResp.body());
-                since = root.path("next_batch").asText(since);
-
-                // Handle invites
-                JsonNode inviteRooms = root.path("rooms").path("invite");
-                Iterator<String> inviteRoomIds = inviteRooms.fieldNames();
-                while (inviteRoomIds.hasNext()) {
-                    String roomId = inviteRoomIds.next();
-                    System.out.println("Invited to room: " + roomId);
-                    roomMgmt.handleInvitedRoom(roomId);
+                MatrixEventReader.SyncResponse sync = syncReader.readSync(syncResp.body());
+                if (sync.nextBatch != null) {
+                    since = sync.nextBatch;
                 }
 
-                // Handle leaves
-                JsonNode leaveRooms = root.path("rooms").path("leave");
-                Iterator<String> leaveRoomIds = leaveRooms.fieldNames();
-                while (leaveRoomIds.hasNext()) {
-                    String roomId = leaveRoomIds.next();
-                    System.out.println("User left room: " + roomId);
-                    roomMgmt.handleUserLeftRoom(roomId, config.commandRoomId, config.exportRoomId);
+                // Hand everything else to the room workers so the next long-poll starts right away
+                for (Map.Entry<String, JsonNode> room : sync.invite.entrySet()) {
+                    syncPipeline.submit(new SyncPipeline.RoomBatch(room.getKey(), SyncPipeline.BatchType.INVITE, room.getValue()));
                 }
-
-                // Process rooms
-                JsonNode rooms = root.path("rooms").path("join");
-                Iterator<String> roomIds = rooms.fieldNames();
-                while (roomIds.hasNext()) {
-                    String roomId = roomIds.next();
-                    JsonNode roomNode = rooms.path(roomId);
-
-                    // NEW: Process Ephemeral Events (Read Receipts)
-                    JsonNode ephemeralEvents = roomNode.path("ephemeral").path("events");
-                    autoLastService.processEphemeralEvents(roomId, ephemeralEvents, config.exportRoomId);
-
-                    JsonNode timelineNode = roomNode.path("timeline");
-                    String prevBatch = timelineNode.path("prev_batch").asText(null);
-                    JsonNode timeline = timelineNode.path("events");
-
-                    if (timeline.isArray()) {
-                        for (JsonNode ev : timeline) {
-                            if (!"m.room.message".equals(ev.path("type").asText(null)))
-                                continue;
-
-                            String body = ev.path("content").path("body").asText(null);
-                            String sender = ev.path("sender").asText(null);
-                            if (body == null)
-                                continue;
-
-                            String eventId = ev.path("event_id").asText(null);
-                            String msgtype = ev.path("content").path("msgtype").asText(null);
-                            String trimmed = body.trim();
-                            String responseRoomId = roomId;
-
-                            if (userId != null && userId.equals(sender))
-                                continue;
-                            
-                            // Process emojis via PleadService
-                            pleadService.processMessage(roomId, eventId, body, sender);
-                            
-                            // Process consecutive "ok" messages
-                            okReactionService.processMessage(roomId, eventId, body, sender, msgtype);
-
-                            // PRIMARY: !last command
-                            if ("!last".equals(trimmed)) {
-                                System.out.println("Received !last command in " + roomId + " from " + sender);
-                                final String finalSender = sender;
-                                new Thread(() -> lastMessageService.sendLastMessageAndReadReceipt(config.exportRoomId,
-                                        finalSender, responseRoomId)).start();
-                            }
-                            // NEW: !autolast command
-                            else if (trimmed.startsWith("!autolast")) {
-                                System.out.println("Received !autolast command from " + sender);
-                                boolean isPublic = trimmed.contains("public");
-                                autoLastService.toggleAutoLast(sender, responseRoomId, isPublic);
-                            }
-                            // NEW: !autotldr command
-                            else if (trimmed.startsWith("!autotldr")) {
-                                System.out.println("Received !autotldr command from " + sender);
-                                boolean isPublic = trimmed.contains("public");
-                                autoLastService.toggleAutoTldr(sender, responseRoomId, isPublic);
-                            }
-                            // NEW: !plead command
-                            else if ("!plead".equals(trimmed)) {
-                                System.out.println("Received !plead command from " + sender);
-                                pleadService.togglePlead(responseRoomId);
-                            }
-                            // !ping for diagnostics
-                            else if ("!ping".equals(trimmed)) {
-                                System.out.println("Received !ping command in " + roomId + " from " + sender);
-                                long messageTimestamp = ev.path("origin_server_ts").asLong(System.currentTimeMillis());
-                                long latencyMs = System.currentTimeMillis() - messageTimestamp;
-                                matrixClient.sendText(responseRoomId, "Pong! (ping took " + latencyMs + " ms)");
-                            }
-                            // All other commands
-                            else {
-                                dispatcher.dispatchCommand(trimmed, roomId, sender, prevBatch, responseRoomId,
-                                        config.exportRoomId);
-                            }
-                        }
-                    }
+                for (Map.Entry<String, JsonNode> room : sync.leave.entrySet()) {
+                    syncPipeline.submit(new SyncPipeline.RoomBatch(room.getKey(), SyncPipeline.BatchType.LEAVE, room.getValue()));
+                }
+                for (Map.Entry<String, JsonNode> room : sync.join.entrySet()) {
+                    syncPipeline.submit(new SyncPipeline.RoomBatch(room.getKey(), SyncPipeline.BatchType.JOIN, room.getValue()));
                 }
                 currentSleepMs = 2000; // Reset backoff on success
 
@@ -0,0 +1,192 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead log for {@link MatrixMessageQueue}.
+ * Every queued message is appended as an "enqueue" JSON line before it is held in memory, and an
+ * "ack" line is appended once it has been sent. Enqueues are fsynced with group commit: a writer
+ * that finds another thread already syncing waits for it, and that sync usually covers both.
+ * Acks are not synced on their own, so after a crash a message may be sent twice but is never
+ * lost. On open, the log is replayed to recover unacknowledged messages; once acknowledged
+ * records dominate, the log is rewritten with only the pending ones.
+ */
+final class MessageQueueLog {
+    private static final int COMPACT_MIN_ACKS = 64;
+
+    private final Path file;
+    private final ObjectMapper mapper;
+    private FileChannel channel;
+    private final Map<Long, MatrixMessageQueue.QueuedMessage> pending = new LinkedHashMap<>();
+    private long nextId = 1;
+    private long records;
+
+    private final Object syncLock = new Object();
+    private long writtenSeq;
+    private long syncedSeq;
+    private long compactedSeq; // Records up to here are durable in the current file
+
+    private MessageQueueLog(Path file, ObjectMapper mapper) {
+        this.file = file;
+        this.mapper = mapper;
+    }
+
+    static MessageQueueLog open(Path file, ObjectMapper mapper) throws IOException {
+        MessageQueueLog log = new MessageQueueLog(file, mapper);
+        log.replay();
+        log.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.compact();
+        return log;
+    }
+
+    /**
+     * Messages that were queued but never acknowledged, oldest first.
+     */
+    synchronized List<MatrixMessageQueue.QueuedMessage> pendingMessages() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Assigns the message its log ID and makes it durable before returning.
+     */
+    void append(MatrixMessageQueue.QueuedMessage message) throws IOException {
+        long seq;
+        synchronized (this) {
+            message.id = nextId++;
+            write(enqueueRecord(message));
+            pending.put(message.id, message);
+            seq = ++writtenSeq;
+        }
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) return;
+            long target;
+            FileChannel syncing;
+            synchronized (this) {
+                target = writtenSeq;
+                syncing = channel;
+            }
+            try {
+                syncing.force(false);
+            } catch (ClosedChannelException e) {
+                // A compaction swapped the file; it synced everything written before the swap
+                synchronized (this) {
+                    if (compactedSeq < seq) throw e;
+                }
+            }
+            syncedSeq = target;
+        }
+    }
+
+    /**
+     * Records that the message was delivered.
+     */
+    synchronized void ack(MatrixMessageQueue.QueuedMessage message) throws IOException {
+        if (pending.remove(message.id) == null) return;
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", "ack");
+        record.put("id", message.id);
+        write(record);
+        if (records - pending.size() >= COMPACT_MIN_ACKS && records > 2L * pending.size()) {
+            compact();
+        }
+    }
+
+    synchronized void close() {
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close message queue log: " + e.getMessage());
+        }
+    }
+
+    private void write(ObjectNode record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        records++;
+    }
+
+    private ObjectNode enqueueRecord(MatrixMessageQueue.QueuedMessage message) {
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", "enqueue");
+        record.put("id", message.id);
+        record.put("roomId", message.roomId);
+        record.put("message", message.message);
+        record.put("msgType", message.msgType);
+        record.put("useMarkdown", message.useMarkdown);
+        record.put("originalEventId", message.originalEventId);
+        record.put("isUpdate", message.isUpdate);
+        record.put("createdTime", message.createdTime);
+        return record;
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(file)) return;
+        int acked = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonNode record;
+                try {
+                    record = mapper.readTree(line);
+                } catch (IOException e) {
+                    // Torn final write from a crash; it was never acknowledged as durable
+                    continue;
+                }
+                long id = record.path("id").asLong();
+                nextId = Math.max(nextId, id + 1);
+                if ("ack".equals(record.path("op").asText())) {
+                    pending.remove(id);
+                    acked++;
+                } else if ("enqueue".equals(record.path("op").asText())) {
+                    MatrixMessageQueue.QueuedMessage message = new MatrixMessageQueue.QueuedMessage(
+                            record.path("roomId").asText(), record.path("message").asText(),
+                            record.path("msgType").asText(), record.path("useMarkdown").asBoolean(),
+                            record.path("originalEventId").asText(null), record.path("isUpdate").asBoolean(),
+                            record.path("createdTime").asLong());
+                    message.id = id;
+                    pending.put(id, message);
+                }
+            }
+        }
+        System.out.println("Replayed message queue log: " + pending.size() + " pending, " + acked + " acknowledged");
+    }
+
+    /**
+     * Rewrites the log with only pending messages and swaps it in atomically.
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel previous = channel;
+        channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        records = 0;
+        for (MatrixMessageQueue.QueuedMessage message : pending.values()) {
+            write(enqueueRecord(message));
+        }
+        channel.force(true);
+        previous.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        compactedSeq = writtenSeq;
+    }
+}
@@ -19,45 +19,32 @@ public class OllamaVisionAIService extends VisionAIService {
     private final String model;
 
     public OllamaVisionAIService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken,
-                                 String arliApiKey, String groqApiKey, String openrouterApiKey, String freeLlmApiKey,
+                                 RoomHistoryManager historyManager, String arliApiKey, String groqApiKey, String openrouterApiKey, String freeLlmApiKey,
                                  String ollamaProxyApiKey, String ollamaProxyUrl,
                                  ImageFetcher imageFetcher, String model,
                                  List<String> arliModels, List<String> cerebrasModels, List<String> groqModels, List<String> openrouterModels, 
                                  List<String> freeLlmModels, List<String> ollamaProxyModels) {
-        super(client, mapper, homeserver, accessToken, arliApiKey, groqApiKey, openrouterApiKey, freeLlmApiKey,
+        super(client, mapper, homeserver, accessToken, historyManager, arliApiKey, groqApiKey, openrouterApiKey, freeLlmApiKey,
               ollamaProxyApiKey, ollamaProxyUrl, imageFetcher,
               arliModels, cerebrasModels, groqModels, openrouterModels, freeLlmModels, ollamaProxyModels);
         this.model = model != null ? model : (ollamaProxyModels != null && !ollamaProxyModels.isEmpty() ? ollamaProxyModels.get(0) : "llava");
     }
 
     @Override
-    protected String describeImage(String mxcUrl) throws Exception {
-        return AIRequestQueue.run("Ollama vision image description", () -> describeImageUnqueued(mxcUrl));
+    protected String describeFetchedImage(String mxcUrl, ImageFetcher.FetchedImage image) throws Exception {
+        return AIRequestQueue.run(Backend.OLLAMA_PROXY, "Ollama vision image description",
+                () -> describeImageUnqueued(mxcUrl, image));
     }
 
-    private String describeImageUnqueued(String mxcUrl) throws Exception {
-        // Fetch and encode single image
-        System.out.println("Fetching image from Matrix for Ollama: " + mxcUrl);
-        List<String> encoded = imageFetcher.fetchAndEncodeImages(List.of(mxcUrl));
-        if (encoded.isEmpty()) {
-            System.out.println("Failed to fetch image from Matrix: " + mxcUrl);
-            return null;
-        }
+    private String describeImageUnqueued(String mxcUrl, ImageFetcher.FetchedImage image) throws Exception {
+        // Ollama expects raw base64, not a data URL
+        VisionRequestBody body = new VisionRequestBody();
 
-        String base64Image = encoded.get(0);
-        // Ollama expects raw base64, not data URL. Strip prefix if present.
-        if (base64Image.startsWith("data:")) {
-            int commaIdx = base64Image.indexOf(",");
-            if (commaIdx != -1) {
-                base64Image = base64Image.substring(commaIdx + 1);
-            }
-        }
-        
         // Ollama native /api/chat format for vision
         Map<String, Object> message = new HashMap<>();
         message.put("role", "user");
         message.put("content", "Briefly describe the input image in 1-2 sentences. Be terse, incomplete sentence ok.");
-        message.put("images", List.of(base64Image));
+        message.put("images", List.of(body.addImage(image, false)));
 
         Map<String, Object> payload = new HashMap<>();
         payload.put("model", model);
@@ -73,7 +60,7 @@ public class OllamaVisionAIService extends VisionAIService {
                 .header("Content-Type", "application/json")
                 .header("Authorization", "Bearer " + ollamaProxyApiKey)
                 .timeout(Duration.ofSeconds(AIService.AI_TIMEOUT_SECONDS))
-                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
+                .POST(body.publisher(jsonPayload))
                 .build();
 
         HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
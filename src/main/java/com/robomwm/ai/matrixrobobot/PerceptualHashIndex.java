@@ -0,0 +1,107 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 64-bit difference hashes (dHash) of images and a Hamming-distance lookup over them.
+ * The hash compares neighbouring pixels of a 9x8 grayscale thumbnail, so a repost that was
+ * re-encoded, rescaled or lightly recompressed lands within a few bits of the original.
+ * Lookups use multi-index hashing: the 64 bits are split into {@code MAX_DISTANCE + 1} bands, and
+ * any hash within the distance must match the query exactly in at least one band.
+ */
+final class PerceptualHashIndex {
+    static final int MAX_DISTANCE = 5;
+    private static final int BANDS = MAX_DISTANCE + 1;
+    // Nearly uniform images all hash to almost the same value, so they are not matched
+    private static final int MIN_BITS = 8;
+
+    private final List<Map<Long, List<Long>>> bands = new ArrayList<>();
+    private final Set<Long> hashes = new HashSet<>();
+
+    PerceptualHashIndex() {
+        for (int band = 0; band < BANDS; band++) {
+            bands.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * dHash of an image: bit (row * 8 + col) is set when that pixel is darker than its right neighbour.
+     */
+    static long dHash(BufferedImage image) {
+        BufferedImage small = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = small.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, 9, 8, null);
+        } finally {
+            g.dispose();
+        }
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int left = small.getRaster().getSample(x, y, 0);
+                int right = small.getRaster().getSample(x + 1, y, 0);
+                if (left < right) {
+                    hash |= 1L << (y * 8 + x);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Whether the hash carries enough detail to be matched against others.
+     */
+    static boolean isDistinctive(long hash) {
+        int bits = Long.bitCount(hash);
+        return bits >= MIN_BITS && bits <= 64 - MIN_BITS;
+    }
+
+    synchronized int size() {
+        return hashes.size();
+    }
+
+    synchronized void add(long hash) {
+        if (!hashes.add(hash)) return;
+        for (int band = 0; band < BANDS; band++) {
+            bands.get(band).computeIfAbsent(bandValue(hash, band), k -> new ArrayList<>()).add(hash);
+        }
+    }
+
+    /**
+     * The closest indexed hash within {@link #MAX_DISTANCE} bits, or null.
+     */
+    synchronized Long findNearest(long hash) {
+        if (hashes.contains(hash)) return hash;
+        long best = 0;
+        int bestDistance = MAX_DISTANCE + 1;
+        for (int band = 0; band < BANDS; band++) {
+            List<Long> candidates = bands.get(band).get(bandValue(hash, band));
+            if (candidates == null) continue;
+            for (long candidate : candidates) {
+                int distance = Long.bitCount(candidate ^ hash);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = candidate;
+                }
+            }
+        }
+        return bestDistance <= MAX_DISTANCE ? best : null;
+    }
+
+    private static long bandValue(long hash, int band) {
+        int from = band * 64 / BANDS;
+        int to = (band + 1) * 64 / BANDS;
+        long mask = (1L << (to - from)) - 1;
+        return (hash >>> from) & mask;
+    }
+}
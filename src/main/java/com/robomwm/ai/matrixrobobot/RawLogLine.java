@@ -0,0 +1,18 @@
+package com.robomwm.ai.matrixrobobot;
+
+/**
+ * One message of fetched room history before it is formatted.
+ */
+final class RawLogLine {
+    final long timestamp;
+    final String sender;
+    final String body;
+    final String eventId;
+
+    RawLogLine(long timestamp, String sender, String body, String eventId) {
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.body = body;
+        this.eventId = eventId;
+    }
+}
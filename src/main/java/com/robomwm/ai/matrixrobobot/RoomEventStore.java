@@ -0,0 +1,848 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Local append-only store of room messages, kept up to date by the /sync loop.
+ *
+ * Each room has a JSON-lines event log plus a small segment file describing which
+ * time ranges are known to be contiguous. The segment that /sync is extending is
+ * "live": it covers everything from its start to now, and can be extended backwards
+ * from the homeserver with its pagination token, so history reads only download the
+ * gap that is not on disk yet. A room's events are only held in memory after it is first read,
+ * and the least recently read rooms are unloaded again once too many events are resident.
+ * Redactions are appended to the log as tombstones, so a redacted message stays gone after a restart.
+ */
+public class RoomEventStore {
+    private static final Path STORE_DIR = Paths.get("room_events");
+    private static final int BACKFILL_PAGE_SIZE = 1000;
+    private static final int INDEX_SAVE_INTERVAL = 5000;
+    // Events kept in memory across all rooms; least recently read rooms are unloaded beyond this
+    private static final int MAX_RESIDENT_EVENTS = 200_000;
+
+    public static class StoredEvent {
+        public String eventId;
+        public String sender;
+        public long timestamp;
+        public String body;
+        public String msgtype;
+        public String url;
+        // Set only on tombstones: the event ID of the redacted message
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String redacts;
+
+        public StoredEvent() {}
+
+        public StoredEvent(String eventId, String sender, long timestamp, String body, String msgtype, String url) {
+            this.eventId = eventId;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.body = body;
+            this.msgtype = msgtype;
+            this.url = url;
+        }
+    }
+
+    /**
+     * A contiguous time range of stored history. {@code token} paginates backwards from {@code from}.
+     */
+    public static class Segment {
+        public long from;
+        public long to;
+        public String token;
+        public boolean reachedRoomStart;
+
+        public Segment() {}
+
+        public Segment(long from, long to, String token) {
+            this.from = from;
+            this.to = to;
+            this.token = token;
+        }
+    }
+
+    private static class RoomState {
+        final List<Segment> oldSegments = new ArrayList<>();
+        Segment live;
+        // Loaded on first read, dropped again when other rooms need the memory
+        History history;
+        volatile int residentEvents;
+    }
+
+    private static class History {
+        final List<StoredEvent> events = new ArrayList<>(); // Sorted by timestamp
+        final Map<String, StoredEvent> byId = new HashMap<>();
+        // Events in log order; the position is the search index document ID
+        final List<StoredEvent> docs = new ArrayList<>();
+        RoomSearchIndex index;
+        int savedDocCount;
+        // Messages removed by a redaction; they are never stored again
+        final Set<String> redacted = new HashSet<>();
+    }
+
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+    private final String homeserverUrl;
+    private final String accessToken;
+    private final MatrixEventReader eventReader;
+    private final Path storeDir;
+    private final int maxResidentEvents;
+    private final Map<String, RoomState> rooms = new ConcurrentHashMap<>();
+    // Rooms with loaded history, least recently used first
+    private final LinkedHashMap<String, RoomState> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile BiConsumer<String, String> redactionListener;
+
+    public RoomEventStore(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
+        this(httpClient, mapper, homeserverUrl, accessToken, STORE_DIR, MAX_RESIDENT_EVENTS);
+    }
+
+    RoomEventStore(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken, Path storeDir,
+            int maxResidentEvents) {
+        this.storeDir = storeDir;
+        this.maxResidentEvents = maxResidentEvents;
+        this.httpClient = httpClient;
+        this.mapper = mapper;
+        this.homeserverUrl = homeserverUrl;
+        this.accessToken = accessToken;
+        this.eventReader = new MatrixEventReader(mapper);
+    }
+
+    /**
+     * Called with the room ID and event ID of every redacted message, so other indexes can drop it too.
+     */
+    public void setRedactionListener(BiConsumer<String, String> redactionListener) {
+        this.redactionListener = redactionListener;
+    }
+
+    /**
+     * Records the timeline section of a joined room from a /sync response.
+     * A limited timeline (or the first sync of this process) starts a new live segment.
+     * Rooms whose history is not loaded only have the events appended to their log.
+     */
+    public void recordTimeline(String roomId, JsonNode timelineNode) {
+        JsonNode timeline = timelineNode.path("events");
+        boolean limited = timelineNode.path("limited").asBoolean(false);
+        String prevBatch = timelineNode.path("prev_batch").asText(null);
+
+        RoomState state = room(roomId);
+        synchronized (state) {
+            List<StoredEvent> events = new ArrayList<>();
+            List<StoredEvent> tombstones = new ArrayList<>();
+            long oldestTs = Long.MAX_VALUE;
+            long newestTs = -1;
+            if (timeline.isArray()) {
+                for (JsonNode ev : timeline) {
+                    long ts = ev.path("origin_server_ts").asLong(0);
+                    oldestTs = Math.min(oldestTs, ts);
+                    newestTs = Math.max(newestTs, ts);
+                    StoredEvent stored = toStoredEvent(ev);
+                    if (stored != null) {
+                        events.add(stored);
+                    }
+                    StoredEvent tombstone = toTombstone(ev);
+                    if (tombstone != null) {
+                        tombstones.add(tombstone);
+                    }
+                }
+            }
+            List<StoredEvent> added = state.history != null ? insertAll(state, events) : events;
+            for (StoredEvent tombstone : tombstones) {
+                if (redact(roomId, state, tombstone.redacts)) {
+                    added.add(tombstone);
+                }
+            }
+
+            boolean segmentsChanged = false;
+            if (state.live == null || limited) {
+                if (state.live != null) {
+                    state.oldSegments.add(state.live);
+                }
+                long from = oldestTs != Long.MAX_VALUE ? oldestTs : System.currentTimeMillis();
+                state.live = new Segment(from, Math.max(from, newestTs), prevBatch);
+                segmentsChanged = true;
+            } else if (newestTs > state.live.to) {
+                state.live.to = newestTs;
+                segmentsChanged = true;
+            }
+
+            appendEvents(roomId, added);
+            if (state.history != null) {
+                maybeSaveIndex(roomId, state.history);
+            }
+            if (segmentsChanged) {
+                saveSegments(roomId, state);
+            }
+        }
+    }
+
+    /**
+     * Returns true once /sync has started a live segment for the room in this process.
+     */
+    public boolean isLive(String roomId) {
+        RoomState state = room(roomId);
+        synchronized (state) {
+            return state.live != null;
+        }
+    }
+
+    /**
+     * Backfills from the homeserver until the live segment reaches back to {@code startTime}.
+     * Returns false if the room is not live or the gap could not be filled.
+     */
+    public boolean ensureCoveredSince(String roomId, long startTime, java.util.concurrent.atomic.AtomicBoolean abortFlag) {
+        RoomState state = room(roomId);
+        while (true) {
+            synchronized (state) {
+                if (state.live == null) return false;
+                if (state.live.reachedRoomStart || state.live.from <= startTime) return true;
+            }
+            if (abortFlag != null && abortFlag.get()) return false;
+            if (!backfillPage(roomId, state)) return false;
+        }
+    }
+
+    /**
+     * Backfills from the homeserver until the live segment holds at least {@code count}
+     * messages at or before {@code endTime}, or the start of the room is reached.
+     */
+    public boolean ensureCoveredCount(String roomId, long endTime, int count, java.util.concurrent.atomic.AtomicBoolean abortFlag) {
+        RoomState state = room(roomId);
+        while (true) {
+            synchronized (state) {
+                if (state.live == null) return false;
+                if (state.live.reachedRoomStart) return true;
+                History history = history(roomId, state);
+                int[] range = rangeOf(state, history, Long.MIN_VALUE, endTime);
+                if (range[1] - range[0] >= count) return true;
+            }
+            noteAccess(roomId, state);
+            if (abortFlag != null && abortFlag.get()) return false;
+            if (!backfillPage(roomId, state)) return false;
+        }
+    }
+
+    /**
+     * Extends the live segment by one page of older history. Returns false if the room is not
+     * live, already fully backfilled, or the homeserver request failed.
+     */
+    public boolean backfillOnePage(String roomId) {
+        RoomState state = room(roomId);
+        synchronized (state) {
+            if (state.live == null || state.live.reachedRoomStart) return false;
+        }
+        return backfillPage(roomId, state);
+    }
+
+    /**
+     * Stored messages in the live segment between {@code startTime} and {@code endTime}, oldest first.
+     * Returns null if the room has no live segment.
+     */
+    public List<StoredEvent> getMessages(String roomId, long startTime, long endTime) {
+        RoomState state = room(roomId);
+        List<StoredEvent> messages;
+        synchronized (state) {
+            if (state.live == null) return null;
+            History history = history(roomId, state);
+            int[] range = rangeOf(state, history, startTime, endTime);
+            messages = new ArrayList<>(history.events.subList(range[0], range[1]));
+        }
+        noteAccess(roomId, state);
+        return messages;
+    }
+
+    /**
+     * Up to about {@code limit} of the newest stored messages in the live segment sent before
+     * {@code beforeTime}, oldest first. Messages sharing the oldest timestamp are all included, so
+     * that timestamp is a gapless cursor for the next page. Returns null if the room has no live segment.
+     */
+    public List<StoredEvent> getMessagesBefore(String roomId, long beforeTime, int limit) {
+        RoomState state = room(roomId);
+        List<StoredEvent> messages;
+        synchronized (state) {
+            if (state.live == null) return null;
+            History history = history(roomId, state);
+            int[] range = rangeOf(state, history, Long.MIN_VALUE, beforeTime - 1);
+            int from = Math.max(range[0], range[1] - limit);
+            while (from > range[0] && history.events.get(from - 1).timestamp == history.events.get(from).timestamp) {
+                from--;
+            }
+            messages = new ArrayList<>(history.events.subList(from, range[1]));
+        }
+        noteAccess(roomId, state);
+        return messages;
+    }
+
+    /**
+     * Stored messages in the live segment between {@code startTime} and {@code endTime} that may contain
+     * every lower-cased term, oldest first. Candidates come from the room's search index, so callers
+     * must still apply their exact match. Returns null if the room has no live segment.
+     */
+    public List<StoredEvent> findCandidates(String roomId, List<String> lowerTerms, long startTime, long endTime) {
+        RoomState state = room(roomId);
+        List<StoredEvent> matches;
+        synchronized (state) {
+            if (state.live == null) return null;
+            History history = history(roomId, state);
+            int[] docIds = history.index.candidates(lowerTerms);
+            if (docIds == null) {
+                int[] range = rangeOf(state, history, startTime, endTime);
+                matches = new ArrayList<>(history.events.subList(range[0], range[1]));
+            } else {
+                long floor = Math.max(startTime, state.live.from);
+                matches = new ArrayList<>();
+                for (int docId : docIds) {
+                    StoredEvent ev = history.docs.get(docId);
+                    if (ev.timestamp >= floor && ev.timestamp <= endTime) {
+                        matches.add(ev);
+                    }
+                }
+                matches.sort(Comparator.comparingLong(ev -> ev.timestamp));
+            }
+        }
+        noteAccess(roomId, state);
+        return matches;
+    }
+
+    /**
+     * Stored messages in the live segment that come after {@code eventId}, oldest first.
+     * Returns null if the event is not inside the live segment.
+     */
+    public List<StoredEvent> getMessagesAfter(String roomId, String eventId) {
+        RoomState state = room(roomId);
+        List<StoredEvent> messages = null;
+        synchronized (state) {
+            if (state.live == null) return null;
+            History history = history(roomId, state);
+            StoredEvent event = history.byId.get(eventId);
+            if (event != null && event.timestamp >= state.live.from) {
+                // Find the event among those sharing its timestamp
+                for (int i = lowerBound(history.events, event.timestamp); i < history.events.size(); i++) {
+                    if (history.events.get(i) == event) {
+                        messages = new ArrayList<>(history.events.subList(i + 1, history.events.size()));
+                        break;
+                    }
+                }
+            }
+        }
+        noteAccess(roomId, state);
+        return messages;
+    }
+
+    private boolean backfillPage(String roomId, RoomState state) {
+        String token;
+        synchronized (state) {
+            token = state.live.token;
+        }
+        if (token == null) return false;
+
+        try {
+            String messagesUrl = homeserverUrl + "/_matrix/client/v3/rooms/"
+                    + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
+                    + "/messages?from=" + URLEncoder.encode(token, StandardCharsets.UTF_8)
+                    + "&dir=b&limit=" + BACKFILL_PAGE_SIZE;
+            HttpRequest req = HttpRequest.newBuilder()
+                    .uri(URI.create(messagesUrl))
+                    .header("Authorization", "Bearer " + accessToken)
+                    .timeout(Duration.ofSeconds(120))
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            if (resp.statusCode() != 200) {
+                System.out.println("Event store backfill failed for " + roomId + ": " + resp.statusCode());
+                MatrixEventReader.discard(resp);
+                return false;
+            }
+            MatrixEventReader.MessagesPage page = eventReader.readMessages(resp.body());
+            applyBackfill(roomId, state, token, page.chunk, page.end);
+            noteAccess(roomId, state);
+            return true;
+        } catch (Exception e) {
+            System.out.println("Error backfilling event store for " + roomId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds a page of older history (newest first, as /messages returns it) to the live segment that
+     * {@code token} was taken from, moving the segment's start and token back.
+     */
+    void applyBackfill(String roomId, RoomState state, String token, List<MatrixEventReader.Event> chunk, String end) {
+        synchronized (state) {
+            if (state.live == null || !token.equals(state.live.token)) {
+                // Another reader already extended this segment
+                return;
+            }
+            History history = history(roomId, state);
+
+            List<StoredEvent> page = new ArrayList<>();
+            List<StoredEvent> tombstones = new ArrayList<>();
+            Set<String> overlapping = new HashSet<>();
+            long oldestTs = state.live.from;
+            // Chunk is newest first; walk it oldest first so equal timestamps keep room order
+            for (int i = chunk.size() - 1; i >= 0; i--) {
+                MatrixEventReader.Event ev = chunk.get(i);
+                if (ev.originServerTs > 0) {
+                    oldestTs = Math.min(oldestTs, ev.originServerTs);
+                }
+                StoredEvent tombstone = toTombstone(ev);
+                if (tombstone != null) {
+                    tombstones.add(tombstone);
+                }
+                StoredEvent stored = toStoredEvent(ev);
+                if (stored == null) continue;
+                if (history.byId.containsKey(stored.eventId)) {
+                    overlapping.add(stored.eventId);
+                } else {
+                    page.add(stored);
+                }
+            }
+            List<StoredEvent> added = insertAll(state, page);
+            int backfilled = added.size();
+            for (StoredEvent tombstone : tombstones) {
+                if (redact(roomId, state, tombstone.redacts)) {
+                    added.add(tombstone);
+                }
+            }
+
+            state.live.from = oldestTs;
+            state.live.token = end;
+            if (chunk.isEmpty() || end == null) {
+                state.live.reachedRoomStart = true;
+            }
+            mergeOldSegments(history, state, overlapping);
+
+            appendEvents(roomId, added);
+            maybeSaveIndex(roomId, history);
+            saveSegments(roomId, state);
+            System.out.println("Event store backfilled " + backfilled + " messages for " + roomId);
+        }
+    }
+
+    /**
+     * Joins older on-disk segments that the live segment has reached. A segment is joined when the
+     * backfilled page contained an event it already holds, which proves there is no gap in between.
+     */
+    private void mergeOldSegments(History history, RoomState state, Set<String> overlapping) {
+        Iterator<Segment> it = state.oldSegments.iterator();
+        while (it.hasNext()) {
+            Segment seg = it.next();
+            boolean connected = false;
+            for (String eventId : overlapping) {
+                StoredEvent ev = history.byId.get(eventId);
+                if (ev != null && ev.timestamp >= seg.from && ev.timestamp <= seg.to) {
+                    connected = true;
+                    break;
+                }
+            }
+            if (connected && seg.from < state.live.from) {
+                state.live.from = seg.from;
+                state.live.token = seg.token;
+                state.live.reachedRoomStart = seg.reachedRoomStart;
+                it.remove();
+            } else if (connected || seg.from >= state.live.from) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Index range {from, to} of the stored events in the live segment between the two times, inclusive.
+     */
+    private static int[] rangeOf(RoomState state, History history, long startTime, long endTime) {
+        long floor = Math.max(startTime, state.live.from);
+        int from = lowerBound(history.events, floor);
+        int to = endTime == Long.MAX_VALUE ? history.events.size() : lowerBound(history.events, endTime + 1);
+        return new int[] {from, Math.max(from, to)};
+    }
+
+    private static int lowerBound(List<StoredEvent> events, long timestamp) {
+        int lo = 0;
+        int hi = events.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.get(mid).timestamp < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Adds the events not stored yet and returns them. Events newer than everything stored are appended;
+     * anything else is merged in one pass, after stored events with the same timestamp.
+     */
+    private static List<StoredEvent> insertAll(RoomState state, List<StoredEvent> events) {
+        History history = state.history;
+        List<StoredEvent> added = new ArrayList<>();
+        for (StoredEvent ev : events) {
+            if (!history.redacted.contains(ev.eventId) && history.byId.putIfAbsent(ev.eventId, ev) == null) {
+                added.add(ev);
+                history.docs.add(ev);
+                history.index.add(ev.sender, ev.body);
+            }
+        }
+        if (added.isEmpty()) return added;
+
+        List<StoredEvent> sorted = new ArrayList<>(added);
+        sorted.sort(Comparator.comparingLong(ev -> ev.timestamp));
+        List<StoredEvent> stored = history.events;
+        if (stored.isEmpty() || sorted.get(0).timestamp >= stored.get(stored.size() - 1).timestamp) {
+            stored.addAll(sorted);
+        } else {
+            List<StoredEvent> merged = new ArrayList<>(stored.size() + sorted.size());
+            int i = 0;
+            int j = 0;
+            while (i < stored.size() || j < sorted.size()) {
+                if (j == sorted.size() || (i < stored.size() && stored.get(i).timestamp <= sorted.get(j).timestamp)) {
+                    merged.add(stored.get(i++));
+                } else {
+                    merged.add(sorted.get(j++));
+                }
+            }
+            stored.clear();
+            stored.addAll(merged);
+        }
+        state.residentEvents = stored.size();
+        return added;
+    }
+
+    /**
+     * Records that {@code eventId} was redacted: a loaded history drops the message and its search
+     * document, and the listener is told. Returns false if the loaded history already knew.
+     * The caller holds the room's lock.
+     */
+    private boolean redact(String roomId, RoomState state, String eventId) {
+        History history = state.history;
+        if (history != null) {
+            if (!history.redacted.add(eventId)) return false;
+            StoredEvent ev = history.byId.remove(eventId);
+            if (ev != null) {
+                for (int i = lowerBound(history.events, ev.timestamp); i < history.events.size(); i++) {
+                    if (history.events.get(i) == ev) {
+                        history.events.remove(i);
+                        break;
+                    }
+                }
+                // The document keeps its slot so later document IDs still match the index
+                history.index.remove(history.docs.lastIndexOf(ev));
+                blank(ev);
+                state.residentEvents = history.events.size();
+            }
+        }
+        BiConsumer<String, String> listener = redactionListener;
+        if (listener != null) {
+            listener.accept(roomId, eventId);
+        }
+        return true;
+    }
+
+    private static void blank(StoredEvent ev) {
+        ev.body = "";
+        ev.url = null;
+    }
+
+    private StoredEvent toTombstone(JsonNode ev) {
+        if (!"m.room.redaction".equals(ev.path("type").asText(null))) return null;
+        String redacts = ev.path("redacts").asText(null);
+        if (redacts == null) {
+            redacts = ev.path("content").path("redacts").asText(null);
+        }
+        return tombstone(ev.path("event_id").asText(null), ev.path("sender").asText(null),
+                ev.path("origin_server_ts").asLong(0), redacts);
+    }
+
+    private StoredEvent toTombstone(MatrixEventReader.Event ev) {
+        if (!ev.isRedaction()) return null;
+        return tombstone(ev.eventId, ev.sender, ev.originServerTs, ev.redacts);
+    }
+
+    private static StoredEvent tombstone(String eventId, String sender, long timestamp, String redacts) {
+        if (redacts == null) return null;
+        StoredEvent tombstone = new StoredEvent(eventId, sender, timestamp, null, null, null);
+        tombstone.redacts = redacts;
+        return tombstone;
+    }
+
+    private StoredEvent toStoredEvent(JsonNode ev) {
+        if (!"m.room.message".equals(ev.path("type").asText(null))) return null;
+        String body = ev.path("content").path("body").asText(null);
+        String sender = ev.path("sender").asText(null);
+        String eventId = ev.path("event_id").asText(null);
+        if (body == null || sender == null || eventId == null) return null;
+        return new StoredEvent(eventId, sender, ev.path("origin_server_ts").asLong(0), body,
+                ev.path("content").path("msgtype").asText(null),
+                ev.path("content").path("url").asText(null));
+    }
+
+    private StoredEvent toStoredEvent(MatrixEventReader.Event ev) {
+        if (!ev.isMessage()) return null;
+        if (ev.body == null || ev.sender == null || ev.eventId == null) return null;
+        return new StoredEvent(ev.eventId, ev.sender, ev.originServerTs, ev.body, ev.msgtype, ev.url);
+    }
+
+    RoomState room(String roomId) {
+        return rooms.computeIfAbsent(roomId, this::loadRoom);
+    }
+
+    /**
+     * Loads a room's segments and repairs its event log; the events themselves are loaded on first read.
+     */
+    private RoomState loadRoom(String roomId) {
+        RoomState state = new RoomState();
+        truncateTornTail(roomId, eventsFile(roomId));
+        Path segmentsFile = segmentsFile(roomId);
+        if (Files.exists(segmentsFile)) {
+            try {
+                List<Segment> segments = mapper.readValue(Files.readString(segmentsFile),
+                        new TypeReference<List<Segment>>() {});
+                // A previous process' live segment has a gap after it, so it is only an old segment now
+                state.oldSegments.addAll(segments);
+            } catch (IOException e) {
+                System.err.println("Failed to load event store segments for " + roomId + ": " + e.getMessage());
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Cuts off a last line left unfinished by a crash, so the next append starts on a line of its own.
+     */
+    private static void truncateTornTail(String roomId, Path eventsFile) {
+        if (!Files.exists(eventsFile)) return;
+        try (FileChannel channel = FileChannel.open(eventsFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long end = size;
+            while (end > 0) {
+                long from = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - from));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, from + buffer.position()) < 0) break;
+                }
+                int newline = -1;
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end = from + newline + 1;
+                    break;
+                }
+                end = from;
+            }
+            if (end < size) {
+                System.err.println("Truncating " + (size - end) + " bytes of torn event store log for " + roomId);
+                channel.truncate(end);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to check event store log for " + roomId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The room's stored events, loading them from disk if needed. The caller holds the room's lock.
+     */
+    private History history(String roomId, RoomState state) {
+        if (state.history == null) {
+            state.history = loadHistory(roomId);
+            state.residentEvents = state.history.events.size();
+        }
+        return state.history;
+    }
+
+    private History loadHistory(String roomId) {
+        History history = new History();
+        Path eventsFile = eventsFile(roomId);
+        if (Files.exists(eventsFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(eventsFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    try {
+                        StoredEvent ev = mapper.readValue(line, StoredEvent.class);
+                        if (ev.redacts != null) {
+                            history.redacted.add(ev.redacts);
+                        } else if (ev.eventId != null && history.byId.putIfAbsent(ev.eventId, ev) == null) {
+                            history.docs.add(ev);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Skipping unreadable event store line for " + roomId + ": " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to load event store for " + roomId + ": " + e.getMessage());
+            }
+        }
+        // A tombstone can precede the message it redacts, since backfill appends older events later
+        for (StoredEvent ev : history.docs) {
+            if (history.redacted.contains(ev.eventId)) {
+                history.byId.remove(ev.eventId);
+                blank(ev);
+            } else {
+                history.events.add(ev);
+            }
+        }
+        history.events.sort(Comparator.comparingLong(ev -> ev.timestamp));
+        loadIndex(roomId, history);
+        if (!history.events.isEmpty()) {
+            System.out.println("Loaded " + history.events.size() + " stored events for " + roomId);
+        }
+        return history;
+    }
+
+    /**
+     * Marks the room as most recently used and unloads the history of the least recently used rooms
+     * while more than the resident limit of events is loaded. Called without holding any room lock.
+     */
+    private void noteAccess(String roomId, RoomState state) {
+        List<Map.Entry<String, RoomState>> evicted = new ArrayList<>();
+        synchronized (resident) {
+            resident.put(roomId, state);
+            long total = 0;
+            for (RoomState loaded : resident.values()) {
+                total += loaded.residentEvents;
+            }
+            Iterator<Map.Entry<String, RoomState>> it = resident.entrySet().iterator();
+            while (total > maxResidentEvents && it.hasNext()) {
+                Map.Entry<String, RoomState> eldest = it.next();
+                if (eldest.getKey().equals(roomId)) break;
+                total -= eldest.getValue().residentEvents;
+                evicted.add(eldest);
+                it.remove();
+            }
+        }
+        for (Map.Entry<String, RoomState> entry : evicted) {
+            unload(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void unload(String roomId, RoomState state) {
+        synchronized (state) {
+            History history = state.history;
+            if (history == null) return;
+            if (history.docs.size() > history.savedDocCount) {
+                saveIndex(roomId, history);
+            }
+            state.history = null;
+            state.residentEvents = 0;
+            System.out.println("Unloaded " + history.events.size() + " stored events for " + roomId);
+        }
+    }
+
+    /**
+     * Loads the saved search index and indexes whatever the event log gained since it was written.
+     */
+    private void loadIndex(String roomId, History history) {
+        List<String> docEventIds = new ArrayList<>(history.docs.size());
+        for (StoredEvent ev : history.docs) {
+            docEventIds.add(ev.eventId);
+        }
+        RoomSearchIndex index = RoomSearchIndex.load(indexFile(roomId), docEventIds);
+        if (index == null) {
+            index = new RoomSearchIndex();
+        }
+        history.savedDocCount = index.docCount();
+        for (int i = index.docCount(); i < history.docs.size(); i++) {
+            StoredEvent ev = history.docs.get(i);
+            index.add(ev.sender, ev.body);
+        }
+        for (int i = 0; i < history.docs.size(); i++) {
+            if (history.redacted.contains(history.docs.get(i).eventId)) {
+                index.remove(i);
+            }
+        }
+        history.index = index;
+        maybeSaveIndex(roomId, history);
+    }
+
+    private void maybeSaveIndex(String roomId, History history) {
+        if (history.docs.size() - history.savedDocCount >= INDEX_SAVE_INTERVAL) {
+            saveIndex(roomId, history);
+        }
+    }
+
+    private void saveIndex(String roomId, History history) {
+        try {
+            Files.createDirectories(storeDir);
+            history.index.save(indexFile(roomId), history.docs.get(history.docs.size() - 1).eventId);
+            history.savedDocCount = history.docs.size();
+        } catch (IOException e) {
+            System.err.println("Failed to save search index for " + roomId + ": " + e.getMessage());
+        }
+    }
+
+    private void appendEvents(String roomId, List<StoredEvent> events) {
+        if (events.isEmpty()) return;
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (StoredEvent ev : events) {
+                sb.append(mapper.writeValueAsString(ev)).append('\n');
+            }
+            Files.createDirectories(storeDir);
+            Files.writeString(eventsFile(roomId), sb.toString(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to append to event store for " + roomId + ": " + e.getMessage());
+        }
+    }
+
+    private void saveSegments(String roomId, RoomState state) {
+        try {
+            List<Segment> segments = new ArrayList<>(state.oldSegments);
+            if (state.live != null) {
+                segments.add(state.live);
+            }
+            Files.createDirectories(storeDir);
+            Files.writeString(segmentsFile(roomId), mapper.writeValueAsString(segments));
+        } catch (IOException e) {
+            System.err.println("Failed to save event store segments for " + roomId + ": " + e.getMessage());
+        }
+    }
+
+    private Path eventsFile(String roomId) {
+        return storeDir.resolve(URLEncoder.encode(roomId, StandardCharsets.UTF_8) + ".jsonl");
+    }
+
+    private Path indexFile(String roomId) {
+        return storeDir.resolve(URLEncoder.encode(roomId, StandardCharsets.UTF_8) + ".index");
+    }
+
+    private Path segmentsFile(String roomId) {
+        return storeDir.resolve(URLEncoder.encode(roomId, StandardCharsets.UTF_8) + ".segments.json");
+    }
+}
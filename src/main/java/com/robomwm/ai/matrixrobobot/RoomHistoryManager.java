@@ -1,10 +1,9 @@
 package com.robomwm.ai.matrixrobobot;
 
-import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -18,7 +17,6 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -31,9 +29,9 @@ public class RoomHistoryManager {
     private static final DateTimeFormatter LEGACY_TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
     private static final DateTimeFormatter AI_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     private static final DateTimeFormatter AI_TIME_FORMATTER = DateTimeFormatter.ofPattern("H:mm");
-    private static final String ARLIAI_TOKENIZER_RESOURCE = "/tokenizers/arliai-tokenizer.json";
-    private static final double TOKEN_SAFETY_MARGIN = 1.50;
-    private static final HuggingFaceTokenizer AI_TOKENIZER = loadTokenizer();
+    private static final int UNTIL_LIMIT_BATCH_SIZE = 100;
+    private static final long PARALLEL_MIN_RANGE_MS = 24L * 3600L * 1000L;
+    private static final int WINDOW_POOL_SIZE = 8;
 
     @FunctionalInterface
     public interface ProgressCallback {
@@ -44,6 +42,11 @@ public class RoomHistoryManager {
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final String accessToken;
+    private final MatrixEventReader eventReader;
+    private RoomEventStore eventStore;
+    private int fetchParallelism = 4;
+    private java.util.concurrent.ExecutorService windowPool;
+    private volatile boolean timestampLookupUnsupported;
 
     public static class ChatLogsResult {
         public List<String> logs;
@@ -138,6 +141,69 @@ public class RoomHistoryManager {
         this.mapper = mapper;
         this.homeserverUrl = homeserverUrl;
         this.accessToken = accessToken;
+        this.eventReader = new MatrixEventReader(mapper);
+    }
+
+    public void setEventStore(RoomEventStore eventStore) {
+        this.eventStore = eventStore;
+    }
+
+    /**
+     * Number of time windows paged concurrently for long time-range fetches. 1 disables it.
+     */
+    public void setFetchParallelism(int fetchParallelism) {
+        this.fetchParallelism = Math.max(1, fetchParallelism);
+    }
+
+    /**
+     * Loads messages for a time window (or the newest {@code maxMessages}) from the local event store,
+     * backfilling only the part that is not stored yet. Returns null when the store cannot serve the
+     * request and the caller should page the homeserver directly.
+     */
+    List<RoomEventStore.StoredEvent> loadStoredMessages(String roomId, long startTime, long endTime, int maxMessages,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag) {
+        if (eventStore == null || !eventStore.isLive(roomId)) {
+            return null;
+        }
+        boolean covered;
+        if (startTime > 0) {
+            covered = eventStore.ensureCoveredSince(roomId, startTime, abortFlag);
+        } else if (maxMessages > 0) {
+            covered = eventStore.ensureCoveredCount(roomId, endTime, maxMessages, abortFlag);
+        } else {
+            return null;
+        }
+        if (!covered) {
+            return null;
+        }
+        List<RoomEventStore.StoredEvent> events = eventStore.getMessages(roomId, startTime > 0 ? startTime : Long.MIN_VALUE, endTime);
+        if (events != null && maxMessages > 0 && events.size() > maxMessages) {
+            events = new ArrayList<>(events.subList(events.size() - maxMessages, events.size()));
+        }
+        return events;
+    }
+
+    /**
+     * Like {@link #loadStoredMessages} for a time window, but only returns stored messages that the
+     * room's search index says may contain every lower-cased term. Callers must still check each one.
+     */
+    List<RoomEventStore.StoredEvent> searchStoredMessages(String roomId, long startTime, long endTime,
+            List<String> lowerTerms, java.util.concurrent.atomic.AtomicBoolean abortFlag) {
+        if (eventStore == null || !eventStore.isLive(roomId) || startTime <= 0) {
+            return null;
+        }
+        if (!eventStore.ensureCoveredSince(roomId, startTime, abortFlag)) {
+            return null;
+        }
+        return eventStore.findCandidates(roomId, lowerTerms, startTime, endTime);
+    }
+
+    private HistoryBuffer toHistoryBuffer(List<RoomEventStore.StoredEvent> events) {
+        HistoryBuffer lines = new HistoryBuffer(false);
+        for (RoomEventStore.StoredEvent ev : events) {
+            lines.append(ev.timestamp, ev.sender, ev.body, ev.eventId);
+        }
+        return lines;
     }
 
     private ZoneId normalizeZoneId(ZoneId zoneId) {
@@ -172,18 +238,91 @@ public class RoomHistoryManager {
         return formatted;
     }
 
-    private int estimateFormattedTokens(List<RawLogLine> rawLines, ZoneId zoneId, boolean aiFriendlyTimestamps) {
-        int tokens = 0;
+    /**
+     * Lazily formatted chronological view of a history buffer; lines are built when read.
+     */
+    private List<String> formatLogLines(HistoryBuffer lines, ZoneId zoneId, boolean aiFriendlyTimestamps) {
+        ZoneId effectiveZoneId = normalizeZoneId(zoneId);
+        return lines.lazyList(i -> {
+            LocalDate previousDate = aiFriendlyTimestamps && i > 0
+                    ? Instant.ofEpochMilli(lines.timestamp(i - 1)).atZone(effectiveZoneId).toLocalDate()
+                    : null;
+            return formatLogLine(lines.line(i), effectiveZoneId, previousDate, aiFriendlyTimestamps);
+        });
+    }
+
+    private int estimateFormattedTokens(HistoryBuffer rawLines, ZoneId zoneId, boolean aiFriendlyTimestamps) {
+        List<String> keys = new ArrayList<>(rawLines.size());
+        List<String> lines = new ArrayList<>(rawLines.size());
         LocalDate previousDate = null;
         ZoneId effectiveZoneId = normalizeZoneId(zoneId);
-        for (RawLogLine line : rawLines) {
+        for (int i = 0; i < rawLines.size(); i++) {
+            RawLogLine line = rawLines.line(i);
             var zonedTimestamp = Instant.ofEpochMilli(line.timestamp).atZone(effectiveZoneId);
-            tokens += estimateLogLineTokens(formatLogLine(line, effectiveZoneId, previousDate, aiFriendlyTimestamps));
+            keys.add(tokenCacheKey(line, effectiveZoneId, previousDate, aiFriendlyTimestamps));
+            lines.add(formatLogLine(line, effectiveZoneId, previousDate, aiFriendlyTimestamps));
             previousDate = zonedTimestamp.toLocalDate();
         }
+        int tokens = 0;
+        for (int lineTokens : estimateLogLineTokens(keys, lines)) {
+            tokens += lineTokens;
+        }
         return tokens;
     }
 
+    /**
+     * Running token estimate for lines as they are gathered during pagination, matching what
+     * formatLogLines will produce for the final chronological list. Each line is tokenized once
+     * when added; with AI-friendly timestamps the neighbouring line is re-tokenized only when a
+     * shared day means its date prefix is dropped.
+     */
+    static final class TokenTally {
+        /**
+         * Tokens of one formatted line, given the date of the line before it (null for the first line).
+         */
+        @FunctionalInterface
+        interface LineTokens {
+            int estimate(RawLogLine line, ZoneId zoneId, LocalDate previousDate, boolean aiFriendlyTimestamps);
+        }
+
+        private final ZoneId zoneId;
+        private final boolean aiFriendlyTimestamps;
+        private final boolean newestFirst;
+        private final LineTokens lineTokens;
+        private int total;
+        private RawLogLine edgeLine;
+        private LocalDate edgeDate;
+        private int edgeTokens;
+
+        TokenTally(ZoneId zoneId, boolean aiFriendlyTimestamps, boolean newestFirst, LineTokens lineTokens) {
+            this.zoneId = zoneId != null ? zoneId : ZoneId.of("UTC");
+            this.aiFriendlyTimestamps = aiFriendlyTimestamps;
+            this.newestFirst = newestFirst;
+            this.lineTokens = lineTokens;
+        }
+
+        void add(RawLogLine line) {
+            LocalDate date = Instant.ofEpochMilli(line.timestamp).atZone(zoneId).toLocalDate();
+            if (newestFirst) {
+                // The new line becomes the oldest, so it carries the date and the previous oldest may lose it
+                if (aiFriendlyTimestamps && edgeLine != null && date.equals(edgeDate)) {
+                    int withoutDate = lineTokens.estimate(edgeLine, zoneId, date, true);
+                    total += withoutDate - edgeTokens;
+                }
+                edgeTokens = lineTokens.estimate(line, zoneId, null, aiFriendlyTimestamps);
+            } else {
+                edgeTokens = lineTokens.estimate(line, zoneId, edgeDate, aiFriendlyTimestamps);
+            }
+            total += edgeTokens;
+            edgeLine = line;
+            edgeDate = date;
+        }
+
+        int total() {
+            return total;
+        }
+    }
+
     private List<String> extractEventIds(List<RawLogLine> rawLines) {
         List<String> ids = new ArrayList<>(rawLines.size());
         for (RawLogLine line : rawLines) {
@@ -226,13 +365,33 @@ public class RoomHistoryManager {
     public ChatLogsWithIds fetchRoomHistoryWithIds(String roomId, int hours, String fromToken, long startTimestamp,
             long endTime, ZoneId zoneId, boolean aiFriendlyTimestamps, java.util.concurrent.atomic.AtomicBoolean abortFlag,
             ProgressCallback progressCallback) {
-        List<RawLogLine> rawLines = new ArrayList<>();
-        List<String> eventIds = new ArrayList<>();
-
         long startTime = (startTimestamp > 0) ? startTimestamp
                 : (hours > 0 ? System.currentTimeMillis() - (long) hours * 3600L * 1000L : -1);
         long calculatedEndTime = (endTime > 0) ? endTime : System.currentTimeMillis();
 
+        List<RoomEventStore.StoredEvent> stored = startTime > 0
+                ? loadStoredMessages(roomId, startTime, calculatedEndTime, -1, abortFlag)
+                : null;
+        if (stored != null) {
+            HistoryBuffer lines = toHistoryBuffer(stored);
+            if (progressCallback != null && !lines.isEmpty()) {
+                progressCallback.onProgress(lines.size(), estimateFormattedTokens(lines, zoneId, aiFriendlyTimestamps));
+            }
+            return new ChatLogsWithIds(formatLogLines(lines, zoneId, aiFriendlyTimestamps), lines.eventIds());
+        }
+
+        if (startTime > 0) {
+            HistoryBuffer windowed = fetchWindowsInParallel(roomId, fromToken, startTime, calculatedEndTime, false, true,
+                    zoneId, aiFriendlyTimestamps, abortFlag, progressCallback);
+            if (windowed != null) {
+                return new ChatLogsWithIds(formatLogLines(windowed, zoneId, aiFriendlyTimestamps), windowed.eventIds());
+            }
+        }
+
+        HistoryBuffer lines = new HistoryBuffer(true);
+        TokenTally tally = progressCallback != null
+                ? new TokenTally(zoneId, aiFriendlyTimestamps, true, this::estimateLogLineTokens)
+                : null;
         String token = getPaginationToken(roomId, fromToken);
 
         while (token != null) {
@@ -250,21 +409,20 @@ public class RoomHistoryManager {
                         .timeout(Duration.ofSeconds(120))
                         .GET()
                         .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
                 if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
                     break;
                 }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
                 boolean reachedStart = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null)))
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    if (!ev.isMessage())
                         continue;
-                    long originServerTs = ev.path("origin_server_ts").asLong(0);
+                    long originServerTs = ev.originServerTs;
 
                     if (originServerTs > calculatedEndTime) {
                         continue;
@@ -275,34 +433,32 @@ public class RoomHistoryManager {
                         break;
                     }
 
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
+                    String body = ev.body;
+                    String sender = ev.sender;
+                    String eventId = ev.eventId;
                     if (body != null && sender != null && eventId != null) {
-                        rawLines.add(new RawLogLine(originServerTs, sender, body, eventId));
-                        eventIds.add(eventId);
+                        lines.append(originServerTs, sender, body, eventId);
+                        if (tally != null) tally.add(lines.line(0));
                     }
                 }
 
                 // Report progress after each batch
-                if (progressCallback != null && !rawLines.isEmpty()) {
-                    progressCallback.onProgress(rawLines.size(), estimateFormattedTokens(rawLines, zoneId, aiFriendlyTimestamps));
+                if (progressCallback != null && !lines.isEmpty()) {
+                    progressCallback.onProgress(lines.size(), tally.total());
                 }
 
                 if (reachedStart) {
                     break;
                 }
 
-                token = root.path("end").asText(null);
+                token = messages.end;
 
             } catch (Exception e) {
                 System.out.println("Error fetching room history: " + e.getMessage());
                 break;
             }
         }
-        Collections.reverse(rawLines);
-        Collections.reverse(eventIds);
-        return new ChatLogsWithIds(formatLogLines(rawLines, zoneId, aiFriendlyTimestamps), eventIds);
+        return new ChatLogsWithIds(formatLogLines(lines, zoneId, aiFriendlyTimestamps), lines.eventIds());
     }
 
     /**
@@ -332,19 +488,16 @@ public class RoomHistoryManager {
             return fetchRoomHistoryDetailed(roomId, hours, fromToken, -1, -1, zoneId, maxMessages, collectImages, aiFriendlyTimestamps, abortFlag, progressCallback);
         }
 
-        List<RawLogLine> rawLines = new ArrayList<>();
-        List<String> imageUrls = collectImages ? new ArrayList<>() : null;
-        List<String> imageCaptions = collectImages ? new ArrayList<>() : null;
-        List<String> imageEventIds = collectImages ? new ArrayList<>() : null;
+        HistoryBuffer lines = new HistoryBuffer(!forward);
         String firstEventId = null;
 
         TokenResult tokenRes = getTokenForEvent(roomId, startEventId, forward);
         if (tokenRes == null || tokenRes.errorMessage != null) {
             return new ChatLogsResult(
-                    formatLogLines(rawLines, zoneId, aiFriendlyTimestamps),
+                    new ArrayList<>(),
                     null,
                     tokenRes != null ? tokenRes.errorMessage : "Failed to get token for event " + startEventId,
-                    extractEventIds(rawLines));
+                    new ArrayList<>());
         }
 
         String token = tokenRes.token;
@@ -364,6 +517,9 @@ public class RoomHistoryManager {
         }
 
         String dir = forward ? "f" : "b";
+        TokenTally tally = progressCallback != null
+                ? new TokenTally(zoneId, aiFriendlyTimestamps, !forward, this::estimateLogLineTokens)
+                : null;
 
         while (token != null) {
             if (abortFlag != null && abortFlag.get()) {
@@ -381,21 +537,20 @@ public class RoomHistoryManager {
                         .timeout(Duration.ofSeconds(120))
                         .GET()
                         .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
                 if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
                     break;
                 }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
                 boolean stop = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null)))
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    if (!ev.isMessage())
                         continue;
-                    long originServerTs = ev.path("origin_server_ts").asLong(0);
+                    long originServerTs = ev.originServerTs;
 
                     if (!forward && searchFloor > 0 && originServerTs < searchFloor) {
                         stop = true;
@@ -406,27 +561,26 @@ public class RoomHistoryManager {
                         break;
                     }
 
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
-                    String msgtype = ev.path("content").path("msgtype").asText(null);
+                    String body = ev.body;
+                    String sender = ev.sender;
+                    String eventId = ev.eventId;
+                    String msgtype = ev.msgtype;
                     if (body != null && sender != null) {
-                        rawLines.add(new RawLogLine(originServerTs, sender, body, eventId));
+                        lines.append(originServerTs, sender, body, eventId);
+                        if (tally != null) tally.add(forward ? lines.line(lines.size() - 1) : lines.line(0));
 
                         if (firstEventId == null)
                             firstEventId = eventId;
 
                         // Collect image URLs if enabled
                         if (collectImages && "m.image".equals(msgtype)) {
-                            String imageUrl = ev.path("content").path("url").asText(null);
+                            String imageUrl = ev.url;
                             if (imageUrl != null && !imageUrl.isEmpty()) {
-                                imageUrls.add(imageUrl);
-                                imageCaptions.add(body);
-                                imageEventIds.add(eventId);
+                                lines.markImage(imageUrl);
                             }
                         }
 
-                        if (maxMessages > 0 && rawLines.size() >= maxMessages) {
+                        if (maxMessages > 0 && lines.size() >= maxMessages) {
                             stop = true;
                             break;
                         }
@@ -434,39 +588,30 @@ public class RoomHistoryManager {
                 }
 
                 // Report progress after each batch
-                if (progressCallback != null && !rawLines.isEmpty()) {
-                    progressCallback.onProgress(rawLines.size(), estimateFormattedTokens(rawLines, zoneId, aiFriendlyTimestamps));
+                if (progressCallback != null && !lines.isEmpty()) {
+                    progressCallback.onProgress(lines.size(), tally.total());
                 }
 
                 if (stop) {
                     break;
                 }
 
-                token = root.path("end").asText(null);
+                token = messages.end;
 
             } catch (Exception e) {
                 System.out.println("Error fetching room history relative: " + e.getMessage());
                 break;
             }
         }
-        
-        if (!forward) {
-            Collections.reverse(rawLines);
-            if (collectImages) {
-                Collections.reverse(imageUrls);
-                Collections.reverse(imageCaptions);
-                Collections.reverse(imageEventIds);
-            }
-        }
 
         return new ChatLogsResult(
-                formatLogLines(rawLines, zoneId, aiFriendlyTimestamps),
+                formatLogLines(lines, zoneId, aiFriendlyTimestamps),
                 firstEventId,
                 null,
-                imageUrls,
-                imageCaptions,
-                imageEventIds,
-                extractEventIds(rawLines));
+                collectImages ? lines.imageUrls() : null,
+                collectImages ? lines.imageCaptions() : null,
+                collectImages ? lines.imageEventIds() : null,
+                lines.eventIds());
     }
 
     private TokenResult getTokenForEvent(String roomId, String eventId, boolean forward) {
@@ -497,6 +642,248 @@ public class RoomHistoryManager {
         }
     }
 
+    /**
+     * Fetches a long time range as several windows paged concurrently instead of one backwards walk.
+     * The newest window starts from the usual pagination token; every other window starts from an
+     * anchor token resolved with /timestamp_to_event and /context at its upper bound. Windows are
+     * stitched oldest first, dropping events that appear on both sides of a boundary.
+     * Returns null when the range is too short, parallelism is off, anchors cannot be resolved, or any
+     * window fails to fetch, in which case the caller pages serially rather than returning a range with a hole.
+     */
+    private HistoryBuffer fetchWindowsInParallel(String roomId, String fromToken, long startTime, long endTime,
+            boolean collectImages, boolean requireEventId, ZoneId zoneId, boolean aiFriendlyTimestamps,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag, ProgressCallback progressCallback) {
+        int windows = (int) Math.min(fetchParallelism, (endTime - startTime) / (PARALLEL_MIN_RANGE_MS / 4));
+        if (fetchParallelism <= 1 || timestampLookupUnsupported || endTime - startTime < PARALLEL_MIN_RANGE_MS
+                || windows <= 1) {
+            return null;
+        }
+
+        long[] bounds = new long[windows + 1];
+        for (int k = 0; k <= windows; k++) {
+            bounds[k] = startTime + (endTime - startTime) * k / windows;
+        }
+        bounds[windows] = endTime;
+
+        java.util.concurrent.ExecutorService pool = windowPool();
+        List<java.util.concurrent.Future<String>> anchorFutures = new ArrayList<>();
+        for (int k = 0; k < windows - 1; k++) {
+            long upper = bounds[k + 1];
+            anchorFutures.add(pool.submit(() -> getTokenAtTimestamp(roomId, upper)));
+        }
+        String[] tokens = new String[windows];
+        tokens[windows - 1] = getPaginationToken(roomId, fromToken);
+        try {
+            for (int k = 0; k < windows - 1; k++) {
+                tokens[k] = anchorFutures.get(k).get();
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to resolve history window anchors: " + e.getMessage());
+            return null;
+        }
+        for (String token : tokens) {
+            if (token == null) {
+                System.out.println("Could not resolve all history window anchors for " + roomId + ", paging serially.");
+                return null;
+            }
+        }
+        System.out.println("Fetching " + roomId + " history in " + windows + " parallel windows");
+
+        WindowProgress progress = progressCallback != null ? new WindowProgress(windows, progressCallback) : null;
+        List<java.util.concurrent.Future<HistoryBuffer>> windowFutures = new ArrayList<>();
+        for (int k = 0; k < windows; k++) {
+            int window = k;
+            windowFutures.add(pool.submit(() -> fetchWindow(roomId, tokens[window], bounds[window], bounds[window + 1],
+                    collectImages, requireEventId, zoneId, aiFriendlyTimestamps, abortFlag, progress, window)));
+        }
+
+        HistoryBuffer stitched = new HistoryBuffer(false);
+        java.util.Set<String> boundaryIds = new java.util.HashSet<>();
+        try {
+            for (int k = 0; k < windows; k++) {
+                HistoryBuffer window = windowFutures.get(k).get();
+                if (window == null) {
+                    System.out.println("History window " + (k + 1) + " of " + windows + " failed for " + roomId
+                            + ", paging serially.");
+                    cancelAll(windowFutures);
+                    return null;
+                }
+                java.util.Set<String> nextBoundaryIds = new java.util.HashSet<>();
+                for (int i = 0; i < window.size(); i++) {
+                    String eventId = window.eventId(i);
+                    if (eventId != null && boundaryIds.contains(eventId)) continue;
+                    if (eventId != null && window.timestamp(i) >= bounds[k + 1]) nextBoundaryIds.add(eventId);
+                    stitched.append(window.timestamp(i), window.sender(i), window.body(i), eventId);
+                    String imageUrl = window.imageUrl(i);
+                    if (imageUrl != null) stitched.markImage(imageUrl);
+                }
+                boundaryIds = nextBoundaryIds;
+            }
+        } catch (Exception e) {
+            System.out.println("Error fetching history windows for " + roomId + ", paging serially: " + e.getMessage());
+            cancelAll(windowFutures);
+            return null;
+        }
+        return stitched;
+    }
+
+    private static void cancelAll(List<? extends java.util.concurrent.Future<?>> futures) {
+        for (java.util.concurrent.Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Pages one window backwards from {@code token} down to {@code floor}. Returns null if a request
+     * fails, so the window is never mistaken for a complete one.
+     */
+    private HistoryBuffer fetchWindow(String roomId, String token, long floor, long ceiling, boolean collectImages,
+            boolean requireEventId, ZoneId zoneId, boolean aiFriendlyTimestamps,
+            java.util.concurrent.atomic.AtomicBoolean abortFlag, WindowProgress progress, int window) {
+        HistoryBuffer lines = new HistoryBuffer(true);
+        TokenTally tally = progress != null
+                ? new TokenTally(zoneId, aiFriendlyTimestamps, true, this::estimateLogLineTokens)
+                : null;
+
+        while (token != null) {
+            if (abortFlag != null && abortFlag.get()) {
+                break;
+            }
+            try {
+                String messagesUrl = homeserverUrl + "/_matrix/client/v3/rooms/"
+                        + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
+                        + "/messages?from=" + URLEncoder.encode(token, StandardCharsets.UTF_8) + "&dir=b&limit=1000";
+                HttpRequest msgReq = HttpRequest.newBuilder()
+                        .uri(URI.create(messagesUrl))
+                        .header("Authorization", "Bearer " + accessToken)
+                        .timeout(Duration.ofSeconds(120))
+                        .GET()
+                        .build();
+                HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
+                if (msgResp.statusCode() != 200) {
+                    System.out.println("Failed to fetch history window: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
+                    return null;
+                }
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                if (messages.chunk.isEmpty())
+                    break;
+
+                boolean reachedFloor = false;
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    if (!ev.isMessage())
+                        continue;
+                    if (ev.originServerTs > ceiling) {
+                        continue;
+                    }
+                    if (ev.originServerTs < floor) {
+                        reachedFloor = true;
+                        break;
+                    }
+                    if (ev.body == null || ev.sender == null || (requireEventId && ev.eventId == null))
+                        continue;
+                    lines.append(ev.originServerTs, ev.sender, ev.body, ev.eventId);
+                    if (tally != null) tally.add(lines.line(0));
+                    if (collectImages && "m.image".equals(ev.msgtype) && ev.url != null && !ev.url.isEmpty()) {
+                        lines.markImage(ev.url);
+                    }
+                }
+
+                if (progress != null) {
+                    progress.update(window, lines.size(), tally.total());
+                }
+                if (reachedFloor) {
+                    break;
+                }
+                token = messages.end;
+            } catch (Exception e) {
+                System.out.println("Error fetching history window: " + e.getMessage());
+                return null;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Pagination token just after the newest event at or before {@code timestamp}, so paging backwards
+     * from it starts with that event.
+     */
+    private String getTokenAtTimestamp(String roomId, long timestamp) {
+        try {
+            String url = homeserverUrl + "/_matrix/client/v1/rooms/"
+                    + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
+                    + "/timestamp_to_event?dir=b&ts=" + timestamp;
+            HttpRequest req = HttpRequest.newBuilder()
+                    .uri(URI.create(url))
+                    .header("Authorization", "Bearer " + accessToken)
+                    .timeout(Duration.ofSeconds(60))
+                    .GET()
+                    .build();
+            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+            if (resp.statusCode() == 400 || resp.statusCode() == 404 || resp.statusCode() == 405) {
+                if (resp.body().contains("M_UNRECOGNIZED")) {
+                    // Homeserver predates timestamp_to_event; stop trying
+                    timestampLookupUnsupported = true;
+                }
+                System.out.println("timestamp_to_event returned " + resp.statusCode() + " for " + roomId);
+                return null;
+            }
+            if (resp.statusCode() != 200) {
+                System.out.println("timestamp_to_event returned " + resp.statusCode() + " for " + roomId);
+                return null;
+            }
+            String eventId = mapper.readTree(resp.body()).path("event_id").asText(null);
+            if (eventId == null) {
+                return null;
+            }
+            TokenResult tokenRes = getTokenForEvent(roomId, eventId, true);
+            return tokenRes != null ? tokenRes.token : null;
+        } catch (Exception e) {
+            System.out.println("Error resolving token at timestamp " + timestamp + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized java.util.concurrent.ExecutorService windowPool() {
+        if (windowPool == null) {
+            java.util.concurrent.atomic.AtomicInteger threadNumber = new java.util.concurrent.atomic.AtomicInteger();
+            windowPool = java.util.concurrent.Executors.newFixedThreadPool(WINDOW_POOL_SIZE, r -> {
+                Thread t = new Thread(r, "HistoryWindow-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return windowPool;
+    }
+
+    /**
+     * Sums per-window counts so concurrent windows report one combined progress figure.
+     */
+    private static final class WindowProgress {
+        private final int[] counts;
+        private final int[] tokens;
+        private final ProgressCallback callback;
+
+        WindowProgress(int windows, ProgressCallback callback) {
+            this.counts = new int[windows];
+            this.tokens = new int[windows];
+            this.callback = callback;
+        }
+
+        synchronized void update(int window, int count, int tokenCount) {
+            counts[window] = count;
+            tokens[window] = tokenCount;
+            int totalCount = 0;
+            int totalTokens = 0;
+            for (int k = 0; k < counts.length; k++) {
+                totalCount += counts[k];
+                totalTokens += tokens[k];
+            }
+            if (totalCount > 0) {
+                callback.onProgress(totalCount, totalTokens);
+            }
+        }
+    }
+
     /**
      * Fetch room history with first event ID tracking
      */
@@ -520,16 +907,53 @@ public class RoomHistoryManager {
     public ChatLogsResult fetchRoomHistoryDetailed(String roomId, int hours, String fromToken, long startTimestamp,
             long endTime, ZoneId zoneId, int maxMessages, boolean collectImages, boolean aiFriendlyTimestamps, java.util.concurrent.atomic.AtomicBoolean abortFlag,
             ProgressCallback progressCallback) {
-        List<RawLogLine> rawLines = new ArrayList<>();
-        List<String> imageUrls = collectImages ? new ArrayList<>() : null;
-        List<String> imageCaptions = collectImages ? new ArrayList<>() : null;
-        List<String> imageEventIds = collectImages ? new ArrayList<>() : null;
         String firstEventId = null;
 
         long startTime = (startTimestamp > 0) ? startTimestamp
                 : (hours > 0 ? System.currentTimeMillis() - (long) hours * 3600L * 1000L : -1);
         long calculatedEndTime = (endTime > 0) ? endTime : System.currentTimeMillis();
 
+        List<RoomEventStore.StoredEvent> stored = loadStoredMessages(roomId, startTime, calculatedEndTime, maxMessages, abortFlag);
+        if (stored != null) {
+            HistoryBuffer lines = new HistoryBuffer(false);
+            for (RoomEventStore.StoredEvent ev : stored) {
+                lines.append(ev.timestamp, ev.sender, ev.body, ev.eventId);
+                if (collectImages && "m.image".equals(ev.msgtype) && ev.url != null && !ev.url.isEmpty()) {
+                    lines.markImage(ev.url);
+                }
+            }
+            if (progressCallback != null && !lines.isEmpty()) {
+                progressCallback.onProgress(lines.size(), estimateFormattedTokens(lines, zoneId, aiFriendlyTimestamps));
+            }
+            return new ChatLogsResult(
+                    formatLogLines(lines, zoneId, aiFriendlyTimestamps),
+                    lines.isEmpty() ? null : lines.eventId(0),
+                    null,
+                    collectImages ? lines.imageUrls() : null,
+                    collectImages ? lines.imageCaptions() : null,
+                    collectImages ? lines.imageEventIds() : null,
+                    lines.eventIds());
+        }
+
+        if (startTime > 0 && maxMessages <= 0) {
+            HistoryBuffer windowed = fetchWindowsInParallel(roomId, fromToken, startTime, calculatedEndTime, collectImages,
+                    false, zoneId, aiFriendlyTimestamps, abortFlag, progressCallback);
+            if (windowed != null) {
+                return new ChatLogsResult(
+                        formatLogLines(windowed, zoneId, aiFriendlyTimestamps),
+                        windowed.isEmpty() ? null : windowed.eventId(0),
+                        null,
+                        collectImages ? windowed.imageUrls() : null,
+                        collectImages ? windowed.imageCaptions() : null,
+                        collectImages ? windowed.imageEventIds() : null,
+                        windowed.eventIds());
+            }
+        }
+
+        HistoryBuffer lines = new HistoryBuffer(true);
+        TokenTally tally = progressCallback != null
+                ? new TokenTally(zoneId, aiFriendlyTimestamps, true, this::estimateLogLineTokens)
+                : null;
         String token = getPaginationToken(roomId, fromToken);
 
         while (token != null) {
@@ -547,21 +971,20 @@ public class RoomHistoryManager {
                         .timeout(Duration.ofSeconds(120))
                         .GET()
                         .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
                 if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
                     break;
                 }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
                 boolean reachedStart = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null)))
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    if (!ev.isMessage())
                         continue;
-                    long originServerTs = ev.path("origin_server_ts").asLong(0);
+                    long originServerTs = ev.originServerTs;
 
                     if (originServerTs > calculatedEndTime) {
                         continue;
@@ -571,28 +994,27 @@ public class RoomHistoryManager {
                         break;
                     }
 
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
-                    String msgtype = ev.path("content").path("msgtype").asText(null);
+                    String body = ev.body;
+                    String sender = ev.sender;
+                    String eventId = ev.eventId;
+                    String msgtype = ev.msgtype;
 
                     if (body != null && sender != null) {
-                        rawLines.add(new RawLogLine(originServerTs, sender, body, eventId));
+                        lines.append(originServerTs, sender, body, eventId);
+                        if (tally != null) tally.add(lines.line(0));
 
                         firstEventId = eventId;
 
-                        // Collect image URLs if enabled
+                        // Collect image URLs if enabled; the caption is the row's body
                         if (collectImages && "m.image".equals(msgtype)) {
-                            String imageUrl = ev.path("content").path("url").asText(null);
+                            String imageUrl = ev.url;
                             if (imageUrl != null && !imageUrl.isEmpty()) {
-                                imageUrls.add(imageUrl);
-                                imageCaptions.add(body); // body is the caption/filename
-                                imageEventIds.add(eventId);
+                                lines.markImage(imageUrl);
                             }
                         }
 
                         // Check if we've reached the requested message count
-                        if (maxMessages > 0 && rawLines.size() >= maxMessages) {
+                        if (maxMessages > 0 && lines.size() >= maxMessages) {
                             reachedStart = true;
                             break;
                         }
@@ -600,35 +1022,29 @@ public class RoomHistoryManager {
                 }
 
                 // Report progress after each batch
-                if (progressCallback != null && !rawLines.isEmpty()) {
-                    progressCallback.onProgress(rawLines.size(), estimateFormattedTokens(rawLines, zoneId, aiFriendlyTimestamps));
+                if (progressCallback != null && !lines.isEmpty()) {
+                    progressCallback.onProgress(lines.size(), tally.total());
                 }
 
                 if (reachedStart) {
                     break;
                 }
 
-                token = root.path("end").asText(null);
+                token = messages.end;
 
             } catch (Exception e) {
                 System.out.println("Error fetching room history: " + e.getMessage());
                 break;
             }
         }
-        Collections.reverse(rawLines);
-        if (collectImages) {
-            Collections.reverse(imageUrls);
-            Collections.reverse(imageCaptions);
-            Collections.reverse(imageEventIds);
-        }
         return new ChatLogsResult(
-                formatLogLines(rawLines, zoneId, aiFriendlyTimestamps),
+                formatLogLines(lines, zoneId, aiFriendlyTimestamps),
                 firstEventId,
                 null,
-                imageUrls,
-                imageCaptions,
-                imageEventIds,
-                extractEventIds(rawLines));
+                collectImages ? lines.imageUrls() : null,
+                collectImages ? lines.imageCaptions() : null,
+                collectImages ? lines.imageEventIds() : null,
+                lines.eventIds());
     }
 
     /**
@@ -649,30 +1065,26 @@ public class RoomHistoryManager {
                     .header("Authorization", "Bearer " + accessToken)
                     .GET()
                     .build();
-            HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
 
             if (msgResp.statusCode() != 200) {
                 System.out.println("Failed to fetch messages for last message: " + msgResp.statusCode());
+                MatrixEventReader.discard(msgResp);
                 return null;
             }
 
-            JsonNode msgRoot = mapper.readTree(msgResp.body());
-            JsonNode chunk = msgRoot.path("chunk");
-            if (!chunk.isArray()) {
-                return null;
-            }
-
-            for (JsonNode ev : chunk) {
-                if (!"m.room.message".equals(ev.path("type").asText(null)))
+            MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+            for (MatrixEventReader.Event ev : messages.chunk) {
+                if (!ev.isMessage())
                     continue;
-                String msgSender = ev.path("sender").asText(null);
+                String msgSender = ev.sender;
                 if (sender.equals(msgSender)) {
-                    return new EventInfo(ev.path("event_id").asText(null), ev.path("origin_server_ts").asLong(0));
+                    return new EventInfo(ev.eventId, ev.originServerTs);
                 }
             }
 
             // Try next page if not found
-            String endToken = msgRoot.path("end").asText(null);
+            String endToken = messages.end;
             if (endToken != null) {
                 String messagesUrl2 = homeserverUrl + "/_matrix/client/v3/rooms/"
                         + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
@@ -683,22 +1095,20 @@ public class RoomHistoryManager {
                         .timeout(Duration.ofSeconds(120))
                         .GET()
                         .build();
-                HttpResponse<String> msgResp2 = httpClient.send(msgReq2, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> msgResp2 = httpClient.send(msgReq2, HttpResponse.BodyHandlers.ofInputStream());
 
                 if (msgResp2.statusCode() == 200) {
-                    JsonNode msgRoot2 = mapper.readTree(msgResp2.body());
-                    JsonNode chunk2 = msgRoot2.path("chunk");
-                    if (chunk2.isArray()) {
-                        for (JsonNode ev : chunk2) {
-                            if (!"m.room.message".equals(ev.path("type").asText(null)))
-                                continue;
-                            String msgSender = ev.path("sender").asText(null);
-                            if (sender.equals(msgSender)) {
-                                return new EventInfo(ev.path("event_id").asText(null),
-                                        ev.path("origin_server_ts").asLong(0));
-                            }
+                    MatrixEventReader.MessagesPage messages2 = eventReader.readMessages(msgResp2.body());
+                    for (MatrixEventReader.Event ev : messages2.chunk) {
+                        if (!ev.isMessage())
+                            continue;
+                        String msgSender = ev.sender;
+                        if (sender.equals(msgSender)) {
+                            return new EventInfo(ev.eventId, ev.originServerTs);
                         }
                     }
+                } else {
+                    MatrixEventReader.discard(msgResp2);
                 }
             }
 
@@ -716,6 +1126,12 @@ public class RoomHistoryManager {
     public int countUnreadMessages(String roomId, String lastReadEventId) {
         if (lastReadEventId == null)
             return -1;
+        if (eventStore != null) {
+            List<RoomEventStore.StoredEvent> unread = eventStore.getMessagesAfter(roomId, lastReadEventId);
+            if (unread != null) {
+                return unread.size();
+            }
+        }
         try {
             String token = getPaginationToken(roomId, null);
             if (token == null)
@@ -733,29 +1149,30 @@ public class RoomHistoryManager {
                         .header("Authorization", "Bearer " + accessToken)
                         .GET()
                         .build();
-                HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-                if (resp.statusCode() != 200)
+                HttpResponse<InputStream> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream());
+                if (resp.statusCode() != 200) {
+                    MatrixEventReader.discard(resp);
                     break;
+                }
 
-                JsonNode root = mapper.readTree(resp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(resp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
-                for (JsonNode ev : chunk) {
-                    String eventId = ev.path("event_id").asText("");
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    String eventId = ev.eventId != null ? ev.eventId : "";
                     if (eventId.equals(lastReadEventId)) {
                         foundLastRead = true;
                         break;
                     }
-                    if ("m.room.message".equals(ev.path("type").asText(null))) {
+                    if (ev.isMessage()) {
                         count++;
                     }
                 }
 
                 if (foundLastRead || count > 5000)
                     break; // Limit search
-                token = root.path("end").asText(null);
+                token = messages.end;
             }
 
             return foundLastRead ? count : -1;
@@ -786,15 +1203,31 @@ public class RoomHistoryManager {
         if (lastReadEventId == null)
             return new ChatLogsResult(new ArrayList<>(), null);
 
-        List<RawLogLine> rawLines = new ArrayList<>();
         String firstEventId = null;
 
+        List<RoomEventStore.StoredEvent> stored = eventStore != null ? eventStore.getMessagesAfter(roomId, lastReadEventId) : null;
+        if (stored != null) {
+            if (stored.size() > 2000) {
+                stored = stored.subList(stored.size() - 2000, stored.size()); // Safety limit
+            }
+            HistoryBuffer lines = toHistoryBuffer(stored);
+            if (progressCallback != null && !lines.isEmpty()) {
+                progressCallback.onProgress(lines.size(), estimateFormattedTokens(lines, zoneId, aiFriendlyTimestamps));
+            }
+            return new ChatLogsResult(formatLogLines(lines, zoneId, aiFriendlyTimestamps),
+                    lines.isEmpty() ? null : lines.eventId(0), null, lines.eventIds());
+        }
+
+        HistoryBuffer lines = new HistoryBuffer(true);
         try {
             String token = getPaginationToken(roomId, null);
             if (token == null)
-                return new ChatLogsResult(formatLogLines(rawLines, zoneId, aiFriendlyTimestamps), null, null, extractEventIds(rawLines));
+                return new ChatLogsResult(formatLogLines(lines, zoneId, aiFriendlyTimestamps), null, null, lines.eventIds());
 
             boolean foundLastRead = false;
+            TokenTally tally = progressCallback != null
+                    ? new TokenTally(zoneId, aiFriendlyTimestamps, true, this::estimateLogLineTokens)
+                    : null;
 
             while (token != null && !foundLastRead) {
                 if (abortFlag != null && abortFlag.get()) {
@@ -809,76 +1242,81 @@ public class RoomHistoryManager {
                         .header("Authorization", "Bearer " + accessToken)
                         .GET()
                         .build();
-                HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-                if (resp.statusCode() != 200)
+                HttpResponse<InputStream> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream());
+                if (resp.statusCode() != 200) {
+                    MatrixEventReader.discard(resp);
                     break;
+                }
 
-                JsonNode root = mapper.readTree(resp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(resp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
-                for (JsonNode ev : chunk) {
-                    String eventId = ev.path("event_id").asText("");
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    String eventId = ev.eventId != null ? ev.eventId : "";
                     if (eventId.equals(lastReadEventId)) {
                         foundLastRead = true;
                         break;
                     }
-                    if ("m.room.message".equals(ev.path("type").asText(null))) {
-                        String body = ev.path("content").path("body").asText(null);
-                        String sender = ev.path("sender").asText(null);
-                        long originServerTs = ev.path("origin_server_ts").asLong(0);
+                    if (ev.isMessage()) {
+                        String body = ev.body;
+                        String sender = ev.sender;
+                        long originServerTs = ev.originServerTs;
 
                         if (body != null && sender != null) {
-                            rawLines.add(new RawLogLine(originServerTs, sender, body, eventId));
+                            lines.append(originServerTs, sender, body, eventId);
+                            if (tally != null) tally.add(lines.line(0));
                             firstEventId = eventId;
                         }
                     }
                 }
 
                 // Report progress after each batch
-                if (progressCallback != null && !rawLines.isEmpty()) {
-                    progressCallback.onProgress(rawLines.size(), estimateFormattedTokens(rawLines, zoneId, aiFriendlyTimestamps));
+                if (progressCallback != null && !lines.isEmpty()) {
+                    progressCallback.onProgress(lines.size(), tally.total());
                 }
 
-                if (foundLastRead || rawLines.size() > 2000)
+                if (foundLastRead || lines.size() > 2000)
                     break; // Safety limit
-                token = root.path("end").asText(null);
+                token = messages.end;
             }
 
-            Collections.reverse(rawLines);
-            return new ChatLogsResult(formatLogLines(rawLines, zoneId, aiFriendlyTimestamps), firstEventId, null, extractEventIds(rawLines));
+            return new ChatLogsResult(formatLogLines(lines, zoneId, aiFriendlyTimestamps), firstEventId, null, lines.eventIds());
         } catch (Exception e) {
             System.err.println("Error fetching unread messages: " + e.getMessage());
-            return new ChatLogsResult(formatLogLines(rawLines, zoneId, aiFriendlyTimestamps), null, null, extractEventIds(rawLines));
+            return new ChatLogsResult(formatLogLines(lines, zoneId, aiFriendlyTimestamps), null, null, lines.eventIds());
         }
     }
 
-    /**
-     * Estimates prompt tokens using the vendored HuggingFace tokenizer.
-     * A small margin covers chat-template and provider-specific framing differences.
-     */
-    public static int estimateTokens(String text) {
-        if (text == null || text.isEmpty()) return 0;
-        int tokenCount = AI_TOKENIZER.encode(text, false, false).getIds().length;
-        return (int) Math.ceil(tokenCount * TOKEN_SAFETY_MARGIN);
+    private static int[] estimateLogLineTokens(List<String> keys, List<String> lines) {
+        List<String> texts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            texts.add(line + "\n");
+        }
+        return TokenEstimator.estimateCached(keys, texts);
     }
 
-    private static int estimateLogLineTokens(String line) {
-        return estimateTokens(line + "\n");
+    /**
+     * Token cache key for a formatted log line: the event ID plus the timestamp variant it was rendered with.
+     */
+    private String tokenCacheKey(RawLogLine line, ZoneId zoneId, LocalDate previousDate, boolean aiFriendlyTimestamps) {
+        if (line.eventId == null) {
+            return null;
+        }
+        ZoneId effectiveZoneId = normalizeZoneId(zoneId);
+        String variant;
+        if (aiFriendlyTimestamps) {
+            LocalDate currentDate = Instant.ofEpochMilli(line.timestamp).atZone(effectiveZoneId).toLocalDate();
+            variant = (previousDate == null || !previousDate.equals(currentDate)) ? "ai-date" : "ai-time";
+        } else {
+            variant = "legacy";
+        }
+        return line.eventId + "|" + variant + "|" + effectiveZoneId.getId();
     }
 
-    private static HuggingFaceTokenizer loadTokenizer() {
-        try (var stream = RoomHistoryManager.class.getResourceAsStream(ARLIAI_TOKENIZER_RESOURCE)) {
-            if (stream == null) {
-                throw new IllegalStateException("Missing tokenizer resource: " + ARLIAI_TOKENIZER_RESOURCE);
-            }
-            Map<String, String> options = new HashMap<>();
-            options.put("addSpecialTokens", "false");
-            return HuggingFaceTokenizer.newInstance(stream, options);
-        } catch (IOException e) {
-            throw new ExceptionInInitializerError(e);
-        }
+    private int estimateLogLineTokens(RawLogLine line, ZoneId zoneId, LocalDate previousDate, boolean aiFriendlyTimestamps) {
+        return TokenEstimator.estimateCached(tokenCacheKey(line, zoneId, previousDate, aiFriendlyTimestamps),
+                formatLogLine(line, zoneId, previousDate, aiFriendlyTimestamps) + "\n");
     }
 
     /**
@@ -899,14 +1337,19 @@ public class RoomHistoryManager {
 
     public ChatLogsResult fetchRoomHistoryUntilLimit(String roomId, String fromToken, int tokenLimit, boolean includeTimestamp, ZoneId zoneId,
             boolean aiFriendlyTimestamps, java.util.concurrent.atomic.AtomicBoolean abortFlag, ProgressCallback progressCallback) {
-        List<String> logs = new ArrayList<>();
-        List<RawLogLine> rawLines = includeTimestamp ? new ArrayList<>() : null;
-        String firstEventId = null;
-        int currentTokens = 0;
+        if (eventStore != null && eventStore.isLive(roomId)) {
+            ChatLogsResult stored = fetchStoredHistoryUntilLimit(roomId, tokenLimit, includeTimestamp, zoneId,
+                    aiFriendlyTimestamps, abortFlag, progressCallback);
+            if (stored != null) {
+                return stored;
+            }
+        }
+
+        UntilLimitCollector collector = new UntilLimitCollector(tokenLimit, includeTimestamp, zoneId, aiFriendlyTimestamps);
 
         String token = getPaginationToken(roomId, fromToken);
 
-        while (token != null && currentTokens < tokenLimit) {
+        while (token != null && collector.currentTokens < tokenLimit) {
             if (abortFlag != null && abortFlag.get()) {
                 System.out.println("fetchRoomHistoryUntilLimit aborted.");
                 break;
@@ -921,75 +1364,154 @@ public class RoomHistoryManager {
                         .timeout(Duration.ofSeconds(120))
                         .GET()
                         .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
                 if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
                     break;
                 }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0)
+                MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                if (messages.chunk.isEmpty())
                     break;
 
-                boolean reachedLimit = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null)))
+                List<RawLogLine> page = new ArrayList<>();
+                for (MatrixEventReader.Event ev : messages.chunk) {
+                    if (!ev.isMessage())
                         continue;
 
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
+                    String body = ev.body;
+                    String sender = ev.sender;
+                    String eventId = ev.eventId;
                     if (body != null && sender != null) {
-                        String line;
-                        if (includeTimestamp) {
-                            long originServerTs = ev.path("origin_server_ts").asLong(0);
-                            RawLogLine rawLine = new RawLogLine(originServerTs, sender, body, eventId);
-                            rawLines.add(rawLine);
-                            line = formatLogLine(rawLine, zoneId, null, aiFriendlyTimestamps);
-                        } else {
-                            line = "<" + sender + "> " + body;
-                        }
-
-                        int lineTokens = estimateLogLineTokens(line);
-
-                        if (currentTokens + lineTokens > tokenLimit) {
-                            if (includeTimestamp) {
-                                rawLines.remove(rawLines.size() - 1);
-                            }
-                            reachedLimit = true;
-                            break;
-                        }
-
-                        logs.add(line);
-                        currentTokens += lineTokens;
-                        firstEventId = eventId;
+                        page.add(new RawLogLine(ev.originServerTs, sender, body, eventId));
                     }
                 }
+                boolean reachedLimit = collector.addNewestFirst(page);
 
                 // Report progress after each batch
-                int gatheredCount = includeTimestamp ? rawLines.size() : logs.size();
-                if (progressCallback != null && gatheredCount > 0) {
-                    progressCallback.onProgress(gatheredCount, currentTokens);
+                if (progressCallback != null && collector.gatheredCount() > 0) {
+                    progressCallback.onProgress(collector.gatheredCount(), collector.currentTokens);
                 }
 
                 if (reachedLimit) {
                     break;
                 }
 
-                token = root.path("end").asText(null);
+                token = messages.end;
 
             } catch (Exception e) {
                 System.out.println("Error fetching room history until limit: " + e.getMessage());
                 break;
             }
         }
-        if (includeTimestamp) {
-            Collections.reverse(rawLines);
-            return new ChatLogsResult(formatLogLines(rawLines, zoneId, aiFriendlyTimestamps), firstEventId, null, extractEventIds(rawLines));
+        return collector.toResult();
+    }
+
+    /**
+     * Walks the local event store backwards until the token limit is reached, backfilling
+     * one homeserver page at a time when the stored history runs out.
+     */
+    private ChatLogsResult fetchStoredHistoryUntilLimit(String roomId, int tokenLimit, boolean includeTimestamp, ZoneId zoneId,
+            boolean aiFriendlyTimestamps, java.util.concurrent.atomic.AtomicBoolean abortFlag, ProgressCallback progressCallback) {
+        UntilLimitCollector collector = new UntilLimitCollector(tokenLimit, includeTimestamp, zoneId, aiFriendlyTimestamps);
+        // Pages end at the oldest timestamp of the previous one; the store returns whole timestamp groups
+        long before = System.currentTimeMillis() + 1;
+
+        boolean reachedLimit = false;
+        while (!reachedLimit) {
+            if (abortFlag != null && abortFlag.get()) {
+                System.out.println("fetchRoomHistoryUntilLimit aborted.");
+                break;
+            }
+            List<RoomEventStore.StoredEvent> stored = eventStore.getMessagesBefore(roomId, before, UNTIL_LIMIT_BATCH_SIZE);
+            if (stored == null) {
+                return null;
+            }
+            if (stored.isEmpty()) {
+                if (!eventStore.backfillOnePage(roomId)) {
+                    break;
+                }
+                continue;
+            }
+            List<RawLogLine> page = new ArrayList<>(stored.size());
+            for (int i = stored.size() - 1; i >= 0; i--) {
+                RoomEventStore.StoredEvent ev = stored.get(i);
+                page.add(new RawLogLine(ev.timestamp, ev.sender, ev.body, ev.eventId));
+            }
+            reachedLimit = collector.addNewestFirst(page);
+            before = stored.get(0).timestamp;
+
+            if (progressCallback != null && collector.gatheredCount() > 0) {
+                progressCallback.onProgress(collector.gatheredCount(), collector.currentTokens);
+            }
+        }
+        return collector.toResult();
+    }
+
+    /**
+     * Accumulates log lines newest first until a token limit is hit. Each page is tokenized
+     * in one batch through the cached estimator before lines are accepted.
+     */
+    private final class UntilLimitCollector {
+        private final int tokenLimit;
+        private final boolean includeTimestamp;
+        private final ZoneId zoneId;
+        private final boolean aiFriendlyTimestamps;
+        private final List<String> logs = new ArrayList<>();
+        private final List<RawLogLine> rawLines = new ArrayList<>();
+        private String firstEventId;
+        int currentTokens;
+
+        UntilLimitCollector(int tokenLimit, boolean includeTimestamp, ZoneId zoneId, boolean aiFriendlyTimestamps) {
+            this.tokenLimit = tokenLimit;
+            this.includeTimestamp = includeTimestamp;
+            this.zoneId = zoneId;
+            this.aiFriendlyTimestamps = aiFriendlyTimestamps;
+        }
+
+        /**
+         * Adds a page of lines ordered newest first. Returns true once the token limit is reached.
+         */
+        boolean addNewestFirst(List<RawLogLine> page) {
+            List<String> lines = new ArrayList<>(page.size());
+            List<String> keys = new ArrayList<>(page.size());
+            for (RawLogLine rawLine : page) {
+                if (includeTimestamp) {
+                    lines.add(formatLogLine(rawLine, zoneId, null, aiFriendlyTimestamps));
+                    keys.add(tokenCacheKey(rawLine, zoneId, null, aiFriendlyTimestamps));
+                } else {
+                    lines.add("<" + rawLine.sender + "> " + rawLine.body);
+                    keys.add(rawLine.eventId != null ? rawLine.eventId + "|plain" : null);
+                }
+            }
+            int[] lineTokens = estimateLogLineTokens(keys, lines);
+
+            for (int i = 0; i < page.size(); i++) {
+                if (currentTokens + lineTokens[i] > tokenLimit) {
+                    return true;
+                }
+                logs.add(lines.get(i));
+                rawLines.add(page.get(i));
+                currentTokens += lineTokens[i];
+                firstEventId = page.get(i).eventId;
+            }
+            return false;
+        }
+
+        int gatheredCount() {
+            return logs.size();
         }
 
-        Collections.reverse(logs);
-        return new ChatLogsResult(logs, firstEventId);
+        ChatLogsResult toResult() {
+            if (includeTimestamp) {
+                List<RawLogLine> chronological = new ArrayList<>(rawLines);
+                Collections.reverse(chronological);
+                return new ChatLogsResult(formatLogLines(chronological, zoneId, aiFriendlyTimestamps), firstEventId, null,
+                        extractEventIds(chronological));
+            }
+            List<String> chronological = new ArrayList<>(logs);
+            Collections.reverse(chronological);
+            return new ChatLogsResult(chronological, firstEventId);
+        }
     }
 
     /**
@@ -1149,28 +1671,14 @@ public class RoomHistoryManager {
                     .header("Authorization", "Bearer " + accessToken)
                     .GET()
                     .build();
-            HttpResponse<String> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<InputStream> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofInputStream());
             if (syncResp.statusCode() == 200) {
-                JsonNode root = mapper.readTree(syncResp.body());
-                return root.path("next_batch").asText(null);
+                return eventReader.readSyncToken(syncResp.body());
             }
+            MatrixEventReader.discard(syncResp);
         } catch (Exception ignore) {
             // ignore
         }
         return null;
     }
 }
-
-final class RawLogLine {
-    final long timestamp;
-    final String sender;
-    final String body;
-    final String eventId;
-
-    RawLogLine(long timestamp, String sender, String body, String eventId) {
-        this.timestamp = timestamp;
-        this.sender = sender;
-        this.body = body;
-        this.eventId = eventId;
-    }
-}
@@ -0,0 +1,244 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trigram inverted index over one room's stored messages, used to narrow !grep and !searchtext.
+ * Documents are numbered in the order the event store appends them. Each trigram of the lower-cased
+ * "] <sender> body" text maps to an ascending posting list stored as varint-encoded deltas.
+ * Lookups return candidates only; callers still run the exact match on each one, so any substring
+ * query works, not just whole words. Redacted documents are removed by ID and never returned again;
+ * removals are not saved, the event store reapplies them from its log on load.
+ */
+final class RoomSearchIndex {
+    private static final int GRAM = 3;
+    private static final int FILE_MAGIC = 0x52534931; // "RSI1"
+    private static final String TIMESTAMP_CHARS = "[0123456789-: ";
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final BitSet removed = new BitSet();
+    private int docCount;
+
+    int docCount() {
+        return docCount;
+    }
+
+    /**
+     * Indexes the next document and returns its ID.
+     */
+    int add(String sender, String body) {
+        int docId = docCount++;
+        String text = indexedText(sender, body);
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM));
+        }
+        for (String gram : grams) {
+            postings.computeIfAbsent(gram, g -> new Postings()).add(docId);
+        }
+        return docId;
+    }
+
+    /**
+     * Drops a document, such as a redacted message, from all future lookups.
+     */
+    void remove(int docId) {
+        removed.set(docId);
+    }
+
+    /**
+     * Ascending IDs of documents that may contain every term (terms already lower-cased), or null
+     * when no term is selective enough to use the index and every document is a candidate.
+     */
+    int[] candidates(List<String> lowerTerms) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : lowerTerms) {
+            String part = indexablePart(term);
+            if (part == null) continue;
+            for (int i = 0; i + GRAM <= part.length(); i++) {
+                Postings list = postings.get(part.substring(i, i + GRAM));
+                if (list == null) {
+                    return new int[0];
+                }
+                lists.add(list);
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        lists.sort(Comparator.comparingInt(list -> list.count));
+        int[] result = lists.get(0).decode();
+        for (int k = 1; k < lists.size() && result.length > 0; k++) {
+            result = intersect(result, lists.get(k).decode());
+        }
+        return removed.isEmpty() ? result : withoutRemoved(result);
+    }
+
+    /**
+     * The part of a lower-cased search term guaranteed to fall inside the indexed text when the term
+     * matches a formatted "[timestamp] <sender> body" line, or null if none is long enough.
+     */
+    static String indexablePart(String term) {
+        String part;
+        int bracket = term.indexOf(']');
+        if (bracket >= 0) {
+            // Whatever precedes the first ']' may be the unindexed timestamp
+            part = term.substring(bracket);
+        } else {
+            part = null;
+            for (int i = 0; i < term.length(); i++) {
+                if (TIMESTAMP_CHARS.indexOf(term.charAt(i)) < 0) {
+                    // Cannot lie entirely inside the timestamp, and cannot cross it without a ']'
+                    part = term;
+                    break;
+                }
+            }
+        }
+        return part != null && part.length() >= GRAM ? part : null;
+    }
+
+    static String indexedText(String sender, String body) {
+        return ("] <" + sender + "> " + body).toLowerCase();
+    }
+
+    void save(Path file, String lastEventId) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(docCount);
+            out.writeUTF(lastEventId != null ? lastEventId : "");
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                Postings list = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(list.last);
+                out.writeInt(list.count);
+                out.writeInt(list.size);
+                out.write(list.data, 0, list.size);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a saved index if it was written for the first {@code docCount} documents ending with
+     * {@code lastEventId}; returns null otherwise so the caller rebuilds from the event log.
+     */
+    static RoomSearchIndex load(Path file, List<String> docEventIds) {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) return null;
+            int docCount = in.readInt();
+            String lastEventId = in.readUTF();
+            if (docCount > docEventIds.size()
+                    || (docCount > 0 && !lastEventId.equals(docEventIds.get(docCount - 1)))) {
+                return null;
+            }
+            RoomSearchIndex index = new RoomSearchIndex();
+            index.docCount = docCount;
+            int terms = in.readInt();
+            for (int t = 0; t < terms; t++) {
+                String gram = in.readUTF();
+                Postings list = new Postings();
+                list.last = in.readInt();
+                list.count = in.readInt();
+                list.size = in.readInt();
+                list.data = new byte[Math.max(16, list.size)];
+                in.readFully(list.data, 0, list.size);
+                index.postings.put(gram, list);
+            }
+            return index;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable search index " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private int[] withoutRemoved(int[] docIds) {
+        int[] out = new int[docIds.length];
+        int n = 0;
+        for (int docId : docIds) {
+            if (!removed.get(docId)) {
+                out[n++] = docId;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Ascending doc IDs as varint-encoded gaps from the previous ID.
+     */
+    private static final class Postings {
+        byte[] data = new byte[16];
+        int size;
+        int last = -1;
+        int count;
+
+        void add(int docId) {
+            if (docId <= last) return;
+            int gap = docId - last;
+            last = docId;
+            count++;
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((gap & ~0x7F) != 0) {
+                data[size++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[size++] = (byte) gap;
+        }
+
+        int[] decode() {
+            int[] ids = new int[count];
+            int pos = 0;
+            int doc = -1;
+            for (int n = 0; n < count; n++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += gap;
+                ids[n] = doc;
+            }
+            return ids;
+        }
+    }
+}
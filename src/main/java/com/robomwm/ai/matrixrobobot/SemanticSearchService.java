@@ -4,16 +4,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.net.http.HttpClient;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * AI-free semantic search engine using local text similarity
- * Uses Jaccard similarity and word overlap for ranking
+ * Ranks messages with BM25 plus a term proximity boost, using a per-room {@link Bm25Index}
+ * that only tokenizes messages it has not seen before
  */
 
 public class SemanticSearchService {
@@ -22,13 +22,17 @@ public class SemanticSearchService {
     private final String homeserver;
     private final String accessToken;
     private final RoomHistoryManager historyManager;
+    private final Map<String, Bm25Index> roomIndexes = new ConcurrentHashMap<>();
+    private static final int MAX_INDEXED_MESSAGES = 500_000;
+    private static final Pattern LOG_LINE = Pattern.compile("\\[(.*?)\\] <(.*?)> (.*)");
 
-    public SemanticSearchService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken) {
+    public SemanticSearchService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken,
+            RoomHistoryManager historyManager) {
         this.client = client;
         this.mapper = mapper;
         this.homeserver = homeserver;
         this.accessToken = accessToken;
-        this.historyManager = new RoomHistoryManager(client, mapper, homeserver, accessToken);
+        this.historyManager = historyManager;
     }
 
     public static class MessageEmbedding {
@@ -69,26 +73,31 @@ public class SemanticSearchService {
                 return;
             }
 
-            List<MessageEmbedding> candidates = new ArrayList<>();
-            Pattern pattern = Pattern.compile("\\[(.*?)\\] <(.*?)> (.*)");
-
+            Bm25Index index = roomIndex(exportRoomId);
+            int[] window = new int[result.logs.size()];
             for (int i = 0; i < result.logs.size(); i++) {
                 if (abortFlag != null && abortFlag.get()) {
                     System.out.println("Semantic search aborted during candidate building.");
                     return;
                 }
-                String log = result.logs.get(i);
                 String eventId = result.eventIds.get(i);
-                Matcher matcher = pattern.matcher(log);
-                if (matcher.matches()) {
-                    String timestamp = matcher.group(1);
-                    String sender = matcher.group(2);
-                    String message = matcher.group(3);
-                    candidates.add(new MessageEmbedding(eventId, message, timestamp, sender, new double[0]));
+                int docId = eventId != null ? index.docId(eventId) : -1;
+                if (docId < 0 && eventId != null) {
+                    Matcher matcher = LOG_LINE.matcher(result.logs.get(i));
+                    if (matcher.matches()) {
+                        docId = index.add(eventId, matcher.group(3));
+                    }
                 }
+                window[i] = docId;
             }
 
-            List<MessageEmbedding> searchResults = localSearch(query, candidates, 5);
+            List<MessageEmbedding> searchResults = new ArrayList<>();
+            for (Bm25Index.Hit hit : index.search(query, window, 5)) {
+                Matcher matcher = LOG_LINE.matcher(result.logs.get(hit.position));
+                if (!matcher.matches()) continue;
+                searchResults.add(new MessageEmbedding(result.eventIds.get(hit.position), matcher.group(3),
+                        matcher.group(1), matcher.group(2), new double[] { hit.score }));
+            }
 
             if (searchResults.isEmpty()) {
                 matrixClient.sendText(responseRoomId, "No relevant matches found for query: \"" + query + "\"");
@@ -118,118 +127,23 @@ public class SemanticSearchService {
         }
     }
 
-    private List<MessageEmbedding> localSearch(String query, List<MessageEmbedding> candidates, int topK) {
-        String[] queryTerms = tokenize(query);
-        if (queryTerms.length == 0)
-            return new ArrayList<>();
-
-        // 1. Calculate Document Frequency (DF) for TF-IDF
-        java.util.Map<String, Integer> dfMap = new java.util.HashMap<>();
-        for (MessageEmbedding c : candidates) {
-            Set<String> uniqueWords = new HashSet<>(java.util.Arrays.asList(tokenize(c.message)));
-            for (String word : uniqueWords) {
-                dfMap.put(word, dfMap.getOrDefault(word, 0) + 1);
-            }
-        }
-
-        List<MessageEmbedding> scoredResults = new ArrayList<>();
-        double n = candidates.size();
-
-        for (MessageEmbedding c : candidates) {
-            String[] docTerms = tokenize(c.message);
-            if (docTerms.length == 0)
-                continue;
-
-            Set<String> docTermSet = new HashSet<>(java.util.Arrays.asList(docTerms));
-            double tfIdfScore = 0;
-            int matches = 0;
-
-            for (String qt : queryTerms) {
-                // TF: term frequency in doc
-                double tf = 0;
-                for (String dt : docTerms) {
-                    if (dt.equals(qt))
-                        tf++;
-                }
-
-                if (tf > 0) {
-                    matches++;
-                    // IDF: log(N/DF)
-                    double idf = Math.log(n / (double) dfMap.getOrDefault(qt, 1) + 1.0);
-                    tfIdfScore += tf * idf;
-                }
-            }
-
-            if (matches == 0)
-                continue;
-
-            // 2. Proximity Scoring
-            double proximityScore = calculateProximityScore(queryTerms, docTerms);
-
-            // Final score: combine TF-IDF and proximity (proximity is a boost)
-            double finalScore = (tfIdfScore * (1.0 + proximityScore)) / (double) queryTerms.length;
-
-            scoredResults.add(new MessageEmbedding(
-                    c.eventId, c.message, c.timestamp, c.sender, new double[] { finalScore }));
-        }
-
-        scoredResults.sort((a, b) -> Double.compare(b.embedding[0], a.embedding[0]));
-        return scoredResults.subList(0, Math.min(topK, scoredResults.size()));
-    }
-
-    private double calculateProximityScore(String[] queryTerms, String[] docTerms) {
-        if (queryTerms.length < 2)
-            return 0.0;
-
-        // Find positions of all query terms in the doc
-        java.util.Map<String, List<Integer>> positions = new java.util.HashMap<>();
-        for (int i = 0; i < docTerms.length; i++) {
-            for (String qt : queryTerms) {
-                if (docTerms[i].equals(qt)) {
-                    positions.computeIfAbsent(qt, k -> new ArrayList<>()).add(i);
-                }
-            }
+    /**
+     * Forgets a redacted message so it no longer affects or appears in search results.
+     */
+    public void forgetMessage(String roomId, String eventId) {
+        Bm25Index index = roomIndexes.get(roomId);
+        if (index != null) {
+            index.remove(eventId);
         }
-
-        if (positions.size() < 2)
-            return 0.0;
-
-        // Simple proximity: inverse of distance between adjacent query terms
-        double maxProximity = 0;
-        for (int i = 0; i < queryTerms.length - 1; i++) {
-            List<Integer> pos1 = positions.get(queryTerms[i]);
-            List<Integer> pos2 = positions.get(queryTerms[i + 1]);
-
-            if (pos1 == null || pos2 == null)
-                continue;
-
-            for (int p1 : pos1) {
-                for (int p2 : pos2) {
-                    int dist = Math.abs(p1 - p2);
-                    if (dist > 0) {
-                        maxProximity += 1.0 / (double) dist;
-                    }
-                }
-            }
-        }
-
-        return Math.min(1.0, maxProximity); // Cap proximity boost at 1.0
     }
 
-    private static String[] tokenize(String text) {
-        if (text == null)
-            return new String[0];
-        String normalized = text.toLowerCase().replaceAll("[^a-z0-9\\s]", " ");
-        String[] words = normalized.split("\\s+");
-        List<String> filtered = new ArrayList<>();
-        Set<String> stopWords = new HashSet<>(java.util.Arrays.asList(
-                "the", "is", "at", "which", "on", "and", "a", "an", "of", "to", "in", "it", "for", "with", "as"));
-
-        for (String w : words) {
-            if (w.length() > 2 && !stopWords.contains(w)) {
-                filtered.add(w);
-            }
+    private Bm25Index roomIndex(String roomId) {
+        Bm25Index index = roomIndexes.computeIfAbsent(roomId, k -> new Bm25Index());
+        if (index.size() > MAX_INDEXED_MESSAGES) {
+            // Start over rather than grow without bound; the next windows re-populate it
+            index = new Bm25Index();
+            roomIndexes.put(roomId, index);
         }
-        return filtered.toArray(new String[0]);
+        return index;
     }
 }
@@ -0,0 +1,252 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes a streamed chat completion straight from the response bytes.
+ * Server-sent events are framed in a reusable byte buffer and their data is read with a Jackson
+ * streaming parser, picking out only the fields a reply is built from instead of building a tree per
+ * delta. Ollama's native newline-delimited JSON is accepted as well.
+ */
+final class SseDecoder implements Closeable {
+    private static final byte[] DATA = {'d', 'a', 't', 'a', ':'};
+    private static final byte[] DONE = {'[', 'D', 'O', 'N', 'E', ']'};
+
+    /**
+     * The parts of one streamed chunk that a reply is built from; fields the chunk did not carry are null.
+     */
+    static final class Delta {
+        String content; // choices[0].delta.content, or message.content in Ollama's format
+        String reasoning; // choices[0].delta.reasoning or reasoning_content
+        String model;
+        JsonNode error;
+        JsonNode usage;
+        boolean done; // [DONE], or "done": true from Ollama
+    }
+
+    private final InputStream in;
+    private final ObjectMapper mapper;
+    private byte[] buffer = new byte[8192];
+    private int start; // First unconsumed byte in buffer
+    private int end; // End of the bytes read into buffer
+    private byte[] event = new byte[1024]; // Data of the event being framed
+    private int eventLength = -1; // -1 while the event has no data lines
+    private int lines;
+    private boolean eof;
+
+    SseDecoder(InputStream in, ObjectMapper mapper) {
+        this.in = in;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Lines read so far, including blank ones.
+     */
+    int linesRead() {
+        return lines;
+    }
+
+    /**
+     * Reads up to the next event that carries data and decodes it, or returns null at the end of the stream.
+     * If the data is not valid JSON an IOException is thrown after the event has been consumed, so
+     * decoding may carry on with the next one.
+     */
+    Delta next() throws IOException {
+        while (true) {
+            int lineEnd = nextLine();
+            if (lineEnd < 0) {
+                // Dispatch a last event that wasn't terminated by a blank line
+                return eventLength >= 0 ? dispatch() : null;
+            }
+            int lineStart = start;
+            start = lineEnd + 1;
+            int length = lineEnd - lineStart;
+            if (length > 0 && buffer[lineStart + length - 1] == '\r') length--;
+            lines++;
+
+            if (length == 0) {
+                if (eventLength >= 0) return dispatch();
+                continue;
+            }
+            if (startsWith(lineStart, length, DATA)) {
+                int from = lineStart + DATA.length;
+                if (from < lineStart + length && buffer[from] == ' ') from++;
+                appendData(from, lineStart + length - from);
+            } else if (buffer[lineStart] == '{' && eventLength < 0) {
+                // Ollama: one JSON object per line without SSE framing
+                appendData(lineStart, length);
+                return dispatch();
+            }
+            // Comments (": OPENROUTER PROCESSING"), event:, id: and retry: lines carry nothing we need
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Index of the next '\n' in the buffer, reading more as needed, or -1 once the stream is exhausted.
+     * A last line without a newline is terminated by one at the end of the stream.
+     */
+    private int nextLine() throws IOException {
+        int scan = start;
+        while (true) {
+            for (; scan < end; scan++) {
+                if (buffer[scan] == '\n') return scan;
+            }
+            if (eof) {
+                if (start == end) return -1;
+                ensureSpace(1);
+                buffer[end] = '\n';
+                return end++;
+            }
+            int scanned = scan - start;
+            ensureSpace(4096);
+            scan = start + scanned;
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+            } else {
+                end += read;
+            }
+        }
+    }
+
+    private void ensureSpace(int wanted) {
+        if (buffer.length - end >= wanted) return;
+        int pending = end - start;
+        if (start > 0 && buffer.length - pending >= wanted) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        } else {
+            byte[] grown = new byte[Math.max(buffer.length * 2, pending + wanted)];
+            System.arraycopy(buffer, start, grown, 0, pending);
+            buffer = grown;
+        }
+        start = 0;
+        end = pending;
+    }
+
+    private boolean startsWith(int offset, int length, byte[] prefix) {
+        return length >= prefix.length
+                && Arrays.equals(buffer, offset, offset + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private void appendData(int offset, int length) {
+        // Data lines of one event are joined with newlines
+        int size = eventLength < 0 ? length : eventLength + 1 + length;
+        if (size > event.length) {
+            event = Arrays.copyOf(event, Math.max(event.length * 2, size));
+        }
+        if (eventLength >= 0) event[eventLength++] = '\n';
+        else eventLength = 0;
+        System.arraycopy(buffer, offset, event, eventLength, length);
+        eventLength += length;
+    }
+
+    private Delta dispatch() throws IOException {
+        int length = eventLength;
+        eventLength = -1;
+        int from = 0;
+        while (from < length && event[from] <= ' ') from++;
+        while (length > from && event[length - 1] <= ' ') length--;
+        Delta delta = new Delta();
+        if (length - from == DONE.length && Arrays.equals(event, from, length, DONE, 0, DONE.length)) {
+            delta.done = true;
+            return delta;
+        }
+        if (length == from) return delta;
+        try (JsonParser parser = mapper.createParser(event, from, length - from)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in stream event");
+            }
+            readChunk(parser, delta);
+        }
+        return delta;
+    }
+
+    private void readChunk(JsonParser parser, Delta delta) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "model":
+                    if (value == JsonToken.VALUE_STRING) delta.model = parser.getText();
+                    break;
+                case "error":
+                    delta.error = parser.readValueAsTree();
+                    break;
+                case "usage":
+                    if (value == JsonToken.START_OBJECT) delta.usage = parser.readValueAsTree();
+                    else parser.skipChildren();
+                    break;
+                case "x_groq": // Groq sends stream usage here
+                    if (value == JsonToken.START_OBJECT) {
+                        JsonNode groq = parser.readValueAsTree();
+                        if (groq.path("usage").isObject()) delta.usage = groq.get("usage");
+                    }
+                    break;
+                case "done":
+                    delta.done = value == JsonToken.VALUE_TRUE;
+                    break;
+                case "message":
+                    if (value == JsonToken.START_OBJECT) readMessage(parser, delta, false);
+                    else parser.skipChildren();
+                    break;
+                case "choices":
+                    if (value == JsonToken.START_ARRAY) readChoices(parser, delta);
+                    else parser.skipChildren();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private void readChoices(JsonParser parser, Delta delta) throws IOException {
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!first || parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                    readMessage(parser, delta, true);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a delta or Ollama message object; only deltas carry reasoning.
+     */
+    private void readMessage(JsonParser parser, Delta delta, boolean withReasoning) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value != JsonToken.VALUE_STRING) {
+                parser.skipChildren();
+            } else if ("content".equals(field)) {
+                delta.content = parser.getText();
+            } else if (withReasoning && delta.reasoning == null
+                    && ("reasoning".equals(field) || "reasoning_content".equals(field))) {
+                delta.reasoning = parser.getText();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits chat log lines into buckets for the map step of map-reduce summaries.
+ * A day that fits the token budget is one bucket; a busier day is split by hour, and an hour that is
+ * still too big by tokens. Following calendar boundaries instead of packing tokens means the same day
+ * or hour turns into the same bucket in overlapping windows, so its summary can be cached and reused.
+ */
+final class SummaryBuckets {
+    // "[2024-05-01 13:05] " on the first line of a day (and in legacy format), "[13:05] " after that
+    private static final Pattern TIMESTAMP = Pattern.compile("^\\[(?:(\\d{4}-\\d{2}-\\d{2}) )?(\\d{1,2}):\\d{2}\\] ");
+
+    static final class Bucket {
+        final String day; // yyyy-MM-dd, or null if the lines carry no date
+        final String label;
+        final boolean wholeDay;
+        final List<String> lines;
+
+        Bucket(String day, String label, boolean wholeDay, List<String> lines) {
+            this.day = day;
+            this.label = label;
+            this.wholeDay = wholeDay;
+            this.lines = lines;
+        }
+    }
+
+    private SummaryBuckets() {
+    }
+
+    static List<Bucket> split(List<String> lines, int[] lineTokens, int budget) {
+        String[] days = new String[lines.size()];
+        int[] hours = new int[lines.size()];
+        String day = null;
+        int hour = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            Matcher m = TIMESTAMP.matcher(lines.get(i));
+            if (m.find()) {
+                if (m.group(1) != null) day = m.group(1);
+                hour = Integer.parseInt(m.group(2));
+            }
+            // Continuation lines without a timestamp stay with the line before
+            days[i] = day;
+            hours[i] = hour;
+        }
+
+        List<Bucket> buckets = new ArrayList<>();
+        int dayStart = 0;
+        while (dayStart < lines.size()) {
+            int dayEnd = dayStart;
+            while (dayEnd < lines.size() && same(days[dayEnd], days[dayStart])) dayEnd++;
+            String dayLabel = days[dayStart] != null ? days[dayStart] : "undated";
+            if (sum(lineTokens, dayStart, dayEnd) <= budget) {
+                buckets.add(new Bucket(days[dayStart], dayLabel, true, lines.subList(dayStart, dayEnd)));
+            } else {
+                int hourStart = dayStart;
+                while (hourStart < dayEnd) {
+                    int hourEnd = hourStart;
+                    while (hourEnd < dayEnd && hours[hourEnd] == hours[hourStart]) hourEnd++;
+                    String hourLabel = dayLabel + " " + hours[hourStart] + ":00";
+                    List<List<String>> parts = AIService.chunkByTokens(lines.subList(hourStart, hourEnd),
+                            Arrays.copyOfRange(lineTokens, hourStart, hourEnd), budget);
+                    for (int p = 0; p < parts.size(); p++) {
+                        String label = parts.size() == 1 ? hourLabel : hourLabel + " #" + (p + 1);
+                        buckets.add(new Bucket(days[dayStart], label, false, parts.get(p)));
+                    }
+                    hourStart = hourEnd;
+                }
+            }
+            dayStart = dayEnd;
+        }
+        return buckets;
+    }
+
+    /**
+     * Cache key for a summary of {@code lines} in the room under the given prompt. Timestamps are left out
+     * of the hash because a line's date prefix depends on where the window started.
+     */
+    static String cacheKey(String roomId, String label, String prompt, List<String> lines) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(prompt.getBytes(StandardCharsets.UTF_8));
+        for (String line : lines) {
+            digest.update((byte) '\n');
+            digest.update(TIMESTAMP.matcher(line).replaceFirst("").getBytes(StandardCharsets.UTF_8));
+        }
+        return "summary-v1:" + roomId + ":" + label + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static long sum(int[] values, int from, int to) {
+        long total = 0;
+        for (int i = from; i < to; i++) total += values[i];
+        return total;
+    }
+}
@@ -0,0 +1,105 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decouples the /sync long-poll from event handling.
+ * The sync thread only submits per-room batches; a small worker pool handles them, keeping each room's
+ * batches in the order they were received while different rooms proceed in parallel. The number of
+ * batches in flight is bounded, so a stalled handler eventually pushes back on the sync thread
+ * instead of buffering without limit.
+ */
+public class SyncPipeline {
+    public enum BatchType {
+        INVITE,
+        LEAVE,
+        JOIN
+    }
+
+    public static class RoomBatch {
+        public final String roomId;
+        public final BatchType type;
+        public final JsonNode roomNode;
+
+        public RoomBatch(String roomId, BatchType type, JsonNode roomNode) {
+            this.roomId = roomId;
+            this.type = type;
+            this.roomNode = roomNode;
+        }
+    }
+
+    @FunctionalInterface
+    public interface BatchHandler {
+        void handle(RoomBatch batch) throws Exception;
+    }
+
+    private final BatchHandler handler;
+    private final Semaphore capacity;
+    private final ExecutorService workers;
+    private final Map<String, ArrayDeque<RoomBatch>> roomQueues = new HashMap<>();
+
+    public SyncPipeline(int maxInFlight, int workerCount, BatchHandler handler) {
+        this.handler = handler;
+        this.capacity = new Semaphore(maxInFlight);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "SyncWorker-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a batch for its room. Blocks while the pipeline is full.
+     */
+    public void submit(RoomBatch batch) throws InterruptedException {
+        if (!capacity.tryAcquire()) {
+            System.out.println("Sync pipeline full, waiting for room workers to catch up...");
+            capacity.acquire();
+        }
+        boolean startWorker;
+        synchronized (roomQueues) {
+            ArrayDeque<RoomBatch> queue = roomQueues.get(batch.roomId);
+            startWorker = queue == null;
+            if (startWorker) {
+                // Presence of a queue means a worker currently owns this room
+                queue = new ArrayDeque<>();
+                roomQueues.put(batch.roomId, queue);
+            }
+            queue.addLast(batch);
+        }
+        if (startWorker) {
+            workers.execute(() -> drainRoom(batch.roomId));
+        }
+    }
+
+    private void drainRoom(String roomId) {
+        while (true) {
+            RoomBatch batch;
+            synchronized (roomQueues) {
+                ArrayDeque<RoomBatch> queue = roomQueues.get(roomId);
+                batch = queue.pollFirst();
+                if (batch == null) {
+                    roomQueues.remove(roomId);
+                    return;
+                }
+            }
+            try {
+                handler.handle(batch);
+            } catch (Exception e) {
+                System.err.println("Error handling " + batch.type + " batch for " + roomId + ": " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                capacity.release();
+            }
+        }
+    }
+}
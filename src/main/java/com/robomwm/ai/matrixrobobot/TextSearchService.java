@@ -1,8 +1,8 @@
 package com.robomwm.ai.matrixrobobot;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -12,6 +12,7 @@ import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,7 @@ public class TextSearchService {
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final MatrixRobobot.Config config;
+    private final MatrixEventReader eventReader;
     private final Map<String, AtomicBoolean> runningOperations;
     private final Map<String, TextSearchPaginationState> searchCache;
 
@@ -41,12 +43,16 @@ public class TextSearchService {
         this.mapper = mapper;
         this.homeserverUrl = homeserverUrl;
         this.config = config;
+        this.eventReader = new MatrixEventReader(mapper);
         this.runningOperations = runningOperations;
         this.searchCache = new ConcurrentHashMap<>();
     }
 
     public void performGrep(String roomId, String sender, String responseRoomId, String exportRoomId, int hours,
             String fromToken, String pattern, ZoneId zoneId) {
+        // Register this operation for abort capability
+        AtomicBoolean abortFlag = new AtomicBoolean(false);
+        runningOperations.put(sender, abortFlag);
         try {
             String timeInfo = "last " + hours + "h";
 
@@ -62,7 +68,11 @@ public class TextSearchService {
                     pattern.toLowerCase(), true, "Grep", exportRoomId,
                     responseRoomId, originalEventId, zoneId, startTime, endTime);
 
-            fetchMoreResults(state);
+            fetchMoreResults(state, abortFlag);
+            if (abortFlag.get()) {
+                System.out.println("Text search aborted by user: " + sender);
+                return;
+            }
 
             if (state.allResults.isEmpty()) {
                 if (originalEventId != null) {
@@ -83,11 +93,16 @@ public class TextSearchService {
         } catch (Exception e) {
             System.out.println("Failed to perform grep: " + e.getMessage());
             matrixClient.sendText(responseRoomId, "Error performing grep: " + e.getMessage());
+        } finally {
+            runningOperations.remove(sender, abortFlag);
         }
     }
 
     public void performSearch(String roomId, String sender, String responseRoomId, String exportRoomId, int hours,
             String fromToken, String query, ZoneId zoneId) {
+        // Register this operation for abort capability
+        AtomicBoolean abortFlag = new AtomicBoolean(false);
+        runningOperations.put(sender, abortFlag);
         try {
             String timeInfo = "last " + hours + "h";
 
@@ -104,7 +119,11 @@ public class TextSearchService {
             TextSearchPaginationState state = new TextSearchPaginationState(sender, query, searchTerms,
                     exportRoomId, responseRoomId, originalEventId, zoneId, startTime, endTime);
 
-            fetchMoreResults(state);
+            fetchMoreResults(state, abortFlag);
+            if (abortFlag.get()) {
+                System.out.println("Text search aborted by user: " + sender);
+                return;
+            }
 
             if (state.allResults.isEmpty()) {
                 if (originalEventId != null) {
@@ -125,6 +144,8 @@ public class TextSearchService {
         } catch (Exception e) {
             System.out.println("Failed to perform search: " + e.getMessage());
             matrixClient.sendText(responseRoomId, "Error performing search: " + e.getMessage());
+        } finally {
+            runningOperations.remove(sender, abortFlag);
         }
     }
 
@@ -155,7 +176,7 @@ public class TextSearchService {
         while (pageNum > state.getTotalPages() || (pageNum == state.getTotalPages() && state.hasMoreResults)) {
             if (!state.hasMoreResults && pageNum > state.getTotalPages()) break;
             try {
-                fetchMoreResults(state);
+                fetchMoreResults(state, null);
             } catch (Exception e) {
                 System.out.println("Failed to load more search results: " + e.getMessage());
                 return -1;
@@ -169,12 +190,32 @@ public class TextSearchService {
         return pageNum;
     }
 
-    private void fetchMoreResults(TextSearchPaginationState state) throws Exception {
+    private void fetchMoreResults(TextSearchPaginationState state, AtomicBoolean abortFlag) throws Exception {
         if (state.reachedStart) {
             state.hasMoreResults = false;
             return;
         }
 
+        if (state.nextBatch == null) {
+            List<String> terms = state.isGrep ? List.of(state.lowerPattern) : Arrays.asList(state.searchTerms);
+            List<RoomEventStore.StoredEvent> stored = historyManager.searchStoredMessages(state.exportRoomId,
+                    state.startTime, state.endTime, terms, abortFlag);
+            if (abortFlag != null && abortFlag.get()) {
+                state.hasMoreResults = false;
+                return;
+            }
+            if (stored != null) {
+                for (int i = stored.size() - 1; i >= 0; i--) {
+                    RoomEventStore.StoredEvent ev = stored.get(i);
+                    if (!state.seenEventIds.add(ev.eventId)) continue;
+                    collectHit(state, ev.timestamp, ev.sender, ev.body, ev.eventId);
+                }
+                state.reachedStart = true;
+                state.hasMoreResults = false;
+                return;
+            }
+        }
+
         String token = state.nextBatch;
         if (token == null) {
             String filter = "{\"room\":{\"rooms\":[\"" + state.exportRoomId + "\"],\"timeline\":{\"limit\":1},\"state\":{\"lazy_load_members\":true}},\"presence\":{\"not_types\":[\"m.presence\"]}}";
@@ -183,10 +224,11 @@ public class TextSearchService {
                     .header("Authorization", "Bearer " + config.accessToken)
                     .GET()
                     .build();
-            HttpResponse<String> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<InputStream> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofInputStream());
             if (syncResp.statusCode() == 200) {
-                JsonNode root = mapper.readTree(syncResp.body());
-                token = root.path("next_batch").asText(null);
+                token = eventReader.readSyncToken(syncResp.body());
+            } else {
+                MatrixEventReader.discard(syncResp);
             }
             if (token == null) {
                 state.hasMoreResults = false;
@@ -204,23 +246,22 @@ public class TextSearchService {
                 .header("Authorization", "Bearer " + config.accessToken)
                 .GET()
                 .build();
-        HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
         if (msgResp.statusCode() != 200) {
-            System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+            System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
             state.hasMoreResults = false;
             return;
         }
 
-        JsonNode root = mapper.readTree(msgResp.body());
-        JsonNode chunk = root.path("chunk");
-        if (!chunk.isArray() || chunk.size() == 0) {
+        MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+        if (messages.chunk.isEmpty()) {
             state.hasMoreResults = false;
             return;
         }
 
-        for (JsonNode ev : chunk) {
-            if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
-            long originServerTs = ev.path("origin_server_ts").asLong(0);
+        for (MatrixEventReader.Event ev : messages.chunk) {
+            if (!ev.isMessage()) continue;
+            long originServerTs = ev.originServerTs;
 
             if (originServerTs > state.endTime) continue;
             if (originServerTs < state.startTime) {
@@ -229,40 +270,45 @@ public class TextSearchService {
                 break;
             }
 
-            String body = ev.path("content").path("body").asText(null);
-            String senderMsg = ev.path("sender").asText(null);
-            String eventId = ev.path("event_id").asText(null);
+            String body = ev.body;
+            String senderMsg = ev.sender;
+            String eventId = ev.eventId;
             if (body == null || senderMsg == null || eventId == null) continue;
 
             if (!state.seenEventIds.add(eventId)) continue;
 
-            String timestamp = java.time.Instant.ofEpochMilli(originServerTs)
-                    .atZone(state.zoneId)
-                    .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
-            String formattedLog = "[" + timestamp + "] <" + senderMsg + "> " + body;
+            collectHit(state, originServerTs, senderMsg, body, eventId);
+        }
 
-            String lowerLog = formattedLog.toLowerCase();
-            boolean matches;
-            if (state.isGrep) {
-                matches = lowerLog.contains(state.lowerPattern);
-            } else {
-                matches = true;
-                for (String term : state.searchTerms) {
-                    if (!lowerLog.contains(term)) {
-                        matches = false;
-                        break;
-                    }
-                }
-            }
+        if (!state.reachedStart) {
+            state.nextBatch = messages.end;
+            state.hasMoreResults = state.nextBatch != null;
+        }
+    }
 
-            if (matches) {
-                state.allResults.add(new TextSearchHit(formattedLog, eventId));
+    private void collectHit(TextSearchPaginationState state, long originServerTs, String senderMsg, String body,
+            String eventId) {
+        String timestamp = java.time.Instant.ofEpochMilli(originServerTs)
+                .atZone(state.zoneId)
+                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
+        String formattedLog = "[" + timestamp + "] <" + senderMsg + "> " + body;
+
+        String lowerLog = formattedLog.toLowerCase();
+        boolean matches;
+        if (state.isGrep) {
+            matches = lowerLog.contains(state.lowerPattern);
+        } else {
+            matches = true;
+            for (String term : state.searchTerms) {
+                if (!lowerLog.contains(term)) {
+                    matches = false;
+                    break;
+                }
             }
         }
 
-        if (!state.reachedStart) {
-            state.nextBatch = root.path("end").asText(null);
-            state.hasMoreResults = state.nextBatch != null;
+        if (matches) {
+            state.allResults.add(new TextSearchHit(formattedLog, eventId));
         }
     }
 
@@ -295,12 +341,12 @@ public class TextSearchService {
                             .header("Authorization", "Bearer " + config.accessToken)
                             .GET()
                             .build();
-                    HttpResponse<String> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofString());
+                    HttpResponse<InputStream> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofInputStream());
                     if (syncResp.statusCode() == 200) {
-                        JsonNode root = mapper.readTree(syncResp.body());
-                        token = root.path("next_batch").asText(null);
+                        token = eventReader.readSyncToken(syncResp.body());
                     } else {
                         System.out.println("Sync returned " + syncResp.statusCode() + " for media search pagination token");
+                        MatrixEventReader.discard(syncResp);
                     }
                 } catch (Exception e) {
                     System.out.println("Sync failed getting pagination token for media search: " + e.getMessage());
@@ -339,19 +385,18 @@ public class TextSearchService {
                             .header("Authorization", "Bearer " + config.accessToken)
                             .GET()
                             .build();
-                    HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
+                    HttpResponse<InputStream> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofInputStream());
                     if (msgResp.statusCode() != 200) {
                         System.out
-                                .println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+                                .println("Failed to fetch messages: " + msgResp.statusCode() + " - " + MatrixEventReader.readError(msgResp));
                         break;
                     }
-                    JsonNode root = mapper.readTree(msgResp.body());
-                    JsonNode chunk = root.path("chunk");
-                    if (!chunk.isArray() || chunk.size() == 0)
+                    MatrixEventReader.MessagesPage messages = eventReader.readMessages(msgResp.body());
+                    if (messages.chunk.isEmpty())
                         break;
 
                     boolean reachedStart = false;
-                    for (JsonNode ev : chunk) {
+                    for (MatrixEventReader.Event ev : messages.chunk) {
                         // Check for abort signal inside the loop too
                         if (abortFlag.get()) {
                             System.out.println("Media search aborted by user: " + sender);
@@ -360,8 +405,8 @@ public class TextSearchService {
                         }
 
                         // Check for media message types
-                        String eventType = ev.path("type").asText(null);
-                        String msgtype = ev.path("content").path("msgtype").asText(null);
+                        String eventType = ev.type;
+                        String msgtype = ev.msgtype;
                         
                         boolean isMediaMessage = false;
                         String mediaType = "";
@@ -381,7 +426,7 @@ public class TextSearchService {
                         if (!isMediaMessage)
                             continue;
 
-                        long originServerTs = ev.path("origin_server_ts").asLong(0);
+                        long originServerTs = ev.originServerTs;
 
                         if (originServerTs > endTime) {
                             continue; // Skip messages newer than our range
@@ -392,20 +437,20 @@ public class TextSearchService {
                             break; // Stop when we reach messages older than start time
                         }
 
-                        String body = ev.path("content").path("body").asText(null);
-                        String senderMsg = ev.path("sender").asText(null);
-                        String eventId = ev.path("event_id").asText(null);
+                        String body = ev.body;
+                        String senderMsg = ev.sender;
+                        String eventId = ev.eventId;
                         
                         // Extract filename for media messages
                         String filename = null;
                         if ("m.room.message".equals(eventType)) {
-                            filename = ev.path("content").path("filename").asText(null); // For file messages, filename field contains actual filename
+                            filename = ev.filename; // For file messages, filename field contains actual filename
                             if (filename == null) {
                                 // For some media types, filename might be in body, but we'll use body as caption
-                                filename = ev.path("content").path("body").asText(null);
+                                filename = ev.body;
                             }
                         } else if ("m.room.encrypted".equals(eventType)) {
-                            filename = ev.path("content").path("filename").asText(null); // For encrypted media
+                            filename = ev.filename; // For encrypted media
                         }
 
                         if (body != null && senderMsg != null && eventId != null) {
@@ -475,7 +520,7 @@ public class TextSearchService {
                     }
 
                     if (token != null) {
-                        token = root.path("end").asText(null);
+                        token = messages.end;
                     }
 
                 } catch (Exception e) {
@@ -0,0 +1,153 @@
+package com.robomwm.ai.matrixrobobot;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide tokenizer facade for prompt budgeting.
+ * Misses are tokenized with DJL's batchEncode, which fans the batch out across cores natively,
+ * and per-line counts are cached by a caller-supplied key (event ID plus format variant) or by content.
+ */
+public final class TokenEstimator {
+    private static final String ARLIAI_TOKENIZER_RESOURCE = "/tokenizers/arliai-tokenizer.json";
+    private static final double TOKEN_SAFETY_MARGIN = 1.50;
+    private static final int CACHE_CAPACITY = 200_000;
+    private static final int BATCH_SIZE = 512;
+    private static final HuggingFaceTokenizer AI_TOKENIZER = loadTokenizer();
+
+    private static final Map<String, Integer> CACHE = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * Estimated prompt tokens for a single string, including the safety margin.
+     * A small margin covers chat-template and provider-specific framing differences.
+     */
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) return 0;
+        return withMargin(AI_TOKENIZER.encode(text, false, false).getIds().length);
+    }
+
+    /**
+     * Estimated tokens for {@code text}, reusing the cached count for {@code key} when present.
+     * A null key disables caching for that entry.
+     */
+    public static int estimateCached(String key, String text) {
+        return estimateCached(java.util.Collections.singletonList(key), java.util.Collections.singletonList(text))[0];
+    }
+
+    /**
+     * Estimated tokens for each text, cached by a hash of its content. For text without a stable ID,
+     * such as formatted search candidates or partial summaries.
+     */
+    public static int[] estimateAll(List<String> texts) {
+        List<String> keys = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            keys.add(text != null ? contentKey(text) : null);
+        }
+        return estimateCached(keys, texts);
+    }
+
+    /**
+     * Estimated tokens for each text. Cached keys are served without tokenizing; the remaining
+     * texts are encoded together in batches and their counts cached.
+     */
+    public static int[] estimateCached(List<String> keys, List<String> texts) {
+        int[] result = new int[texts.size()];
+        List<Integer> missing = new ArrayList<>();
+        synchronized (CACHE) {
+            for (int i = 0; i < texts.size(); i++) {
+                String key = keys.get(i);
+                Integer cached = key != null ? CACHE.get(key) : null;
+                if (cached != null) {
+                    result[i] = cached;
+                } else {
+                    missing.add(i);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        for (int start = 0; start < missing.size(); start += BATCH_SIZE) {
+            List<Integer> batchIndexes = missing.subList(start, Math.min(missing.size(), start + BATCH_SIZE));
+            List<String> batch = new ArrayList<>(batchIndexes.size());
+            for (int index : batchIndexes) {
+                String text = texts.get(index);
+                batch.add(text != null ? text : "");
+            }
+            int[] counts = countBatch(batch);
+            synchronized (CACHE) {
+                for (int j = 0; j < batchIndexes.size(); j++) {
+                    int index = batchIndexes.get(j);
+                    result[index] = counts[j];
+                    String key = keys.get(index);
+                    if (key != null) {
+                        CACHE.put(key, counts[j]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // 64-bit FNV-1a over the chars plus the length; collisions are negligible at the cache's size
+    private static String contentKey(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return "text|" + Long.toHexString(hash) + "|" + text.length();
+    }
+
+    private static int[] countBatch(List<String> texts) {
+        int[] counts = new int[texts.size()];
+        if (texts.size() == 1) {
+            counts[0] = estimate(texts.get(0));
+            return counts;
+        }
+        Encoding[] encodings = AI_TOKENIZER.batchEncode(texts, false, false);
+        for (int i = 0; i < encodings.length; i++) {
+            if (texts.get(i).isEmpty()) continue;
+            // Count the attention mask rather than ids so batch padding is never billed
+            int tokens = 0;
+            for (long mask : encodings[i].getAttentionMask()) {
+                if (mask != 0) tokens++;
+            }
+            counts[i] = withMargin(tokens);
+        }
+        return counts;
+    }
+
+    private static int withMargin(int tokenCount) {
+        return (int) Math.ceil(tokenCount * TOKEN_SAFETY_MARGIN);
+    }
+
+    private static HuggingFaceTokenizer loadTokenizer() {
+        try (var stream = TokenEstimator.class.getResourceAsStream(ARLIAI_TOKENIZER_RESOURCE)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing tokenizer resource: " + ARLIAI_TOKENIZER_RESOURCE);
+            }
+            Map<String, String> options = new HashMap<>();
+            options.put("addSpecialTokens", "false");
+            return HuggingFaceTokenizer.newInstance(stream, options);
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
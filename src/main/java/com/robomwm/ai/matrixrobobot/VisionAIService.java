@@ -2,38 +2,61 @@ package com.robomwm.ai.matrixrobobot;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Vision-enhanced AI service. Pre-describes images individually via vision API calls,
  * injects text descriptions into chat logs, then delegates to parent's text-only summary.
  * This avoids blowing out context limits with base64 image data.
  *
- * Image descriptions are cached to a JSON file keyed by mxc:// URL to avoid redundant API calls.
+ * Uncached images are downloaded and described a few at a time on a shared pool.
+ * Image descriptions are cached in a {@link DescriptionStore} keyed by mxc:// URL to avoid redundant
+ * API calls; new descriptions are appended as they arrive and flushed to disk in batches.
+ * Descriptions are also stored under the image's perceptual hash, so a repost of the same picture
+ * under a new URL reuses the earlier description.
  */
 public class VisionAIService extends AIService {
     protected final ImageFetcher imageFetcher;
-    private static final String DESCRIPTION_CACHE_FILE = "image_description_cache.json";
+    private static final String DESCRIPTION_STORE_FILE = "image_description_cache.log";
+    // Imported into the store the first time it is created
+    private static final String LEGACY_DESCRIPTION_CACHE_FILE = "image_description_cache.json";
+    private static final String HASH_KEY_PREFIX = "dhash-v1:";
+    private static DescriptionStore descriptionStore;
+    private static PerceptualHashIndex hashIndex;
+    // Shared by all commands; the AI queue's per-backend limit still caps concurrent vision calls
+    private static final int DESCRIBE_POOL_SIZE = 4;
+    private static final int CACHE_SAVE_BATCH = 16;
+    private static final long CACHE_SAVE_INTERVAL_MS = 10_000;
+    private static final long ABORT_POLL_MS = 500;
+    private static ExecutorService describePool;
 
     public VisionAIService(HttpClient client, ObjectMapper mapper, String homeserver, String accessToken,
-                           String arliApiKey, String groqApiKey, String openrouterApiKey, String freeLlmApiKey,
+                           RoomHistoryManager historyManager, String arliApiKey, String groqApiKey, String openrouterApiKey, String freeLlmApiKey,
                            String ollamaProxyApiKey, String ollamaProxyUrl,
                            ImageFetcher imageFetcher,
                            List<String> arliModels, List<String> cerebrasModels, List<String> groqModels, List<String> openrouterModels, 
                            List<String> freeLlmModels, List<String> ollamaProxyModels) {
         // Pass null for cerebrasApiKey to ensure Vision AI never falls back to Cerebras
-        super(client, mapper, homeserver, accessToken, arliApiKey, null, groqApiKey, openrouterApiKey, freeLlmApiKey,
+        super(client, mapper, homeserver, accessToken, historyManager, arliApiKey, null, groqApiKey, openrouterApiKey, freeLlmApiKey,
               ollamaProxyApiKey, ollamaProxyUrl,
               arliModels, cerebrasModels, groqModels, openrouterModels, freeLlmModels, ollamaProxyModels);
         this.imageFetcher = imageFetcher;
@@ -62,21 +85,21 @@ public class VisionAIService extends AIService {
         matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
                 "\uD83D\uDDBC\uFE0F Describing " + imageCount + " image(s)...");
 
-        ObjectNode cache = loadDescriptionCache();
+        DescriptionStore cache = descriptionStore();
         int cachedCount = 0;
         Map<String, String> imageDescriptionsByEventId = new HashMap<>();
+        // Uncached images by URL, with every event that posted them
+        Map<String, List<String>> pending = new LinkedHashMap<>();
         String lastDescription = null;
         String lastImageEventId = null;
 
         for (int i = 0; i < imageCount; i++) {
-            if (abortFlag != null && abortFlag.get()) return history;
-
             String imageUrl = history.imageUrls.get(i);
             String imageEventId = (history.imageEventIds != null && i < history.imageEventIds.size())
                     ? history.imageEventIds.get(i) : null;
             String cacheKey = descriptionCacheKey(imageUrl);
 
-            String cachedDescription = cache.has(cacheKey) ? cache.get(cacheKey).asText(null) : null;
+            String cachedDescription = cache != null ? cache.get(cacheKey) : null;
             if (cachedDescription != null && !cachedDescription.isEmpty()) {
                 System.out.println("Cache hit for image " + (i + 1) + "/" + imageCount + ": " + imageUrl);
                 if (imageEventId != null) {
@@ -87,36 +110,81 @@ public class VisionAIService extends AIService {
                 lastImageEventId = imageEventId;
                 continue;
             }
+            pending.computeIfAbsent(imageUrl, k -> new ArrayList<>()).add(imageEventId);
+        }
 
+        if (!pending.isEmpty()) {
             matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
-                    buildImageDescriptionStatus(exportRoomId, i + 1, imageCount, cachedCount,
+                    buildImageDescriptionStatus(exportRoomId, cachedCount, imageCount, cachedCount,
                             lastDescription, lastImageEventId));
 
-            String description;
-            try {
-                description = describeImage(imageUrl);
-            } catch (Exception e) {
-                throw new RuntimeException("Error describing image " + (i + 1) + ": " + e.getMessage(), e);
+            AIRequestQueue.Priority priority = AIRequestQueue.currentPriority();
+            CompletionService<String[]> completion = new ExecutorCompletionService<>(describePool());
+            List<Future<String[]>> futures = new ArrayList<>();
+            for (String imageUrl : pending.keySet()) {
+                futures.add(completion.submit(() -> new String[] {imageUrl,
+                        AIRequestQueue.callWithPriority(priority, () -> describeImage(imageUrl))}));
             }
-            if (description != null && !description.isEmpty()) {
-                if (imageEventId != null) {
-                    imageDescriptionsByEventId.put(imageEventId, description);
+
+            int done = cachedCount;
+            int unsaved = 0;
+            long lastSave = System.currentTimeMillis();
+            try {
+                for (int n = 0; n < futures.size(); n++) {
+                    Future<String[]> future;
+                    while ((future = completion.poll(ABORT_POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+                        if (abortFlag != null && abortFlag.get()) return history;
+                    }
+                    String[] result;
+                    try {
+                        result = future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        throw new RuntimeException("Error describing image: " + cause.getMessage(), cause);
+                    }
+
+                    String imageUrl = result[0];
+                    String description = result[1];
+                    List<String> eventIds = pending.get(imageUrl);
+                    boolean described = description != null && !description.isEmpty();
+                    lastDescription = described ? description : "(could not describe)";
+                    for (String eventId : eventIds) {
+                        if (eventId != null) {
+                            imageDescriptionsByEventId.put(eventId, lastDescription);
+                            lastImageEventId = eventId;
+                        }
+                    }
+                    if (described && cache != null) {
+                        try {
+                            cache.put(descriptionCacheKey(imageUrl), description);
+                            unsaved++;
+                        } catch (IOException e) {
+                            System.err.println("Failed to store image description: " + e.getMessage());
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (unsaved >= CACHE_SAVE_BATCH || (unsaved > 0 && now - lastSave >= CACHE_SAVE_INTERVAL_MS)) {
+                        saveDescriptionCache(cache);
+                        unsaved = 0;
+                        lastSave = now;
+                    }
+
+                    done += eventIds.size();
+                    matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
+                            buildImageDescriptionStatus(exportRoomId, done, imageCount, cachedCount,
+                                    lastDescription, lastImageEventId));
                 }
-                cache.put(cacheKey, description);
-                saveDescriptionCache(cache);
-                lastDescription = description;
-                lastImageEventId = imageEventId;
-            } else {
-                if (imageEventId != null) {
-                    imageDescriptionsByEventId.put(imageEventId, "(could not describe)");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return history;
+            } finally {
+                for (Future<String[]> future : futures) {
+                    future.cancel(true);
+                }
+                if (unsaved > 0) {
+                    saveDescriptionCache(cache);
                 }
-                lastDescription = "(could not describe)";
-                lastImageEventId = imageEventId;
             }
-
-            matrixClient.updateNoticeMessage(responseRoomId, statusEventId,
-                    buildImageDescriptionStatus(exportRoomId, i + 1, imageCount, cachedCount,
-                            lastDescription, lastImageEventId));
         }
 
         injectImageDescriptions(history, imageDescriptionsByEventId);
@@ -125,9 +193,9 @@ public class VisionAIService extends AIService {
         return super.prepareHistoryForQuery(responseRoomId, exportRoomId, history, abortFlag, statusEventId);
     }
 
-    private String buildImageDescriptionStatus(String exportRoomId, int imageNumber, int imageCount, int cachedCount,
+    private String buildImageDescriptionStatus(String exportRoomId, int doneCount, int imageCount, int cachedCount,
             String lastDescription, String lastImageEventId) {
-        String status = "\uD83D\uDDBC\uFE0F Describing image " + imageNumber + "/" + imageCount
+        String status = "\uD83D\uDDBC\uFE0F Described " + doneCount + "/" + imageCount + " image(s)"
                 + " (" + cachedCount + " cached)";
         if (lastDescription == null || lastDescription.isEmpty()) {
             return status;
@@ -158,28 +226,60 @@ public class VisionAIService extends AIService {
     }
 
     /**
-     * Describe a single image via ArliAI vision API. Sequential, non-streaming.
+     * Describe a single image. Called from the describe pool, so several images may be in flight.
+     * The image is downloaded before taking an AI queue slot; if it is a near-duplicate (by
+     * perceptual hash) of an image described before, that description is reused without an AI call.
      * Returns text description or null on non-fatal failure.
      * Throws Exception on fatal API errors (403, rate limit, etc.) to abort the entire operation.
      */
     protected String describeImage(String mxcUrl) throws Exception {
-        return AIRequestQueue.run("ArliAI vision image description", () -> describeImageUnqueued(mxcUrl));
-    }
-
-    private String describeImageUnqueued(String mxcUrl) throws Exception {
-        // Fetch and encode single image
         System.out.println("Fetching image from Matrix: " + mxcUrl);
-        List<String> encoded = imageFetcher.fetchAndEncodeImages(List.of(mxcUrl));
-        if (encoded.isEmpty()) {
+        ImageFetcher.FetchedImage image = imageFetcher.fetchImage(mxcUrl);
+        if (image == null) {
             System.out.println("Failed to fetch image from Matrix: " + mxcUrl);
             return null;
         }
 
-        String base64Image = encoded.get(0);
-        int base64Len = base64Image.length();
+        DescriptionStore store = descriptionStore();
+        Long hash = image.perceptualHash;
+        if (store == null || hash == null || !PerceptualHashIndex.isDistinctive(hash)) {
+            return describeFetchedImage(mxcUrl, image);
+        }
+        Long similar = hashIndex(store).findNearest(hash);
+        String reused = similar != null ? store.get(hashCacheKey(similar)) : null;
+        if (reused != null && !reused.isEmpty()) {
+            System.out.println("Reusing description of a near-duplicate image for " + mxcUrl
+                    + " (" + Long.bitCount(similar ^ hash) + " bits apart)");
+            return reused;
+        }
+
+        String description = describeFetchedImage(mxcUrl, image);
+        if (description != null && !description.isEmpty()) {
+            try {
+                store.put(hashCacheKey(hash), description);
+                hashIndex(store).add(hash);
+            } catch (IOException e) {
+                System.err.println("Failed to store image hash description: " + e.getMessage());
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Describe an already downloaded image via ArliAI vision API, non-streaming.
+     */
+    protected String describeFetchedImage(String mxcUrl, ImageFetcher.FetchedImage image) throws Exception {
+        return AIRequestQueue.run(Backend.ARLIAI, "ArliAI vision image description",
+                () -> describeImageUnqueued(mxcUrl, image));
+    }
+
+    private String describeImageUnqueued(String mxcUrl, ImageFetcher.FetchedImage image) throws Exception {
+        long base64Len = VisionRequestBody.base64Length(image.data.length);
         System.out.println("Image fetched and encoded: " + mxcUrl + " (" + (base64Len / 1024) + "KB base64)");
 
-        List<Map<String, Object>> content = VisionPromptBuilder.buildVisionContent(null, List.of(base64Image));
+        VisionRequestBody body = new VisionRequestBody();
+        List<Map<String, Object>> content = VisionPromptBuilder.buildVisionContent(null,
+                List.of(body.addImage(image, true)));
 
         List<Map<String, Object>> messages = new ArrayList<>();
         messages.add(Map.of("role", "system", "content", "Briefly describe the input image in 1-2 sentences. Be terse, incomplete sentence ok."));
@@ -199,7 +299,7 @@ public class VisionAIService extends AIService {
                 .header("Content-Type", "application/json")
                 .header("Authorization", "Bearer " + arliApiKey)
                 .timeout(Duration.ofSeconds(AIService.AI_TIMEOUT_SECONDS))
-                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
+                .POST(body.publisher(jsonPayload))
                 .build();
 
         HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
@@ -230,32 +330,65 @@ public class VisionAIService extends AIService {
         return null;
     }
 
+    private static synchronized ExecutorService describePool() {
+        if (describePool == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            describePool = Executors.newFixedThreadPool(DESCRIBE_POOL_SIZE, r -> {
+                Thread t = new Thread(r, "ImageDescribe-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return describePool;
+    }
+
     private String descriptionCacheKey(String imageUrl) {
         return "image-only-v1:" + imageUrl;
     }
 
+    private static String hashCacheKey(long hash) {
+        return HASH_KEY_PREFIX + Long.toHexString(hash);
+    }
+
     // --- Description Cache ---
 
-    private ObjectNode loadDescriptionCache() {
-        File cacheFile = new File(DESCRIPTION_CACHE_FILE);
-        if (cacheFile.exists()) {
-            try {
-                JsonNode node = mapper.readTree(cacheFile);
-                if (node.isObject()) {
-                    System.out.println("Loaded image description cache: " + node.size() + " entries");
-                    return (ObjectNode) node;
+    /**
+     * The process-wide description store, opened on first use. Returns null if it cannot be opened,
+     * in which case images are described without caching.
+     */
+    private DescriptionStore descriptionStore() {
+        synchronized (VisionAIService.class) {
+            if (descriptionStore == null) {
+                try {
+                    descriptionStore = DescriptionStore.open("image description store",
+                            Paths.get(DESCRIPTION_STORE_FILE), Paths.get(LEGACY_DESCRIPTION_CACHE_FILE), 0, mapper);
+                } catch (IOException e) {
+                    System.err.println("Failed to open image description store: " + e.getMessage());
                 }
-            } catch (IOException e) {
-                System.err.println("Failed to load description cache, starting fresh: " + e.getMessage());
             }
+            return descriptionStore;
+        }
+    }
+
+    /**
+     * Hamming index over the perceptual hashes in the store, built from its keys on first use.
+     */
+    private static PerceptualHashIndex hashIndex(DescriptionStore store) {
+        synchronized (VisionAIService.class) {
+            if (hashIndex == null) {
+                hashIndex = new PerceptualHashIndex();
+                for (String key : store.keysWithPrefix(HASH_KEY_PREFIX)) {
+                    hashIndex.add(Long.parseUnsignedLong(key.substring(HASH_KEY_PREFIX.length()), 16));
+                }
+                System.out.println("Loaded " + hashIndex.size() + " perceptual image hashes");
+            }
+            return hashIndex;
         }
-        return mapper.createObjectNode();
     }
 
-    private void saveDescriptionCache(ObjectNode cache) {
+    private void saveDescriptionCache(DescriptionStore cache) {
         try {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(DESCRIPTION_CACHE_FILE), cache);
-            System.out.println("Saved image description cache: " + cache.size() + " entries");
+            cache.flush();
         } catch (IOException e) {
             System.err.println("Failed to save description cache: " + e.getMessage());
         }
@@ -11,7 +11,8 @@ public class VisionPromptBuilder {
 
     /**
      * Build content array for vision AI request.
-     * Content includes the optional text prompt first, then images.
+     * Content includes the optional text prompt first, then images. Each image is a data URL or a
+     * {@link VisionRequestBody} placeholder that is replaced with the encoded image while sending.
      */
     public static List<Map<String, Object>> buildVisionContent(String textPrompt, List<String> base64Images) {
         List<Map<String, Object>> content = new ArrayList<>();
@@ -0,0 +1,132 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams a vision request body without materialising the base64 images.
+ * The JSON envelope is serialised as usual, but with a short placeholder string wherever an image
+ * goes ({@link #addImage}). The publisher then sends the envelope pieces with each image base64
+ * encoded on the fly from its raw bytes, so a request never holds a base64 copy of an image or
+ * a full-size JSON string. Base64 and data URL characters never need JSON escaping.
+ */
+final class VisionRequestBody {
+    private final String nonce = UUID.randomUUID().toString();
+    private final List<byte[]> images = new ArrayList<>();
+    private final List<byte[]> prefixes = new ArrayList<>();
+
+    /**
+     * Registers an image and returns the placeholder to put in the payload where its encoded form belongs.
+     *
+     * @param asDataUrl true for a "data:mime;base64,..." URL, false for bare base64
+     */
+    String addImage(ImageFetcher.FetchedImage image, boolean asDataUrl) {
+        String prefix = asDataUrl ? "data:" + image.mimeType + ";base64," : "";
+        prefixes.add(prefix.getBytes(StandardCharsets.US_ASCII));
+        images.add(image.data);
+        return placeholder(images.size() - 1);
+    }
+
+    /**
+     * Body publisher for the serialised payload, with every placeholder replaced by its image.
+     * The content length is known up front; each subscription re-reads the image bytes.
+     */
+    HttpRequest.BodyPublisher publisher(String json) {
+        List<byte[]> parts = new ArrayList<>();
+        List<Integer> imageOrder = new ArrayList<>();
+        long length = 0;
+        int from = 0;
+        while (true) {
+            int next = -1;
+            int nextImage = -1;
+            for (int i = 0; i < images.size(); i++) {
+                int at = json.indexOf(placeholder(i), from);
+                if (at >= 0 && (next < 0 || at < next)) {
+                    next = at;
+                    nextImage = i;
+                }
+            }
+            String text = next < 0 ? json.substring(from) : json.substring(from, next);
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            parts.add(bytes);
+            length += bytes.length;
+            if (next < 0) break;
+            imageOrder.add(nextImage);
+            length += prefixes.get(nextImage).length + base64Length(images.get(nextImage).length);
+            from = next + placeholder(nextImage).length();
+        }
+
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            List<InputStream> streams = new ArrayList<>();
+            for (int k = 0; k < parts.size(); k++) {
+                streams.add(new ByteArrayInputStream(parts.get(k)));
+                if (k < imageOrder.size()) {
+                    int image = imageOrder.get(k);
+                    streams.add(new ByteArrayInputStream(prefixes.get(image)));
+                    streams.add(new Base64InputStream(images.get(image)));
+                }
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(stream, length);
+    }
+
+    private String placeholder(int image) {
+        return "@@image-" + nonce + "-" + image + "@@";
+    }
+
+    static long base64Length(long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    /**
+     * Base64 (standard alphabet, padded) encoding of a byte array, produced as it is read.
+     */
+    static final class Base64InputStream extends InputStream {
+        private static final int CHUNK = 3 * 1024;
+        private final byte[] source;
+        private int sourcePos;
+        private byte[] encoded = new byte[0];
+        private int encodedPos;
+
+        Base64InputStream(byte[] source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() {
+            if (!fill()) return -1;
+            return encoded[encodedPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, encoded.length - encodedPos);
+            System.arraycopy(encoded, encodedPos, b, off, n);
+            encodedPos += n;
+            return n;
+        }
+
+        private boolean fill() {
+            if (encodedPos < encoded.length) return true;
+            if (sourcePos >= source.length) return false;
+            // Whole 3-byte groups, so only the final chunk is padded
+            int n = Math.min(CHUNK, source.length - sourcePos);
+            encoded = Base64.getEncoder().encode(Arrays.copyOfRange(source, sourcePos, sourcePos + n));
+            sourcePos += n;
+            encodedPos = 0;
+            return true;
+        }
+    }
+}
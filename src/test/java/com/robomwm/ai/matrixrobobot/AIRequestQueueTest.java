@@ -2,6 +2,9 @@ package com.robomwm.ai.matrixrobobot;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -65,4 +68,95 @@ class AIRequestQueueTest {
 
         assertEquals(1, maxActive.get());
     }
+
+    @Test
+    void backendsDoNotBlockEachOther() throws Exception {
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CountDownLatch releaseSlow = new CountDownLatch(1);
+
+        Thread slow = new Thread(() -> {
+            try {
+                AIRequestQueue.run(AIService.Backend.ARLIAI, "slow", () -> {
+                    slowStarted.countDown();
+                    releaseSlow.await(5, TimeUnit.SECONDS);
+                    return "slow";
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        slow.start();
+
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        assertEquals("fast", AIRequestQueue.run(AIService.Backend.GROQ, "fast", () -> "fast"));
+
+        releaseSlow.countDown();
+        slow.join();
+    }
+
+    @Test
+    void interactiveRequestsRunBeforeBackgroundRequests() throws Exception {
+        CountDownLatch holderStarted = new CountDownLatch(1);
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        Thread holder = new Thread(() -> {
+            try {
+                AIRequestQueue.run(AIService.Backend.CEREBRAS, "holder", () -> {
+                    holderStarted.countDown();
+                    releaseHolder.await(5, TimeUnit.SECONDS);
+                    return null;
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        holder.start();
+        assertTrue(holderStarted.await(5, TimeUnit.SECONDS));
+
+        Thread background = new Thread(() -> AIRequestQueue.runInBackground(() -> {
+            try {
+                AIRequestQueue.run(AIService.Backend.CEREBRAS, "background", () -> order.add("background"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        background.start();
+        waitForStats("0 interactive + 1 background waiting");
+
+        Thread interactive = new Thread(() -> {
+            try {
+                AIRequestQueue.run(AIService.Backend.CEREBRAS, "interactive", () -> order.add("interactive"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        interactive.start();
+        waitForStats("1 interactive + 1 background waiting");
+
+        releaseHolder.countDown();
+        holder.join();
+        background.join();
+        interactive.join();
+
+        assertEquals(List.of("interactive", "background"), order);
+    }
+
+    private static void waitForStats(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!AIRequestQueue.formatStats().contains("CEREBRAS: 1/1 active, " + expected)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for: " + expected);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void callWithPriorityRestoresPreviousPriority() throws Exception {
+        assertEquals(AIRequestQueue.Priority.INTERACTIVE, AIRequestQueue.currentPriority());
+        AIRequestQueue.Priority inside = AIRequestQueue.callWithPriority(AIRequestQueue.Priority.BACKGROUND,
+                AIRequestQueue::currentPriority);
+
+        assertEquals(AIRequestQueue.Priority.BACKGROUND, inside);
+        assertEquals(AIRequestQueue.Priority.INTERACTIVE, AIRequestQueue.currentPriority());
+    }
 }
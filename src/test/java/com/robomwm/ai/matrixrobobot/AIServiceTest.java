@@ -1,8 +1,13 @@
 package com.robomwm.ai.matrixrobobot;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class AIServiceTest {
 
@@ -14,4 +19,42 @@ class AIServiceTest {
         assertEquals("Groq failed\nOpenRouter failed", firstUpdate);
         assertEquals("Groq failed\nOpenRouter failed\nArliAI failed", secondUpdate);
     }
+
+    @Test
+    void chunkByTokensKeepsOrderAndBudget() {
+        List<String> lines = List.of("a", "b", "c", "huge", "d");
+        int[] tokens = {4, 4, 3, 50, 2};
+
+        List<List<String>> chunks = AIService.chunkByTokens(lines, tokens, 10);
+
+        assertEquals(List.of(List.of("a", "b"), List.of("c"), List.of("huge"), List.of("d")), chunks);
+    }
+
+    @Test
+    void logsFirstPromptsShareTheirPrefix() {
+        AIService service = new AIService(null, new ObjectMapper(), null, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null);
+        service.setLogsFirstPrompts(true);
+        List<String> logs = List.of("[2024-05-01 09:00] <a> hi", "[09:01] <b> hello");
+
+        String ask = service.buildPrompt("who said hi?", logs, AIService.Prompts.ASK_PREFIX);
+        String tldr = service.buildPrompt(null, logs, AIService.Prompts.TLDR_PREFIX);
+        String logsPrefix = AIService.Prompts.LOGS_HEADER + String.join("\n", logs) + AIService.Prompts.LOGS_FOOTER;
+
+        assertTrue(ask.startsWith(logsPrefix));
+        assertTrue(ask.endsWith("who said hi?" + AIService.Prompts.QUESTION_AFTER_LOGS_SUFFIX));
+        assertTrue(tldr.startsWith(logsPrefix));
+        assertTrue(tldr.endsWith("informative resource."), "instruction should no longer end with a colon");
+    }
+
+    @Test
+    void describesUsageWithCachedTokens() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals("5213 prompt tokens (4992 cached), 312 completion tokens", AIService.describeUsage(mapper.readTree(
+                "{\"usage\":{\"prompt_tokens\":5213,\"completion_tokens\":312,"
+                        + "\"prompt_tokens_details\":{\"cached_tokens\":4992}}}")));
+        assertEquals("100 prompt tokens, 7 completion tokens", AIService.describeUsage(mapper.readTree(
+                "{\"choices\":[],\"x_groq\":{\"usage\":{\"prompt_tokens\":100,\"completion_tokens\":7}}}")));
+        assertNull(AIService.describeUsage(mapper.readTree("{\"choices\":[{\"delta\":{\"content\":\"hi\"}}]}")));
+    }
 }
@@ -0,0 +1,66 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Bm25IndexTest {
+
+    @Test
+    void ranksWithinWindowOnly() {
+        Bm25Index index = new Bm25Index();
+        int deploy = index.add("$1", "the deploy failed again on staging");
+        int lunch = index.add("$2", "lunch anyone?");
+        int fixed = index.add("$3", "staging deploy fixed");
+        int other = index.add("$4", "deploy deploy deploy");
+
+        List<Bm25Index.Hit> hits = index.search("staging deploy", new int[] {deploy, lunch, fixed}, 5);
+
+        assertEquals(2, hits.size());
+        // Adjacent terms get the proximity boost
+        assertEquals(2, hits.get(0).position);
+        assertEquals(0, hits.get(1).position);
+        assertTrue(hits.get(0).score > hits.get(1).score);
+        assertTrue(hits.stream().noneMatch(hit -> hit.position == other));
+    }
+
+    @Test
+    void keepsOnlyTopKAndReusesKnownEvents() {
+        Bm25Index index = new Bm25Index();
+        int[] window = new int[20];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = index.add("$" + i, "alpha " + "beta ".repeat(i));
+        }
+
+        assertEquals(window[3], index.add("$3", "ignored"));
+        assertEquals(20, index.size());
+        List<Bm25Index.Hit> hits = index.search("beta", window, 3);
+        assertEquals(3, hits.size());
+        assertArrayEquals(new int[] {19, 18, 17},
+                hits.stream().mapToInt(hit -> hit.position).toArray());
+    }
+
+    @Test
+    void removedMessagesNoLongerMatch() {
+        Bm25Index index = new Bm25Index();
+        int secret = index.add("$1", "the launch code is swordfish");
+        int plain = index.add("$2", "launch moved to friday");
+
+        index.remove("$1");
+
+        List<Bm25Index.Hit> hits = index.search("launch swordfish", new int[] {secret, plain}, 5);
+        assertEquals(1, hits.size());
+        assertEquals(1, hits.get(0).position);
+        assertEquals(-1, index.docId("$1"));
+    }
+
+    @Test
+    void tokenizerDropsStopWordsAndShortWords() {
+        assertArrayEquals(new String[] {"what", "deploy"},
+                Bm25Index.tokenize("What is THE deploy-v2 of it?"));
+    }
+}
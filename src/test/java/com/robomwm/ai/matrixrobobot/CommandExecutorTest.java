@@ -0,0 +1,104 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandExecutorTest {
+    private final Map<String, AtomicBoolean> runningOperations = new ConcurrentHashMap<>();
+    // Tasks are submitted without a response room, so rejections never reach the absent Matrix client
+    private final CommandExecutor executor = new CommandExecutor(null, runningOperations);
+
+    @Test
+    void capsTasksPerUser() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger finished = new AtomicInteger();
+        Runnable blocked = () -> {
+            await(release);
+            finished.incrementAndGet();
+        };
+        for (int i = 0; i < 3; i++) {
+            assertTrue(executor.submit("test", "@a:x", null, blocked));
+        }
+        assertFalse(executor.submit("test", "@a:x", null, blocked), "a fourth task from the same user is rejected");
+        assertTrue(executor.submit("test", "@b:x", null, blocked), "other users are not affected");
+
+        release.countDown();
+        assertTrue(waitFor(() -> finished.get() == 4));
+        assertTrue(waitFor(() -> executor.submit("test", "@a:x", null, () -> {})),
+                "finished tasks free the user's slots");
+    }
+
+    @Test
+    void queuesTasksBeyondTheGlobalCap() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < 16; i++) {
+            assertTrue(executor.submit("test", "@user" + i + ":x", null, () -> {
+                started.incrementAndGet();
+                await(release);
+            }));
+        }
+        assertTrue(waitFor(() -> started.get() == 16));
+
+        CountDownLatch queuedRan = new CountDownLatch(1);
+        assertTrue(executor.submit("test", "@late:x", null, queuedRan::countDown));
+        assertFalse(queuedRan.await(300, TimeUnit.MILLISECONDS), "the 17th task waits for a global slot");
+
+        release.countDown();
+        assertTrue(queuedRan.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dropsQueuedTaskOnceAborted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < 16; i++) {
+            executor.submit("test", "@user" + i + ":x", null, () -> {
+                started.incrementAndGet();
+                await(release);
+            });
+        }
+        assertTrue(waitFor(() -> started.get() == 16));
+
+        AtomicBoolean abortFlag = new AtomicBoolean(false);
+        runningOperations.put("@late:x", abortFlag);
+        AtomicBoolean ran = new AtomicBoolean(false);
+        assertTrue(executor.submit("test", "@late:x", null, abortFlag, () -> ran.set(true)));
+        abortFlag.set(true);
+
+        assertTrue(waitFor(() -> !runningOperations.containsKey("@late:x")),
+                "the abort flag of a task that never ran is released");
+        release.countDown();
+        Thread.sleep(200);
+        assertFalse(ran.get());
+        assertEquals(16, started.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
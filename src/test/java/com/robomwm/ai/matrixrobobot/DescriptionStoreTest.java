@@ -0,0 +1,79 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DescriptionStoreTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void importsLegacyCacheAndSurvivesTornAppend(@TempDir Path dir) throws Exception {
+        Path legacy = dir.resolve("cache.json");
+        Files.writeString(legacy, "{\"image-only-v1:mxc://x/a\":\"a cat\",\"image-only-v1:mxc://x/b\":\"a dog\"}");
+        Path log = dir.resolve("cache.log");
+
+        DescriptionStore store = DescriptionStore.open("test store", log, legacy, 0, mapper);
+        assertEquals("a cat", store.get("image-only-v1:mxc://x/a"));
+        store.put("image-only-v1:mxc://x/c", "a \"quoted\" bird\nwith a newline");
+        store.flush();
+        Files.write(log, "{\"key\":\"image-only-v1:mxc://x/d\",\"val".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        DescriptionStore reopened = DescriptionStore.open("test store", log, legacy, 0, mapper);
+        assertEquals(3, reopened.size());
+        assertEquals("a dog", reopened.get("image-only-v1:mxc://x/b"));
+        assertEquals("a \"quoted\" bird\nwith a newline", reopened.get("image-only-v1:mxc://x/c"));
+        assertNull(reopened.get("image-only-v1:mxc://x/d"));
+        reopened.put("image-only-v1:mxc://x/d", "a fish");
+
+        assertEquals("a fish", DescriptionStore.open("test store", log, null, 0, mapper).get("image-only-v1:mxc://x/d"));
+    }
+
+    @Test
+    void compactsSupersededRecords(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("cache.log");
+        DescriptionStore store = DescriptionStore.open("test store", log, null, 0, mapper);
+        for (int i = 0; i < 3000; i++) {
+            store.put("key" + (i % 10), "value " + i);
+        }
+        store.flush();
+
+        assertEquals("value 2999", store.get("key9"));
+        assertTrue(Files.size(log) < 3000 * 20, "log should have been compacted");
+        DescriptionStore reopened = DescriptionStore.open("test store", log, null, 0, mapper);
+        assertEquals(10, reopened.size());
+        assertEquals("value 2990", reopened.get("key0"));
+    }
+
+    @Test
+    void dropsLeastRecentlyWrittenEntriesBeyondCap(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("cache.log");
+        DescriptionStore store = DescriptionStore.open("test store", log, null, 3, mapper);
+        store.put("a", "1");
+        store.put("b", "2");
+        store.put("c", "3");
+        store.put("a", "4"); // Rewriting an entry makes it the newest
+        store.put("d", "5");
+        store.flush();
+
+        assertEquals(3, store.size());
+        assertNull(store.get("b"));
+        assertEquals("4", store.get("a"));
+
+        DescriptionStore reopened = DescriptionStore.open("test store", log, null, 2, mapper);
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("c"));
+        assertEquals("4", reopened.get("a"));
+        assertEquals("5", reopened.get("d"));
+    }
+}
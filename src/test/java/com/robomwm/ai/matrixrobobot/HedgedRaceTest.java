@@ -0,0 +1,72 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedRaceTest {
+
+    @Test
+    void firstFinisherWinsAndLosersAreCancelled() throws Exception {
+        HedgedRace race = new HedgedRace();
+        AtomicBoolean slow = new AtomicBoolean(false);
+        AtomicBoolean fast = new AtomicBoolean(false);
+        AtomicInteger cancelled = new AtomicInteger();
+
+        race.runAs(slow, () -> {
+            assertSame(race, HedgedRace.current());
+            race.onCancel(slow, cancelled::incrementAndGet);
+            assertTrue(race.mayPublish(slow));
+            return null;
+        });
+        assertNull(HedgedRace.current());
+        race.runAs(fast, () -> {
+            assertFalse(race.mayPublish(fast), "only the first racer streams edits");
+            assertTrue(race.claimWin(fast));
+            return null;
+        });
+
+        assertFalse(race.claimWin(slow));
+        assertFalse(race.mayPublish(slow), "the owner stops editing once another racer has won");
+        race.cancelLosers();
+        assertTrue(slow.get());
+        assertFalse(fast.get());
+        assertEquals(1, cancelled.get());
+
+        race.onCancel(slow, cancelled::incrementAndGet);
+        assertEquals(2, cancelled.get(), "hooks registered after cancellation run at once");
+    }
+
+    @Test
+    void cancelsRacersThatHaveNotStartedYet() throws Exception {
+        HedgedRace race = new HedgedRace();
+        AtomicBoolean winner = new AtomicBoolean(false);
+        AtomicBoolean queued = new AtomicBoolean(false);
+        race.register(queued);
+        race.runAs(winner, () -> {
+            assertSame(winner, HedgedRace.currentRacer());
+            return race.claimWin(winner);
+        });
+        assertNull(HedgedRace.currentRacer());
+
+        race.cancelLosers();
+        assertTrue(queued.get(), "a racer still waiting to run is cancelled too");
+        assertFalse(winner.get());
+    }
+
+    @Test
+    void tracksFirstToken() {
+        HedgedRace race = new HedgedRace();
+        assertFalse(race.hasFirstToken());
+        race.tokenReceived();
+        race.tokenReceived();
+        assertTrue(race.hasFirstToken());
+    }
+}
@@ -0,0 +1,63 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HistoryBufferTest {
+
+    @Test
+    void newestFirstRowsReadBackChronologically() {
+        HistoryBuffer buffer = new HistoryBuffer(true);
+        buffer.append(300, "@a:x", "third ☃", "$3");
+        buffer.append(200, "@b:x", "second", null);
+        buffer.append(100, "@a:x", "first", "$1");
+
+        assertEquals(3, buffer.size());
+        assertEquals(100, buffer.timestamp(0));
+        assertEquals("first", buffer.body(0));
+        assertEquals("@b:x", buffer.sender(1));
+        assertNull(buffer.eventId(1));
+        assertEquals("third ☃", buffer.body(2));
+        assertEquals(List.of("$1", "$3"), List.of(buffer.eventIds().get(0), buffer.eventIds().get(2)));
+
+        List<String> formatted = buffer.lazyList(i -> "<" + buffer.sender(i) + "> " + buffer.body(i));
+        assertEquals("<@a:x> first", formatted.get(0));
+        assertEquals("<@a:x> third ☃", formatted.get(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> formatted.get(3));
+    }
+
+    @Test
+    void imageColumnsFollowRowOrder() {
+        HistoryBuffer buffer = new HistoryBuffer(true);
+        buffer.append(300, "@a:x", "new.png", "$3");
+        buffer.markImage("mxc://x/new");
+        buffer.append(200, "@a:x", "text", "$2");
+        buffer.append(100, "@a:x", "old.png", "$1");
+        buffer.markImage("mxc://x/old");
+
+        assertEquals(List.of("mxc://x/old", "mxc://x/new"), List.copyOf(buffer.imageUrls()));
+        assertEquals(List.of("old.png", "new.png"), List.copyOf(buffer.imageCaptions()));
+        assertEquals(List.of("$1", "$3"), List.copyOf(buffer.imageEventIds()));
+        assertEquals("mxc://x/old", buffer.imageUrl(0));
+        assertNull(buffer.imageUrl(1));
+        assertEquals("mxc://x/new", buffer.imageUrl(2));
+    }
+
+    @Test
+    void growsPastInitialCapacity() {
+        HistoryBuffer buffer = new HistoryBuffer(false);
+        for (int i = 0; i < 1000; i++) {
+            buffer.append(i, "@u" + (i % 7) + ":x", "message " + i, "$" + i);
+        }
+
+        assertEquals(1000, buffer.size());
+        assertEquals("message 999", buffer.body(999));
+        assertEquals("@u5:x", buffer.sender(999));
+        assertEquals("$500", buffer.eventId(500));
+    }
+}
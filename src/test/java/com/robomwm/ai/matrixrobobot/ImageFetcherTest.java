@@ -0,0 +1,41 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ImageFetcherTest {
+
+    @Test
+    void detectsMimeTypeFromMagicBytes() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", png);
+
+        assertEquals("image/png", ImageFetcher.detectMimeType(png.toByteArray()));
+        assertEquals("image/jpeg", ImageFetcher.detectMimeType(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}));
+        assertEquals("image/gif", ImageFetcher.detectMimeType("GIF89a".getBytes()));
+        assertEquals("image/webp", ImageFetcher.detectMimeType("RIFF\0\0\0\0WEBPVP8 ".getBytes()));
+        assertNull(ImageFetcher.detectMimeType("<html>".getBytes()));
+    }
+
+    @Test
+    void downscalesToMaxEdgeAsJpeg() throws Exception {
+        BufferedImage large = new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_ARGB);
+
+        byte[] jpeg = ImageFetcher.downscaleToJpeg(large, 500, 0.8f);
+        assertEquals("image/jpeg", ImageFetcher.detectMimeType(jpeg));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(500, decoded.getWidth());
+        assertEquals(250, decoded.getHeight());
+
+        BufferedImage small = ImageIO.read(new ByteArrayInputStream(
+                ImageFetcher.downscaleToJpeg(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), 500, 0.8f)));
+        assertEquals(300, small.getWidth());
+    }
+}
@@ -0,0 +1,79 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatrixEventReaderTest {
+    private final MatrixEventReader reader = new MatrixEventReader(new ObjectMapper());
+
+    @Test
+    void readsMessagesPageWithoutUnusedFields() throws Exception {
+        MatrixEventReader.MessagesPage page = reader.readMessages(json("{"
+                + "\"start\":\"s1\","
+                + "\"chunk\":["
+                + "{\"type\":\"m.room.message\",\"event_id\":\"$a\",\"sender\":\"@u:x\",\"origin_server_ts\":1700000000000,"
+                + "\"unsigned\":{\"age\":5,\"nested\":[1,{\"x\":2}]},"
+                + "\"content\":{\"msgtype\":\"m.image\",\"body\":\"cat.png\",\"url\":\"mxc://x/y\",\"info\":{\"w\":10}}},"
+                + "{\"type\":\"m.room.member\",\"event_id\":\"$b\",\"origin_server_ts\":1699999999000,\"content\":{\"membership\":\"join\"}}"
+                + "],"
+                + "\"state\":[{\"type\":\"m.room.member\"}],"
+                + "\"end\":\"e1\"}"));
+
+        assertEquals("s1", page.start);
+        assertEquals("e1", page.end);
+        assertEquals(2, page.chunk.size());
+
+        MatrixEventReader.Event image = page.chunk.get(0);
+        assertTrue(image.isMessage());
+        assertEquals("$a", image.eventId);
+        assertEquals("@u:x", image.sender);
+        assertEquals(1700000000000L, image.originServerTs);
+        assertEquals("cat.png", image.body);
+        assertEquals("m.image", image.msgtype);
+        assertEquals("mxc://x/y", image.url);
+
+        MatrixEventReader.Event member = page.chunk.get(1);
+        assertFalse(member.isMessage());
+        assertNull(member.body);
+    }
+
+    @Test
+    void lastPageHasNoEndToken() throws Exception {
+        MatrixEventReader.MessagesPage page = reader.readMessages(json("{\"start\":\"s1\",\"chunk\":[]}"));
+
+        assertTrue(page.chunk.isEmpty());
+        assertNull(page.end);
+    }
+
+    @Test
+    void readsSyncRoomsAndSkipsEverythingElse() throws Exception {
+        MatrixEventReader.SyncResponse sync = reader.readSync(json("{"
+                + "\"account_data\":{\"events\":[{\"type\":\"m.push_rules\"}]},"
+                + "\"rooms\":{"
+                + "\"join\":{\"!a:x\":{\"timeline\":{\"prev_batch\":\"p\",\"events\":[{\"type\":\"m.room.message\"}]}}},"
+                + "\"invite\":{\"!b:x\":{\"invite_state\":{}}},"
+                + "\"knock\":{\"!c:x\":{}}"
+                + "},"
+                + "\"next_batch\":\"n2\"}"));
+
+        assertEquals("n2", sync.nextBatch);
+        assertEquals(1, sync.join.size());
+        assertEquals("p", sync.join.get("!a:x").path("timeline").path("prev_batch").asText());
+        assertTrue(sync.invite.containsKey("!b:x"));
+        assertTrue(sync.leave.isEmpty());
+        assertEquals("n2", reader.readSyncToken(json("{\"rooms\":{\"join\":{}},\"next_batch\":\"n2\"}")));
+    }
+
+    private static InputStream json(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
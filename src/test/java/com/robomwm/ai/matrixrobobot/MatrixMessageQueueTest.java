@@ -0,0 +1,71 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatrixMessageQueueTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void backoffGrowsExponentiallyWithJitterUpToCap() {
+        assertEquals(1000, MatrixMessageQueue.backoffDelayMs(1, 0.0));
+        assertEquals(1999, MatrixMessageQueue.backoffDelayMs(1, 0.9999));
+        assertEquals(4000, MatrixMessageQueue.backoffDelayMs(3, 0.0));
+        assertEquals(150000, MatrixMessageQueue.backoffDelayMs(50, 0.0));
+        assertEquals(300000, MatrixMessageQueue.backoffDelayMs(1000, 1.0));
+    }
+
+    @Test
+    void readsRetryAfterFromHeaderOrBody() {
+        assertEquals(3000, MatrixMessageQueue.retryAfterMs("3", null, mapper));
+        assertEquals(1500, MatrixMessageQueue.retryAfterMs(null,
+                "{\"errcode\":\"M_LIMIT_EXCEEDED\",\"retry_after_ms\":1500}", mapper));
+        assertEquals(0, MatrixMessageQueue.retryAfterMs(null, "<html>bad gateway</html>", mapper));
+
+        String date = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        long fromDate = MatrixMessageQueue.retryAfterMs(date, null, mapper);
+        assertTrue(fromDate > 55000 && fromDate <= 60000, "HTTP date should be about a minute away: " + fromDate);
+    }
+
+    @Test
+    void coalescesQueuedEditsOfTheSameEventInPlace() {
+        List<MatrixMessageQueue.QueuedMessage> queue = new ArrayList<>();
+        MatrixMessageQueue.QueuedMessage firstEdit = edit("$status", "10%");
+        MatrixMessageQueue.QueuedMessage notice = new MatrixMessageQueue.QueuedMessage("!a:x", "done", "m.notice",
+                false, null, false);
+        MatrixMessageQueue.QueuedMessage otherEdit = edit("$other", "working");
+        assertNull(MatrixMessageQueue.enqueue(queue, firstEdit));
+        assertNull(MatrixMessageQueue.enqueue(queue, notice));
+        assertNull(MatrixMessageQueue.enqueue(queue, otherEdit));
+
+        MatrixMessageQueue.QueuedMessage latestEdit = edit("$status", "90%");
+        assertSame(firstEdit, MatrixMessageQueue.enqueue(queue, latestEdit));
+        assertEquals(List.of(latestEdit, notice, otherEdit), queue);
+        assertEquals(0, MatrixMessageQueue.indexOfEdit(queue, "$status"));
+        assertEquals(2, MatrixMessageQueue.indexOfEdit(queue, "$other"));
+        assertEquals(-1, MatrixMessageQueue.indexOfEdit(queue, "$missing"));
+    }
+
+    @Test
+    void editDelayCountsFromTheLastEditOfTheEvent() {
+        assertEquals(0, MatrixMessageQueue.editDelayMs(null, 5000));
+        assertEquals(600, MatrixMessageQueue.editDelayMs(4400L, 4800));
+        assertEquals(0, MatrixMessageQueue.editDelayMs(4000L, 5000));
+        assertEquals(0, MatrixMessageQueue.editDelayMs(1000L, 5000));
+    }
+
+    private static MatrixMessageQueue.QueuedMessage edit(String eventId, String text) {
+        return new MatrixMessageQueue.QueuedMessage("!a:x", text, "m.notice", false, eventId, true);
+    }
+}
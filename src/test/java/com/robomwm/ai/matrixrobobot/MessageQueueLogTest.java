@@ -0,0 +1,109 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageQueueLogTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void replaysUnacknowledgedMessagesAfterTornWrite(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("queue.wal");
+        MessageQueueLog log = MessageQueueLog.open(file, mapper);
+        MatrixMessageQueue.QueuedMessage first = message("!a:x", "hello\n\"world\"", null);
+        MatrixMessageQueue.QueuedMessage second = message("!b:x", "edit", "$event");
+        log.append(first);
+        log.append(second);
+        log.ack(first);
+        log.close();
+        Files.write(file, "{\"op\":\"enqueue\",\"id\":9,\"roomId\":\"!c".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        MessageQueueLog reopened = MessageQueueLog.open(file, mapper);
+        List<MatrixMessageQueue.QueuedMessage> pending = reopened.pendingMessages();
+        assertEquals(1, pending.size());
+        assertEquals("!b:x", pending.get(0).roomId);
+        assertEquals("$event", pending.get(0).originalEventId);
+        assertEquals(second.createdTime, pending.get(0).createdTime);
+
+        MatrixMessageQueue.QueuedMessage third = message("!a:x", "hello\n\"world\"", null);
+        reopened.append(third);
+        assertTrue(third.id > second.id, "IDs must not be reused after replay");
+        reopened.close();
+        MessageQueueLog replayed = MessageQueueLog.open(file, mapper);
+        assertNull(replayed.pendingMessages().get(1).originalEventId);
+        replayed.close();
+    }
+
+    @Test
+    void compactsAcknowledgedMessages(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("queue.wal");
+        MessageQueueLog log = MessageQueueLog.open(file, mapper);
+        List<MatrixMessageQueue.QueuedMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            MatrixMessageQueue.QueuedMessage message = message("!a:x", "message " + i, null);
+            log.append(message);
+            messages.add(message);
+        }
+        for (int i = 0; i < 499; i++) {
+            log.ack(messages.get(i));
+        }
+        log.close();
+
+        assertTrue(Files.readAllLines(file).size() < 100, "log should have been compacted");
+        MessageQueueLog reopened = MessageQueueLog.open(file, mapper);
+        List<MatrixMessageQueue.QueuedMessage> pending = reopened.pendingMessages();
+        reopened.close();
+        assertEquals(1, pending.size());
+        assertEquals("message 499", pending.get(0).message);
+    }
+
+    @Test
+    void appendsWhileAcksCompactTheLog(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("queue.wal");
+        MessageQueueLog log = MessageQueueLog.open(file, mapper);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int writer = t;
+            // Each message is acked straight away, so compactions keep swapping the file under the syncs
+            writers.add(pool.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    MatrixMessageQueue.QueuedMessage message = message("!a:x", writer + "/" + i, null);
+                    log.append(message);
+                    log.ack(message);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        pool.shutdown();
+        log.close();
+
+        MessageQueueLog reopened = MessageQueueLog.open(file, mapper);
+        assertTrue(reopened.pendingMessages().isEmpty());
+        reopened.close();
+    }
+
+    private static MatrixMessageQueue.QueuedMessage message(String roomId, String text, String originalEventId) {
+        return new MatrixMessageQueue.QueuedMessage(roomId, text, "m.notice", false, originalEventId,
+                originalEventId != null);
+    }
+}
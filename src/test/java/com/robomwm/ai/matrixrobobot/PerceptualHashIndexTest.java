@@ -0,0 +1,54 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PerceptualHashIndexTest {
+
+    @Test
+    void rescaledCopyHashesClose() {
+        BufferedImage original = pattern(640, 480);
+        BufferedImage smaller = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = smaller.createGraphics();
+        g.drawImage(original, 0, 0, 320, 240, null);
+        g.dispose();
+
+        long a = PerceptualHashIndex.dHash(original);
+        long b = PerceptualHashIndex.dHash(smaller);
+        assertTrue(PerceptualHashIndex.isDistinctive(a));
+        assertTrue(Long.bitCount(a ^ b) <= PerceptualHashIndex.MAX_DISTANCE);
+        assertFalse(PerceptualHashIndex.isDistinctive(PerceptualHashIndex.dHash(new BufferedImage(64, 64,
+                BufferedImage.TYPE_INT_RGB))));
+    }
+
+    @Test
+    void findsNearestWithinDistance() {
+        PerceptualHashIndex index = new PerceptualHashIndex();
+        long stored = 0x0F0F_3C3C_A5A5_5A5AL;
+        index.add(stored);
+        index.add(~stored);
+
+        assertEquals(stored, index.findNearest(stored));
+        assertEquals(stored, index.findNearest(stored ^ 0b1010_0001L ^ (1L << 63)));
+        assertNull(index.findNearest(stored ^ 0x3FL));
+    }
+
+    private static BufferedImage pattern(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 12; i++) {
+            g.setColor(new Color((i * 53) % 256, (i * 97) % 256, (i * 31) % 256));
+            g.fillRect((i * 71) % width, (i * 43) % height, width / 3, height / 4);
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,168 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoomEventStoreTest {
+    private static final String ROOM = "!r:x";
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void replaysLogAfterReopen(@TempDir Path dir) {
+        RoomEventStore first = store(dir, 1000);
+        first.recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000), message("$b", 2000)));
+
+        RoomEventStore reopened = store(dir, 1000);
+        // The first sync after a restart repeats $b; it is stored once
+        reopened.recordTimeline(ROOM, timeline(false, "p1", message("$a", 1000), message("$b", 2000),
+                message("$c", 3000)));
+
+        assertEquals(List.of("$a", "$b", "$c"), ids(reopened.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(List.of("$c"), ids(reopened.getMessagesAfter(ROOM, "$b")));
+    }
+
+    @Test
+    void truncatesTornTailBeforeAppending(@TempDir Path dir) throws IOException {
+        store(dir, 1000).recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000)));
+        Path log = dir.resolve(URLEncoder.encode(ROOM, StandardCharsets.UTF_8) + ".jsonl");
+        Files.writeString(log, "{\"eventId\":\"$torn\",\"sen", StandardOpenOption.APPEND);
+
+        store(dir, 1000).recordTimeline(ROOM, timeline(false, "p1", message("$b", 2000)));
+        for (String line : Files.readAllLines(log)) {
+            mapper.readTree(line);
+        }
+
+        RoomEventStore reopened = store(dir, 1000);
+        reopened.recordTimeline(ROOM, timeline(false, "p2", message("$a", 1000), message("$c", 3000)));
+        assertEquals(List.of("$a", "$b", "$c"), ids(reopened.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void joinsOldSegmentOnlyOnceBackfillReachesIt(@TempDir Path dir) {
+        RoomEventStore store = store(dir, 1000);
+        store.recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000), message("$b", 2000)));
+        // A limited sync leaves a gap between $b and $d
+        store.recordTimeline(ROOM, timeline(true, "p1", message("$d", 5000)));
+        assertEquals(List.of("$d"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(List.of(), ids(store.getMessagesBefore(ROOM, 5000, 10)));
+
+        store.applyBackfill(ROOM, store.room(ROOM), "p1", List.of(event("$c", 3000)), "p2");
+        assertEquals(List.of("$c", "$d"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+
+        // This page holds $b, which the old segment already has, so the gap is closed
+        store.applyBackfill(ROOM, store.room(ROOM), "p2", List.of(event("$b2", 2500), event("$b", 2000)), "p3");
+        assertEquals(List.of("$a", "$b", "$b2", "$c", "$d"),
+                ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void pagesBackwardsKeepingTimestampGroupsWhole(@TempDir Path dir) {
+        RoomEventStore store = store(dir, 1000);
+        store.recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000), message("$b", 2000),
+                message("$c", 2000), message("$d", 3000)));
+
+        assertEquals(List.of("$b", "$c", "$d"), ids(store.getMessagesBefore(ROOM, 4000, 2)));
+        assertEquals(List.of("$a"), ids(store.getMessagesBefore(ROOM, 2000, 2)));
+        assertEquals(List.of(), ids(store.getMessagesBefore(ROOM, 1000, 2)));
+    }
+
+    @Test
+    void reloadsEvictedRoomWithEventsRecordedMeanwhile(@TempDir Path dir) {
+        RoomEventStore store = store(dir, 3);
+        store.recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000), message("$b", 2000)));
+        store.recordTimeline("!other:x", timeline(false, "q0", message("$x", 1000), message("$y", 2000)));
+        assertEquals(List.of("$a", "$b"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+        // Loading the other room pushes the resident total over the limit and unloads this one
+        assertEquals(List.of("$x", "$y"), ids(store.getMessages("!other:x", Long.MIN_VALUE, Long.MAX_VALUE)));
+
+        store.recordTimeline(ROOM, timeline(false, "p1", message("$b", 2000), message("$c", 3000)));
+        assertEquals(List.of("$a", "$b", "$c"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void keepsRedactedMessageGoneAfterReopen(@TempDir Path dir) {
+        RoomEventStore store = store(dir, 1000);
+        List<String> forgotten = new ArrayList<>();
+        store.setRedactionListener((roomId, eventId) -> forgotten.add(eventId));
+        store.recordTimeline(ROOM, timeline(false, "p0", message("$a", 1000), message("$b", 2000)));
+        assertEquals(List.of("$a", "$b"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+
+        store.recordTimeline(ROOM, timeline(false, "p1", redaction("$r", 3000, "$a")));
+        assertEquals(List.of("$a"), forgotten);
+        assertEquals(List.of("$b"), ids(store.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(List.of(), ids(store.findCandidates(ROOM, List.of("message $a"), Long.MIN_VALUE, Long.MAX_VALUE)));
+
+        RoomEventStore reopened = store(dir, 1000);
+        // The first sync after a restart repeats the redacted message; the tombstone keeps it out
+        reopened.recordTimeline(ROOM, timeline(false, "p2", message("$a", 1000), message("$c", 4000)));
+        assertEquals(List.of("$b", "$c"), ids(reopened.getMessages(ROOM, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(List.of(), ids(reopened.findCandidates(ROOM, List.of("message $a"), Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(List.of("$b"), ids(reopened.findCandidates(ROOM, List.of("message $b"), Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    private RoomEventStore store(Path dir, int maxResidentEvents) {
+        // No HTTP client: these tests never reach the homeserver
+        return new RoomEventStore(null, mapper, "https://example.org", "token", dir, maxResidentEvents);
+    }
+
+    private ObjectNode timeline(boolean limited, String prevBatch, ObjectNode... events) {
+        ObjectNode timeline = mapper.createObjectNode();
+        timeline.putArray("events").addAll(List.of(events));
+        timeline.put("limited", limited);
+        timeline.put("prev_batch", prevBatch);
+        return timeline;
+    }
+
+    private ObjectNode message(String eventId, long ts) {
+        ObjectNode ev = mapper.createObjectNode();
+        ev.put("type", "m.room.message");
+        ev.put("event_id", eventId);
+        ev.put("sender", "@a:x");
+        ev.put("origin_server_ts", ts);
+        ev.putObject("content").put("msgtype", "m.text").put("body", "message " + eventId);
+        return ev;
+    }
+
+    private ObjectNode redaction(String eventId, long ts, String redacts) {
+        ObjectNode ev = mapper.createObjectNode();
+        ev.put("type", "m.room.redaction");
+        ev.put("event_id", eventId);
+        ev.put("sender", "@a:x");
+        ev.put("origin_server_ts", ts);
+        ev.put("redacts", redacts);
+        ev.putObject("content");
+        return ev;
+    }
+
+    private static MatrixEventReader.Event event(String eventId, long ts) {
+        MatrixEventReader.Event ev = new MatrixEventReader.Event();
+        ev.type = "m.room.message";
+        ev.eventId = eventId;
+        ev.sender = "@a:x";
+        ev.originServerTs = ts;
+        ev.msgtype = "m.text";
+        ev.body = "message " + eventId;
+        return ev;
+    }
+
+    private static List<String> ids(List<RoomEventStore.StoredEvent> events) {
+        List<String> ids = new ArrayList<>();
+        for (RoomEventStore.StoredEvent ev : events) {
+            ids.add(ev.eventId);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,52 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomHistoryManagerTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void servesTimeWindowFromEventStore(@TempDir Path dir) {
+        // No HTTP client: any /messages request would fail the query
+        RoomEventStore store = new RoomEventStore(null, mapper, "https://example.org", "token", dir, 1000);
+        long now = System.currentTimeMillis();
+        ObjectNode timeline = mapper.createObjectNode();
+        ArrayNode events = timeline.putArray("events");
+        events.add(message("$old", now - 3 * 3600_000L, "before the window"));
+        events.add(message("$a", now - 30 * 60_000L, "first"));
+        events.add(message("$b", now - 10 * 60_000L, "second"));
+        timeline.put("limited", false);
+        timeline.put("prev_batch", "t1");
+        store.recordTimeline("!r:x", timeline);
+
+        RoomHistoryManager historyManager = new RoomHistoryManager(null, mapper, "https://example.org", "token");
+        historyManager.setEventStore(store);
+        RoomHistoryManager.ChatLogsResult result = historyManager.fetchRoomHistoryDetailed("!r:x", 1, null, 0, 0,
+                ZoneId.of("UTC"), 0);
+
+        assertEquals(2, result.logs.size());
+        assertTrue(result.logs.get(0).endsWith("<@a:x> first"), result.logs.get(0));
+        assertTrue(result.logs.get(1).endsWith("<@a:x> second"), result.logs.get(1));
+        assertEquals("$a", result.firstEventId);
+    }
+
+    private ObjectNode message(String eventId, long ts, String body) {
+        ObjectNode ev = mapper.createObjectNode();
+        ev.put("type", "m.room.message");
+        ev.put("event_id", eventId);
+        ev.put("sender", "@a:x");
+        ev.put("origin_server_ts", ts);
+        ev.putObject("content").put("msgtype", "m.text").put("body", body);
+        return ev;
+    }
+}
@@ -0,0 +1,58 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RoomSearchIndexTest {
+
+    @Test
+    void candidatesMustContainEveryTerm() {
+        RoomSearchIndex index = new RoomSearchIndex();
+        index.add("@alice:x", "The Quick brown fox");
+        index.add("@bob:x", "quick thinking");
+        index.add("@carol:x", "slow brown dog");
+
+        assertArrayEquals(new int[] {0, 1}, index.candidates(List.of("quick")));
+        assertArrayEquals(new int[] {0}, index.candidates(List.of("quick", "brown")));
+        assertArrayEquals(new int[] {2}, index.candidates(List.of("<@carol:x> slow")));
+        assertArrayEquals(new int[0], index.candidates(List.of("zebra")));
+        // Too short to narrow anything down
+        assertNull(index.candidates(List.of("ow")));
+    }
+
+    @Test
+    void timestampPartOfTermIsNotIndexed() {
+        assertNull(RoomSearchIndex.indexablePart("2024-01-02 10:3"));
+        assertEquals("] <@a:x>", RoomSearchIndex.indexablePart("10:30] <@a:x>"));
+        assertEquals("hello", RoomSearchIndex.indexablePart("hello"));
+    }
+
+    @Test
+    void savedIndexIsReusedOnlyForTheSameLog(@TempDir Path dir) throws Exception {
+        RoomSearchIndex index = new RoomSearchIndex();
+        List<String> eventIds = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            index.add("@u:x", "message number " + i);
+            eventIds.add("$" + i);
+        }
+        Path file = dir.resolve("room.index");
+        index.save(file, "$299");
+
+        RoomSearchIndex loaded = RoomSearchIndex.load(file, eventIds);
+        assertNotNull(loaded);
+        assertEquals(300, loaded.docCount());
+        assertArrayEquals(index.candidates(List.of("number 25")), loaded.candidates(List.of("number 25")));
+
+        eventIds.set(299, "$other");
+        assertNull(RoomSearchIndex.load(file, eventIds));
+    }
+}
@@ -0,0 +1,75 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SseDecoderTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void decodesOpenAiStyleEvents() throws Exception {
+        String stream = ": OPENROUTER PROCESSING\r\n\r\n"
+                + "data: {\"model\":\"m1\",\"choices\":[{\"delta\":{\"role\":\"assistant\",\"reasoning_content\":\"hmm\"}}]}\r\n\r\n"
+                + "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"h\\u00e9llo [DONE] \\ud83d\\ude00\",\"reasoning\":null}},"
+                + "{\"delta\":{\"content\":\"second choice\"}}]}\n\n"
+                + "event: message\ndata: {\"choices\":\n"
+                + "data: [{\"delta\":{\"content\":\" world\"}}]}\n\n"
+                + "data: {\"choices\":[],\"usage\":{\"prompt_tokens\":10,\"completion_tokens\":2}}\n\n"
+                + "data: [DONE]\n\n";
+        SseDecoder decoder = new SseDecoder(trickle(stream), mapper);
+
+        SseDecoder.Delta first = decoder.next();
+        assertEquals("m1", first.model);
+        assertEquals("hmm", first.reasoning);
+        assertNull(first.content);
+
+        SseDecoder.Delta second = decoder.next();
+        assertEquals("héllo [DONE] 😀", second.content, "only the first choice is read, and [DONE] inside JSON is text");
+        assertNull(second.reasoning);
+
+        assertEquals(" world", decoder.next().content, "data lines of one event are joined");
+        assertEquals(10, decoder.next().usage.path("prompt_tokens").asInt());
+        assertTrue(decoder.next().done);
+        assertNull(decoder.next());
+        assertEquals(14, decoder.linesRead());
+    }
+
+    @Test
+    void decodesOllamaLinesAndSkipsBadEvents() throws Exception {
+        String stream = "data: {\"choices\":[{\"delta\":{\"content\":\"cut off\"\n\n"
+                + "{\"model\":\"llama\",\"message\":{\"role\":\"assistant\",\"content\":\"hi\"},\"done\":false}\n"
+                + "{\"message\":{\"content\":\"\"},\"done\":true,\"error\":{\"status_code\":500}}";
+        SseDecoder decoder = new SseDecoder(trickle(stream), mapper);
+
+        assertThrows(IOException.class, decoder::next);
+        SseDecoder.Delta first = decoder.next();
+        assertEquals("llama", first.model);
+        assertEquals("hi", first.content);
+        SseDecoder.Delta last = decoder.next();
+        assertTrue(last.done, "a last line without a newline is still decoded");
+        assertEquals(500, last.error.path("status_code").asInt());
+        assertNull(decoder.next());
+    }
+
+    /**
+     * Hands out a few bytes per read, so events and UTF-8 sequences span reads.
+     */
+    private static InputStream trickle(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+    }
+}
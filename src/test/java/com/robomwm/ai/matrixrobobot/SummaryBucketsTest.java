@@ -0,0 +1,58 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SummaryBucketsTest {
+
+    @Test
+    void splitsBusyDaysByHour() {
+        List<String> lines = List.of(
+                "[2024-05-01 09:00] <a> quiet day",
+                "[10:15] <b> still quiet",
+                "[2024-05-02 13:05] <a> busy",
+                "[13:40] <b> busy",
+                "  continued line",
+                "[14:02] <a> busy",
+                "[15:10] <b> busy");
+        int[] tokens = new int[lines.size()];
+        Arrays.fill(tokens, 4);
+
+        List<SummaryBuckets.Bucket> buckets = SummaryBuckets.split(lines, tokens, 12);
+        assertEquals(4, buckets.size());
+        assertTrue(buckets.get(0).wholeDay);
+        assertEquals("2024-05-01", buckets.get(0).label);
+        assertEquals(2, buckets.get(0).lines.size());
+
+        assertFalse(buckets.get(1).wholeDay);
+        assertEquals("2024-05-02", buckets.get(1).day);
+        assertEquals("2024-05-02 13:00", buckets.get(1).label);
+        assertEquals(3, buckets.get(1).lines.size(), "continuation lines stay in their hour");
+        assertEquals("2024-05-02 14:00", buckets.get(2).label);
+        assertEquals("2024-05-02 15:00", buckets.get(3).label);
+    }
+
+    @Test
+    void cacheKeyIgnoresWhereTheWindowStarted() {
+        // A window starting mid-day puts the date on its first line instead
+        String fromDayStart = SummaryBuckets.cacheKey("!r:x", "2024-05-02 13:00", "prompt",
+                List.of("[13:05] <a> hi", "[13:40] <b> hello"));
+        String fromMidDay = SummaryBuckets.cacheKey("!r:x", "2024-05-02 13:00", "prompt",
+                List.of("[2024-05-02 13:05] <a> hi", "[13:40] <b> hello"));
+        assertEquals(fromDayStart, fromMidDay);
+
+        assertNotEquals(fromDayStart, SummaryBuckets.cacheKey("!r:x", "2024-05-02 13:00", "prompt",
+                List.of("[13:05] <a> hi", "[13:40] <b> hello!")));
+        assertNotEquals(fromDayStart, SummaryBuckets.cacheKey("!r:x", "2024-05-02 13:00", "other prompt",
+                List.of("[13:05] <a> hi", "[13:40] <b> hello")));
+        assertNotEquals(fromDayStart, SummaryBuckets.cacheKey("!other:x", "2024-05-02 13:00", "prompt",
+                List.of("[13:05] <a> hi", "[13:40] <b> hello")));
+    }
+}
@@ -0,0 +1,96 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncPipelineTest {
+
+    @Test
+    void keepsEachRoomInOrderWhileRoomsRunInParallel() throws Exception {
+        Map<String, List<String>> handled = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(300);
+        SyncPipeline pipeline = new SyncPipeline(8, 3, batch -> {
+            AtomicInteger running = active.computeIfAbsent(batch.roomId, k -> new AtomicInteger());
+            if (running.incrementAndGet() > 1) overlapped.set(true);
+            handled.computeIfAbsent(batch.roomId, k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(batch.roomNode.asText());
+            Thread.sleep(1);
+            running.decrementAndGet();
+            done.countDown();
+        });
+
+        for (int i = 0; i < 100; i++) {
+            for (String room : List.of("!a:x", "!b:x", "!c:x")) {
+                pipeline.submit(batch(room, String.valueOf(i)));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertFalse(overlapped.get(), "a room's batches never run concurrently");
+        for (String room : List.of("!a:x", "!b:x", "!c:x")) {
+            List<String> order = handled.get(room);
+            assertEquals(100, order.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(String.valueOf(i), order.get(i));
+            }
+        }
+    }
+
+    @Test
+    void blocksTheSyncThreadWhileFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SyncPipeline pipeline = new SyncPipeline(2, 2, batch -> release.await(10, TimeUnit.SECONDS));
+        pipeline.submit(batch("!a:x", "1"));
+        pipeline.submit(batch("!b:x", "1"));
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread sync = new Thread(() -> {
+            try {
+                pipeline.submit(batch("!c:x", "1"));
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sync.start();
+        assertFalse(submitted.await(300, TimeUnit.MILLISECONDS), "a third batch waits for capacity");
+
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        sync.join(5000);
+    }
+
+    @Test
+    void keepsGoingAfterAHandlerFails() throws Exception {
+        CountDownLatch handled = new CountDownLatch(2);
+        SyncPipeline pipeline = new SyncPipeline(1, 1, batch -> {
+            handled.countDown();
+            if ("bad".equals(batch.roomNode.asText())) throw new IllegalStateException("handler failed");
+        });
+        pipeline.submit(batch("!a:x", "bad"));
+        // Capacity of one: this only gets in if the failed batch released its slot
+        pipeline.submit(batch("!a:x", "good"));
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+    }
+
+    private static SyncPipeline.RoomBatch batch(String roomId, String payload) {
+        return new SyncPipeline.RoomBatch(roomId, SyncPipeline.BatchType.JOIN,
+                TextNode.valueOf(payload));
+    }
+}
@@ -0,0 +1,82 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenTallyTest {
+    private static final ZoneId UTC = ZoneId.of("UTC");
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    // Stands in for the tokenizer: a line costs 4 more tokens while it carries its date
+    private static final RoomHistoryManager.TokenTally.LineTokens FAKE_TOKENS =
+            (line, zoneId, previousDate, aiFriendlyTimestamps) ->
+                    aiFriendlyTimestamps && date(line).equals(previousDate) ? 10 : 14;
+
+    @Test
+    void newestFirstTallyMatchesTheChronologicalLog() {
+        List<RawLogLine> chronological = lines();
+        RoomHistoryManager.TokenTally tally = new RoomHistoryManager.TokenTally(UTC, true, true, FAKE_TOKENS);
+        List<RawLogLine> gathered = new ArrayList<>();
+        for (int i = chronological.size() - 1; i >= 0; i--) {
+            tally.add(chronological.get(i));
+            gathered.add(0, chronological.get(i));
+            assertEquals(formattedTokens(gathered, true), tally.total(), "after " + gathered.size() + " lines");
+        }
+    }
+
+    @Test
+    void oldestFirstTallyMatchesTheChronologicalLog() {
+        List<RawLogLine> chronological = lines();
+        RoomHistoryManager.TokenTally tally = new RoomHistoryManager.TokenTally(UTC, true, false, FAKE_TOKENS);
+        for (int i = 0; i < chronological.size(); i++) {
+            tally.add(chronological.get(i));
+            assertEquals(formattedTokens(chronological.subList(0, i + 1), true), tally.total());
+        }
+    }
+
+    @Test
+    void plainTimestampsNeverDropTheDate() {
+        List<RawLogLine> chronological = lines();
+        RoomHistoryManager.TokenTally tally = new RoomHistoryManager.TokenTally(UTC, false, true, FAKE_TOKENS);
+        List<RawLogLine> newestFirst = new ArrayList<>(chronological);
+        Collections.reverse(newestFirst);
+        for (RawLogLine line : newestFirst) {
+            tally.add(line);
+        }
+        assertEquals(14 * chronological.size(), tally.total());
+    }
+
+    // Three lines on one day, then two on the next
+    private static List<RawLogLine> lines() {
+        long start = 1_700_000_000_000L - 1_700_000_000_000L % DAY_MS;
+        List<RawLogLine> lines = new ArrayList<>();
+        lines.add(new RawLogLine(start + 3600_000L, "@a:x", "one", "$1"));
+        lines.add(new RawLogLine(start + 7200_000L, "@b:x", "two", "$2"));
+        lines.add(new RawLogLine(start + 10800_000L, "@a:x", "three", "$3"));
+        lines.add(new RawLogLine(start + DAY_MS + 3600_000L, "@b:x", "four", "$4"));
+        lines.add(new RawLogLine(start + DAY_MS + 7200_000L, "@a:x", "five", "$5"));
+        return lines;
+    }
+
+    private static int formattedTokens(List<RawLogLine> chronological, boolean aiFriendlyTimestamps) {
+        int total = 0;
+        LocalDate previousDate = null;
+        for (RawLogLine line : chronological) {
+            total += FAKE_TOKENS.estimate(line, UTC, previousDate, aiFriendlyTimestamps);
+            previousDate = date(line);
+        }
+        return total;
+    }
+
+    private static LocalDate date(RawLogLine line) {
+        return Instant.ofEpochMilli(line.timestamp).atZone(UTC).toLocalDate();
+    }
+}
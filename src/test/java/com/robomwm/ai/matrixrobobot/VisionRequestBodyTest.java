@@ -0,0 +1,76 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class VisionRequestBodyTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void streamsImagesInPlaceOfPlaceholders() throws Exception {
+        byte[] first = new byte[10_000];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) (i * 31);
+        }
+        byte[] second = {1, 2};
+        VisionRequestBody body = new VisionRequestBody();
+        Map<String, Object> payload = Map.of(
+                "model", "vision ☃",
+                "content", VisionPromptBuilder.buildVisionContent("describe",
+                        List.of(body.addImage(new ImageFetcher.FetchedImage(first, "image/jpeg", null), true))),
+                "images", List.of(body.addImage(new ImageFetcher.FetchedImage(second, "image/png", null), false)));
+
+        HttpRequest.BodyPublisher publisher = body.publisher(mapper.writeValueAsString(payload));
+        byte[] sent = collect(publisher);
+
+        assertEquals(publisher.contentLength(), sent.length);
+        JsonNode root = mapper.readTree(sent);
+        assertEquals("vision ☃", root.path("model").asText());
+        String url = root.path("content").get(1).path("image_url").path("url").asText();
+        assertEquals("data:image/jpeg;base64," + Base64.getEncoder().encodeToString(first), url);
+        assertArrayEquals(second, Base64.getDecoder().decode(root.path("images").get(0).asText()));
+    }
+
+    private static byte[] collect(HttpRequest.BodyPublisher publisher) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(out.toByteArray());
+            }
+        });
+        return done.get(5, TimeUnit.SECONDS);
+    }
+}